@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.SecurityUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for validated API access tokens. Caches the user ID, user name and group names of
+ * access token by access token hash until the access token expires. Entities are not cached
+ * as they are managed by the entity manager of the loading request. Cached access tokens are
+ * invalidated when access token is invalidated, when privileges or group memberships of the
+ * company change and when group memberships of the user are invalidated. Invalidations are
+ * sequenced so that access tokens loaded before invalidation are not cached afterwards.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AccessTokenCache {
+    /** The cached access tokens by access token hash. */
+    private static final InMemoryCache<String, AccessToken> accessTokens =
+            new InMemoryCache<String, AccessToken>(SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS, 60 * 1000, 10000);
+
+    /** The invalidation sequence numbers by access token hash. */
+    private static final InMemoryCache<String, Long> tokenInvalidations =
+            new InMemoryCache<String, Long>(SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS, 60 * 1000, 100000);
+
+    /** The invalidation sequence numbers by user ID. */
+    private static final InMemoryCache<String, Long> userInvalidations =
+            new InMemoryCache<String, Long>(SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS, 60 * 1000, 100000);
+
+    /** The invalidation sequence. */
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Gets cached access token which is valid for company.
+     * @param accessTokenHash the access token hash
+     * @param company the company
+     * @return the access token or null if access token is not cached, has expired or has been invalidated
+     */
+    public static AccessToken get(final String accessTokenHash, final Company company) {
+        final AccessToken accessToken = accessTokens.get(accessTokenHash);
+        if (accessToken == null) {
+            return null;
+        }
+        final Long tokenInvalidation = tokenInvalidations.get(accessTokenHash);
+        final Long userInvalidation = userInvalidations.get(accessToken.userId);
+        if (System.currentTimeMillis() >= accessToken.expirationTimeMillis
+                || !company.getCompanyId().equals(accessToken.companyId)
+                || accessToken.privilegeVersion != PrivilegeCache.getVersion(company)
+                || tokenInvalidation != null && tokenInvalidation > accessToken.sequence
+                || userInvalidation != null && userInvalidation > accessToken.sequence) {
+            accessTokens.remove(accessTokenHash);
+            return null;
+        }
+        return accessToken;
+    }
+
+    /**
+     * Begins loading access token from database. The returned load ticket has to be
+     * acquired before loading so that concurrent invalidations are not lost.
+     * @param company the company
+     * @return the load ticket
+     */
+    public static long[] beginLoad(final Company company) {
+        return new long[] {sequence.get(), PrivilegeCache.getVersion(company)};
+    }
+
+    /**
+     * Caches access token loaded from database.
+     * @param loadTicket the load ticket acquired before loading
+     * @param accessTokenHash the access token hash
+     * @param company the company
+     * @param user the user
+     * @param groups the user groups
+     * @param sessionCreatedMillis the creation time of the user session in milliseconds
+     * @return the cached access token
+     */
+    public static AccessToken put(final long[] loadTicket, final String accessTokenHash, final Company company,
+                                  final User user, final List<Group> groups, final long sessionCreatedMillis) {
+        final AccessToken accessToken = new AccessToken(loadTicket[0], loadTicket[1], company.getCompanyId(),
+                user, groups, sessionCreatedMillis + SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS);
+        accessTokens.put(accessTokenHash, accessToken);
+        return accessToken;
+    }
+
+    /**
+     * Invalidates cached access token. Invoked after user session of the access token has
+     * been removed from database. Access token loads begun before invalidation are discarded.
+     * @param accessTokenHash the access token hash
+     */
+    public static void invalidate(final String accessTokenHash) {
+        tokenInvalidations.put(accessTokenHash, sequence.incrementAndGet());
+        accessTokens.remove(accessTokenHash);
+    }
+
+    /**
+     * Invalidates cached access tokens of given users. Invoked when group memberships of the users change.
+     * @param userIds the user IDs
+     */
+    public static void invalidateUsers(final Collection<String> userIds) {
+        final long invalidation = sequence.incrementAndGet();
+        for (final String userId : userIds) {
+            userInvalidations.put(userId, invalidation);
+        }
+    }
+
+    /**
+     * Immutable validated access token.
+     */
+    public static final class AccessToken {
+        /** The invalidation sequence number at load time. */
+        private final long sequence;
+        /** The company privilege version at load time. */
+        private final long privilegeVersion;
+        /** The company ID. */
+        private final String companyId;
+        /** The user ID. */
+        private final String userId;
+        /** The user name. */
+        private final String userName;
+        /** The names of the user groups. */
+        private final List<String> groupNames;
+        /** The expiration time in milliseconds. */
+        private final long expirationTimeMillis;
+
+        /**
+         * Constructor which sets all fields.
+         * @param sequence the invalidation sequence number at load time
+         * @param privilegeVersion the company privilege version at load time
+         * @param companyId the company ID
+         * @param user the user
+         * @param groups the user groups
+         * @param expirationTimeMillis the expiration time in milliseconds
+         */
+        private AccessToken(final long sequence, final long privilegeVersion, final String companyId,
+                            final User user, final List<Group> groups, final long expirationTimeMillis) {
+            this.sequence = sequence;
+            this.privilegeVersion = privilegeVersion;
+            this.companyId = companyId;
+            this.userId = user.getUserId();
+            this.userName = user.getEmailAddress();
+            final List<String> groupNames = new ArrayList<String>(groups.size());
+            for (final Group group : groups) {
+                groupNames.add(group.getName());
+            }
+            this.groupNames = Collections.unmodifiableList(groupNames);
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+
+        /**
+         * @return the user ID
+         */
+        public String getUserId() {
+            return userId;
+        }
+
+        /**
+         * @return the user name
+         */
+        public String getUserName() {
+            return userName;
+        }
+
+        /**
+         * @return the names of the user groups
+         */
+        public List<String> getGroupNames() {
+            return groupNames;
+        }
+
+        /**
+         * @return the expiration time in milliseconds
+         */
+        public long getExpirationTimeMillis() {
+            return expirationTimeMillis;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.security.CompanyDao;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves companies by host name. Resolved companies are cached per host name.
+ * Host names without company of their own are cached as mapping to the default
+ * company with host name "*". Cache is invalidated when companies are added,
+ * updated or removed.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class CompanyResolver {
+    /** The default company host name. */
+    public static final String DEFAULT_HOST = "*";
+
+    /** The companies by host name. */
+    private static final InMemoryCache<String, Company> companies =
+            new InMemoryCache<String, Company>(10 * 60 * 1000, 60 * 1000, 1000);
+
+    /** The cache version incremented on invalidation. */
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * Resolves company for host name. Falls back to default company if host name
+     * does not match any company.
+     * @param entityManager the entity manager
+     * @param hostName the host name
+     * @return the company or null if neither host nor default company exists
+     */
+    public static Company resolveCompany(final EntityManager entityManager, final String hostName) {
+        final Company cachedCompany = companies.get(hostName);
+        if (cachedCompany != null) {
+            return cachedCompany;
+        }
+
+        // Version is read before loading so that company loaded before invalidation is not cached.
+        final long loadVersion = version.get();
+        Company company = CompanyDao.getCompany(entityManager, hostName);
+        if (company == null) {
+            company = CompanyDao.getCompany(entityManager, DEFAULT_HOST);
+        }
+        if (company != null && version.get() == loadVersion) {
+            companies.put(hostName, company);
+        }
+        return company;
+    }
+
+    /**
+     * Resolves company for host name. Entity manager is created only if company is not cached.
+     * @param entityManagerFactory the entity manager factory
+     * @param hostName the host name
+     * @return the company or null if neither host nor default company exists
+     */
+    public static Company resolveCompany(final EntityManagerFactory entityManagerFactory, final String hostName) {
+        final Company cachedCompany = companies.get(hostName);
+        if (cachedCompany != null) {
+            return cachedCompany;
+        }
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return resolveCompany(entityManager, hostName);
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Invalidates resolved companies. Invoked when companies are added, updated or removed.
+     */
+    public static void invalidate() {
+        version.incrementAndGet();
+        companies.clear();
+    }
+}
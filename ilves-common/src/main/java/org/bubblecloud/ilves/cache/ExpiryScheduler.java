@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed timer wheel shared by all in memory caches for expiring cached objects.
+ * One daemon thread advances the wheel and fires the expiry tasks whose deadline has passed.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class ExpiryScheduler {
+
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(ExpiryScheduler.class);
+
+    /** The wheel tick length in milliseconds. */
+    private static final long TICK_MILLIS = 500;
+    /** The number of slots in the wheel. Has to be power of two. */
+    private static final int SLOT_COUNT = 512;
+
+    /** The shared scheduler instance. */
+    private static final ExpiryScheduler INSTANCE = new ExpiryScheduler();
+
+    /** The wheel slots containing scheduled timeouts. */
+    private final Set<Timeout>[] slots;
+    /** The last processed tick. */
+    private volatile long lastTick;
+
+    /**
+     * Gets the shared expiry scheduler.
+     *
+     * @return the expiry scheduler
+     */
+    static ExpiryScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Private constructor which starts the wheel thread.
+     */
+    @SuppressWarnings("unchecked")
+    private ExpiryScheduler() {
+        slots = new Set[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = Collections.newSetFromMap(new ConcurrentHashMap<Timeout, Boolean>());
+        }
+        lastTick = System.currentTimeMillis() / TICK_MILLIS;
+
+        final Thread wheelThread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TICK_MILLIS);
+                    } catch (final InterruptedException e) {
+                    }
+                    advance();
+                }
+            }
+        }, "ilves-cache-expiry");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    /**
+     * Schedules task to be run after given delay.
+     *
+     * @param task the task
+     * @param delayMillis the delay in milliseconds
+     * @return the timeout which can be used to cancel the task
+     */
+    Timeout schedule(final Runnable task, final long delayMillis) {
+        final long deadline = System.currentTimeMillis() + Math.max(0, delayMillis);
+        // Never place timeout to slot which has already been processed during this revolution.
+        final long tick = Math.max(deadline / TICK_MILLIS, lastTick + 1);
+        final Timeout timeout = new Timeout(task, deadline, slots[(int) (tick & (SLOT_COUNT - 1))]);
+        timeout.slot.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel to current time and fires due timeouts.
+     */
+    private void advance() {
+        final long now = System.currentTimeMillis();
+        final long currentTick = now / TICK_MILLIS;
+        // Catch up with ticks missed due to long pauses but do not process any slot twice.
+        final long firstTick = Math.max(lastTick + 1, currentTick - SLOT_COUNT + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            final Iterator<Timeout> iterator = slots[(int) (tick & (SLOT_COUNT - 1))].iterator();
+            while (iterator.hasNext()) {
+                final Timeout timeout = iterator.next();
+                // Timeouts further than one revolution away stay in the slot.
+                if (timeout.deadline <= now) {
+                    iterator.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (final Throwable t) {
+                        LOGGER.error("Error in cache expiry task.", t);
+                    }
+                }
+            }
+        }
+        lastTick = currentTick;
+    }
+
+    /**
+     * Scheduled task handle.
+     */
+    static final class Timeout {
+        /** The task to run. */
+        private final Runnable task;
+        /** The deadline in milliseconds. */
+        private final long deadline;
+        /** The slot containing this timeout. */
+        private final Set<Timeout> slot;
+
+        /**
+         * Constructor which sets the task, deadline and slot.
+         * @param task the task
+         * @param deadline the deadline
+         * @param slot the slot
+         */
+        private Timeout(final Runnable task, final long deadline, final Set<Timeout> slot) {
+            this.task = task;
+            this.deadline = deadline;
+            this.slot = slot;
+        }
+
+        /**
+         * Cancels the timeout.
+         */
+        void cancel() {
+            slot.remove(this);
+        }
+    }
+}
@@ -15,55 +15,62 @@
  */
 package org.bubblecloud.ilves.cache;
 
-import org.apache.commons.collections.MapIterator;
-import org.apache.commons.collections.map.LRUMap;
-
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Simple in memory cache.
+ * Simple in memory cache. Cached objects are stored in striped concurrent segments and
+ * least recently accessed objects of a segment are evicted when the segment is full.
+ * Each segment keeps its objects in access order so eviction does not scan the segment.
+ * Writes lock the segment. Reads do not wait for the lock and skip recording the access
+ * if the segment is locked, making the eviction order approximate under contention.
+ * Expired objects are evicted by the expiry scheduler shared by all cache instances.
  *
  * @author Tommi S.E. Laukkanen
  */
 
 public class InMemoryCache<K, T> {
+    /**
+     * The maximum number of segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
     /**
      * The time to live for all cached object in ms.
      */
     private final long timeToLiveMillis;
     /**
-     * The internal map containing cached objects.
+     * Whether expired objects are evicted by the expiry scheduler.
      */
-    private final LRUMap cacheMap;
+    private final boolean scheduledEviction;
+    /**
+     * The segments containing cached objects.
+     */
+    private final Segment[] segments;
 
     /**
      * Constructor defining time to live, cache evict expired intervals and maximum cached items.
      *
      * @param timeToLiveMillis      the time to live in milliseconds
-     * @param evictIntervalMillis the clean up interval in milliseconds
+     * @param evictIntervalMillis the clean up interval in milliseconds, scheduled eviction is disabled if zero
      * @param maxItems              the maximum number of cached items.
      */
+    @SuppressWarnings("unchecked")
     public InMemoryCache(final long timeToLiveMillis, final long evictIntervalMillis, final int maxItems) {
         this.timeToLiveMillis = timeToLiveMillis;
+        this.scheduledEviction = timeToLiveMillis > 0 && evictIntervalMillis > 0;
 
-        cacheMap = new LRUMap(maxItems);
-
-        if (this.timeToLiveMillis > 0 && evictIntervalMillis > 0) {
-
-            final Thread evictThread = new Thread(new Runnable() {
-                public void run() {
-                    while (true) {
-                        try {
-                            Thread.sleep(evictIntervalMillis);
-                        } catch (final InterruptedException e) {
-                        }
-                        evictExpired();
-                    }
-                }
-            });
-
-            evictThread.setDaemon(true);
-            evictThread.start();
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && segmentCount * 2 <= maxItems / 8) {
+            segmentCount *= 2;
+        }
+        final int segmentMaxItems = Math.max(1, maxItems / segmentCount);
+        segments = new InMemoryCache.Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentMaxItems);
         }
     }
 
@@ -74,8 +81,11 @@ public class InMemoryCache<K, T> {
      * @param value the value
      */
     public void put(K key, T value) {
-        synchronized (cacheMap) {
-            cacheMap.put(key, new CacheObject(value));
+        final Segment segment = segmentFor(key);
+        final CacheObject cacheObject = new CacheObject(segment, key, value);
+        segment.put(key, cacheObject);
+        if (scheduledEviction) {
+            cacheObject.schedule(timeToLiveMillis);
         }
     }
 
@@ -86,16 +96,20 @@ public class InMemoryCache<K, T> {
      * @return the cached object or null.
      */
     public T get(K key) {
-        synchronized (cacheMap) {
-            CacheObject c = (CacheObject) cacheMap.get(key);
-
-            if (c == null)
-                return null;
-            else {
-                c.lastAccessed = System.currentTimeMillis();
-                return c.value;
-            }
+        final Segment segment = segmentFor(key);
+        final CacheObject c = segment.map.get(key);
+
+        if (c == null) {
+            return null;
         }
+        final long now = System.currentTimeMillis();
+        if (isExpired(c, now)) {
+            segment.remove(key, c);
+            return null;
+        }
+        c.lastAccessed = now;
+        segment.recordAccess(key);
+        return c.value;
     }
 
     /**
@@ -104,8 +118,17 @@ public class InMemoryCache<K, T> {
      * @param key the key
      */
     public void remove(K key) {
-        synchronized (cacheMap) {
-            cacheMap.remove(key);
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Removes all objects from cache.
+     */
+    public void clear() {
+        for (final Segment segment : segments) {
+            for (final Map.Entry<K, CacheObject> entry : segment.map.entrySet()) {
+                segment.remove(entry.getKey(), entry.getValue());
+            }
         }
     }
 
@@ -115,9 +138,11 @@ public class InMemoryCache<K, T> {
      * @return the size
      */
     public int size() {
-        synchronized (cacheMap) {
-            return cacheMap.size();
+        int size = 0;
+        for (final Segment segment : segments) {
+            size += segment.count.get();
         }
+        return size;
     }
 
     /**
@@ -125,25 +150,13 @@ public class InMemoryCache<K, T> {
      */
     public void evictExpired() {
         final long now = System.currentTimeMillis();
-        final LinkedList<K> expiredKeys = new LinkedList<K>();
-
-        synchronized (cacheMap) {
-            final MapIterator itr = cacheMap.mapIterator();
-            while (itr.hasNext()) {
-                final K key = (K) itr.next();
-                final CacheObject cacheObject = (CacheObject) itr.getValue();
-
-                if (cacheObject != null && (now > (timeToLiveMillis + cacheObject.lastAccessed))) {
-                    expiredKeys.add(key);
+        for (final Segment segment : segments) {
+            for (final Map.Entry<K, CacheObject> entry : segment.map.entrySet()) {
+                if (isExpired(entry.getValue(), now)) {
+                    segment.remove(entry.getKey(), entry.getValue());
                 }
             }
         }
-
-        for (K key : expiredKeys) {
-            synchronized (cacheMap) {
-                cacheMap.remove(key);
-            }
-        }
     }
 
     /**
@@ -152,33 +165,215 @@ public class InMemoryCache<K, T> {
      * @return true if key is contained in the cache
      */
     public boolean containsKey(K key) {
-        synchronized (cacheMap) {
-            return cacheMap.containsKey(key);
+        final CacheObject c = segmentFor(key).map.get(key);
+        return c != null && !isExpired(c, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether cache object has expired.
+     * @param cacheObject the cache object
+     * @param now the current time in milliseconds
+     * @return true if cache object has expired
+     */
+    private boolean isExpired(final CacheObject cacheObject, final long now) {
+        return timeToLiveMillis > 0 && now > timeToLiveMillis + cacheObject.lastAccessed;
+    }
+
+    /**
+     * Gets the segment for given key.
+     * @param key the key
+     * @return the segment
+     */
+    private Segment segmentFor(final K key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Segment of cached objects.
+     */
+    private class Segment {
+        /**
+         * The map containing cached objects.
+         */
+        private final ConcurrentHashMap<K, CacheObject> map = new ConcurrentHashMap<K, CacheObject>();
+        /**
+         * The cached objects in access order, eldest first. Guarded by lock.
+         */
+        private final LinkedHashMap<K, CacheObject> accessOrder = new LinkedHashMap<K, CacheObject>(16, 0.75f, true);
+        /**
+         * The number of cached objects in the segment.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+        /**
+         * The lock held while modifying the segment.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * The maximum number of cached objects in the segment.
+         */
+        private final int maxItems;
+
+        /**
+         * Constructor which sets the maximum number of cached objects.
+         * @param maxItems the maximum number of cached objects
+         */
+        private Segment(final int maxItems) {
+            this.maxItems = maxItems;
+        }
+
+        /**
+         * Puts cache object to the segment and evicts least recently accessed objects
+         * until the segment is within its bounds.
+         * @param key the key
+         * @param cacheObject the cache object
+         */
+        private void put(final K key, final CacheObject cacheObject) {
+            lock.lock();
+            try {
+                final CacheObject previous = map.put(key, cacheObject);
+                accessOrder.put(key, cacheObject);
+                if (previous != null) {
+                    previous.cancel();
+                } else {
+                    count.incrementAndGet();
+                }
+                final Iterator<CacheObject> eldestObjects = accessOrder.values().iterator();
+                while (count.get() > maxItems && eldestObjects.hasNext()) {
+                    final CacheObject eldest = eldestObjects.next();
+                    eldestObjects.remove();
+                    map.remove(eldest.key);
+                    count.decrementAndGet();
+                    eldest.cancel();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Records access of the key unless the segment is locked by another thread.
+         * @param key the key
+         */
+        private void recordAccess(final K key) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                accessOrder.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes cache object mapped to the key.
+         * @param key the key
+         */
+        private void remove(final K key) {
+            lock.lock();
+            try {
+                final CacheObject cacheObject = map.remove(key);
+                if (cacheObject != null) {
+                    accessOrder.remove(key);
+                    count.decrementAndGet();
+                    cacheObject.cancel();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes given cache object if it is still mapped to the key.
+         * @param key the key
+         * @param cacheObject the cache object
+         */
+        private void remove(final K key, final CacheObject cacheObject) {
+            lock.lock();
+            try {
+                if (map.remove(key, cacheObject)) {
+                    accessOrder.remove(key);
+                    count.decrementAndGet();
+                    cacheObject.cancel();
+                }
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     /**
      * The cache object containing lastAccess and value.
      */
-    private class CacheObject {
+    private class CacheObject implements Runnable {
         /**
          * The last access time.
          */
-        public long lastAccessed = System.currentTimeMillis();
+        public volatile long lastAccessed = System.currentTimeMillis();
+        /**
+         * The segment containing this object.
+         */
+        private final Segment segment;
+        /**
+         * The cache key.
+         */
+        private final K key;
         /**
          * The cached value.
          */
         public final T value;
+        /**
+         * The scheduled expiry or null.
+         */
+        private volatile ExpiryScheduler.Timeout timeout;
 
         /**
          * Constructor which sets the cached value.
+         * @param segment the segment
+         * @param key the cache key
          * @param value the cached value
          */
-        private CacheObject(final T value) {
+        private CacheObject(final Segment segment, final K key, final T value) {
+            this.segment = segment;
+            this.key = key;
             this.value = value;
         }
 
+        /**
+         * Schedules expiry check for this object.
+         * @param delayMillis the delay in milliseconds
+         */
+        private void schedule(final long delayMillis) {
+            timeout = ExpiryScheduler.getInstance().schedule(this, delayMillis);
+        }
+
+        /**
+         * Cancels scheduled expiry check.
+         */
+        private void cancel() {
+            final ExpiryScheduler.Timeout currentTimeout = timeout;
+            if (currentTimeout != null) {
+                currentTimeout.cancel();
+            }
+        }
 
+        /**
+         * Expiry check which evicts this object if it has not been accessed
+         * during time to live or otherwise reschedules the check.
+         */
+        public void run() {
+            if (segment.map.get(key) != this) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (isExpired(this, now)) {
+                segment.remove(key, this);
+            } else {
+                schedule(lastAccessed + timeToLiveMillis - now + 1);
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -24,108 +24,277 @@ import org.bubblecloud.ilves.security.UserDao;
 
 import javax.persistence.EntityManager;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache for privileges
+ * Cache for privileges. Caches the effective privileges of users and groups
+ * as sorted data ID arrays per privilege key. Cached privileges are invalidated
+ * by incrementing the privilege version of the company.
+ *
  * @author Tommi S.E. Laukkanen
  */
 public class PrivilegeCache {
     public static final String USER_FOR_PRIVILEGE_CHECK = "user-for-privilege-check";
-    public static final String USER_GROUPS_FOR_PRIVILEGE_CHECK = "user-groups-for-privilege-check";
-    /** The cached group privileges. */
-    private static Map<Company, InMemoryCache<Group, Map<String, Set<String>>>> groupPrivileges =
-            new HashMap<Company, InMemoryCache<Group, Map<String, Set<String>>>>();
-
-    /** The cached user privileges. */
-    private static Map<Company, InMemoryCache<User, Map<String, Set<String>>>> userPrivileges =
-            new HashMap<Company, InMemoryCache<User, Map<String, Set<String>>>>();
-
-    public static synchronized void flush(final Company company) {
-        groupPrivileges.remove(company);
-        userPrivileges.remove(company);
+    /** The placeholder for null data ID in sorted data ID arrays. */
+    private static final String NULL_DATA_ID = "\u0000";
+
+    /** The cached effective privileges. */
+    private static final InMemoryCache<String, EffectivePrivileges> privileges =
+            new InMemoryCache<String, EffectivePrivileges>(5 * 60 * 1000, 60 * 1000, 10000);
+
+    /** The privilege versions of companies. */
+    private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** The interned privilege keys. */
+    private static final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Invalidates cached privileges of given company. Invoked when privileges or
+     * group memberships of the company change.
+     * @param company the company
+     */
+    public static void invalidate(final Company company) {
+        if (company != null) {
+            getVersionCounter(company).incrementAndGet();
+        }
     }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final User user, final List<Group> groups, final String key,
-                                                     final String dataId) {
-        if (user != null) {
-            if (PrivilegeCache.hasPrivilege(entityManager, company, user, key, dataId)) {
-                return true;
-            } else {
-                for (final Group group : groups) {
-                    if (PrivilegeCache.hasPrivilege(entityManager, company, group, key, dataId)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        } else {
-            final Group group = UserDao.getGroup(entityManager, company, DefaultRoles.ANONYMOUS);
-            if (PrivilegeCache.hasPrivilege(entityManager, company, group, key, dataId)) {
-                return true;
-            } else {
-                return false;
+    /**
+     * Invalidates cached effective privileges of given users only. Invoked when group
+     * memberships of the users change without other privilege changes in the company.
+     * @param company the company
+     * @param userIds the user IDs
+     */
+    public static void invalidate(final Company company, final Collection<String> userIds) {
+        if (company != null) {
+            for (final String userId : userIds) {
+                privileges.remove(company.getCompanyId() + ":effective:" + userId);
             }
         }
     }
 
-    public static synchronized void load(final EntityManager entityManager, final Company company, final Group group) {
-        if (!groupPrivileges.get(company).containsKey(group)) {
-            groupPrivileges.get(company).put(group, new HashMap<String, Set<String>>());
-        }
-        final List<Privilege> privileges = UserDao.getGroupPrivileges(entityManager, group);
-        for (final Privilege privilege : privileges) {
-            if (!groupPrivileges.get(company).get(group).containsKey(privilege.getKey())) {
-                groupPrivileges.get(company).get(group).put(privilege.getKey(), new HashSet<String>());
+    /**
+     * Flushes cached privileges of given company.
+     * @param company the company
+     */
+    public static void flush(final Company company) {
+        invalidate(company);
+    }
+
+    /**
+     * Checks whether user has privilege either directly or through group membership.
+     * Anonymous group privileges are checked if user is null. Group memberships are
+     * resolved from database when effective privileges of the user are loaded.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user or null
+     * @param key the privilege key
+     * @param dataId the data ID
+     * @return true if privilege exists
+     */
+    public static boolean hasEffectivePrivilege(final EntityManager entityManager, final Company company,
+                                                final User user, final String key, final String dataId) {
+        return getEffectivePrivileges(entityManager, company, user).contains(key, dataId);
+    }
+
+    /**
+     * Checks whether user has privilege either directly or through group membership.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user or null
+     * @param groups ignored, group memberships are resolved from database
+     * @param key the privilege key
+     * @param dataId the data ID
+     * @return true if privilege exists
+     * @deprecated use {@link #hasEffectivePrivilege(EntityManager, Company, User, String, String)}
+     */
+    @Deprecated
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final User user, final List<Group> groups, final String key,
+                                       final String dataId) {
+        return hasEffectivePrivilege(entityManager, company, user, key, dataId);
+    }
+
+    /**
+     * Filters data IDs to those on which user has privilege either directly or through group membership.
+     * Anonymous group privileges are checked if user is null.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user or null
+     * @param key the privilege key
+     * @param dataIds the data IDs
+     * @return the permitted data IDs in the order they were given
+     */
+    public static List<String> filterPermitted(final EntityManager entityManager, final Company company,
+                                               final User user, final String key,
+                                               final Collection<String> dataIds) {
+        final EffectivePrivileges effectivePrivileges = getEffectivePrivileges(entityManager, company, user);
+        final List<String> permittedDataIds = new ArrayList<String>();
+        for (final String dataId : dataIds) {
+            if (effectivePrivileges.contains(key, dataId)) {
+                permittedDataIds.add(dataId);
             }
-            groupPrivileges.get(company).get(group).get(privilege.getKey()).add(privilege.getDataId());
         }
+        return permittedDataIds;
     }
 
-    public static synchronized void load(final EntityManager entityManager, final Company company, final User user) {
-        if (!userPrivileges.get(company).containsKey(user)) {
-            userPrivileges.get(company).put(user, new HashMap<String, Set<String>>());
-        }
-        final List<Privilege> privileges = UserDao.getUserPrivileges(entityManager, user);
-        for (final Privilege privilege : privileges) {
-            if (!userPrivileges.get(company).get(user).containsKey(privilege.getKey())) {
-                userPrivileges.get(company).get(user).put(privilege.getKey(), new HashSet<String>());
-            }
-            userPrivileges.get(company).get(user).get(privilege.getKey()).add(privilege.getDataId());
+    /**
+     * Checks whether group has privilege.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param group the group
+     * @param key the privilege key
+     * @param dataId the data ID
+     * @return true if privilege exists
+     */
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final Group group, final String key, final String dataId) {
+        final long version = getVersionCounter(company).get();
+        final String cacheKey = company.getCompanyId() + ":group:" + group.getGroupId();
+        EffectivePrivileges effectivePrivileges = privileges.get(cacheKey);
+        if (effectivePrivileges == null || effectivePrivileges.version != version) {
+            effectivePrivileges = new EffectivePrivileges(version,
+                    UserDao.getGroupPrivileges(entityManager, group));
+            privileges.put(cacheKey, effectivePrivileges);
         }
+        return effectivePrivileges.contains(key, dataId);
     }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final Group group, final String key, final String dataId) {
-        if (!groupPrivileges.containsKey(company)) {
-            groupPrivileges.put(company, new InMemoryCache<Group, Map<String, Set<String>>>(
-                    5 * 60 * 1000, 60 * 1000, 100
-            ));
+    /**
+     * Checks whether user has privilege directly.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user
+     * @param key the privilege key
+     * @param dataId the data ID
+     * @return true if privilege exists
+     */
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final User user, final String key, final String dataId) {
+        if (user == null) {
+            return false;
         }
-        if (!groupPrivileges.get(company).containsKey(group)) {
-            load(entityManager, company, group);
+        final long version = getVersionCounter(company).get();
+        final String cacheKey = company.getCompanyId() + ":user:" + user.getUserId();
+        EffectivePrivileges effectivePrivileges = privileges.get(cacheKey);
+        if (effectivePrivileges == null || effectivePrivileges.version != version) {
+            effectivePrivileges = new EffectivePrivileges(version,
+                    UserDao.getUserPrivileges(entityManager, user));
+            privileges.put(cacheKey, effectivePrivileges);
         }
-        if (!groupPrivileges.get(company).get(group).containsKey(key)) {
-            return false;
+        return effectivePrivileges.contains(key, dataId);
+    }
+
+    /**
+     * Gets effective privileges of user or anonymous group if user is null.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user or null
+     * @return the effective privileges
+     */
+    private static EffectivePrivileges getEffectivePrivileges(final EntityManager entityManager,
+                                                              final Company company, final User user) {
+        // Version is read before loading so that concurrent changes cause reload on next check.
+        final long version = getVersionCounter(company).get();
+        final String cacheKey = company.getCompanyId() + ":effective:" + (user != null ? user.getUserId() : "");
+        EffectivePrivileges effectivePrivileges = privileges.get(cacheKey);
+        if (effectivePrivileges == null || effectivePrivileges.version != version) {
+            final List<Group> groups;
+            if (user != null) {
+                groups = UserDao.getUserGroups(entityManager, company, user);
+            } else {
+                groups = new ArrayList<Group>();
+                final Group anonymousGroup = UserDao.getGroup(entityManager, company, DefaultRoles.ANONYMOUS);
+                if (anonymousGroup != null) {
+                    groups.add(anonymousGroup);
+                }
+            }
+            effectivePrivileges = new EffectivePrivileges(version,
+                    UserDao.getPrivileges(entityManager, user, groups));
+            privileges.put(cacheKey, effectivePrivileges);
         }
-        return groupPrivileges.get(company).get(group).get(key).contains(dataId);
+        return effectivePrivileges;
+    }
+
+    /**
+     * Gets privilege version of company. Version changes whenever privileges
+     * or group memberships of the company change.
+     * @param company the company
+     * @return the version
+     */
+    public static long getVersion(final Company company) {
+        return getVersionCounter(company).get();
     }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final User user, final String key, final String dataId) {
-        if (!userPrivileges.containsKey(company) || !userPrivileges.containsKey(company)) {
-            userPrivileges.put(company, new InMemoryCache<User, Map<String, Set<String>>>(
-                    5 * 60 * 1000, 60 * 1000, 1000
-            ));
+    /**
+     * Gets privilege version counter of company.
+     * @param company the company
+     * @return the version counter
+     */
+    private static AtomicLong getVersionCounter(final Company company) {
+        final AtomicLong version = versions.get(company.getCompanyId());
+        if (version != null) {
+            return version;
         }
-        if (!userPrivileges.get(company).containsKey(user)) {
-            load(entityManager, company, user);
-            return false;
+        final AtomicLong newVersion = new AtomicLong();
+        final AtomicLong existingVersion = versions.putIfAbsent(company.getCompanyId(), newVersion);
+        return existingVersion != null ? existingVersion : newVersion;
+    }
+
+    /**
+     * Interns privilege key.
+     * @param key the key
+     * @return the interned key
+     */
+    private static String intern(final String key) {
+        final String existingKey = keys.putIfAbsent(key, key);
+        return existingKey != null ? existingKey : key;
+    }
+
+    /**
+     * Immutable effective privileges consisting of sorted data ID arrays per privilege key.
+     */
+    private static final class EffectivePrivileges {
+        /** The company privilege version these privileges were loaded at. */
+        private final long version;
+        /** The sorted data IDs per privilege key. */
+        private final Map<String, String[]> dataIds;
+
+        /**
+         * Constructor which builds the effective privileges from privilege rows.
+         * @param version the company privilege version
+         * @param privileges the privileges
+         */
+        private EffectivePrivileges(final long version, final List<Privilege> privileges) {
+            this.version = version;
+            final Map<String, Set<String>> dataIdSets = new HashMap<String, Set<String>>();
+            for (final Privilege privilege : privileges) {
+                if (!dataIdSets.containsKey(privilege.getKey())) {
+                    dataIdSets.put(intern(privilege.getKey()), new HashSet<String>());
+                }
+                dataIdSets.get(privilege.getKey()).add(
+                        privilege.getDataId() != null ? privilege.getDataId() : NULL_DATA_ID);
+            }
+            dataIds = new HashMap<String, String[]>(dataIdSets.size() * 2);
+            for (final Map.Entry<String, Set<String>> entry : dataIdSets.entrySet()) {
+                final String[] sortedDataIds = entry.getValue().toArray(new String[entry.getValue().size()]);
+                Arrays.sort(sortedDataIds);
+                dataIds.put(entry.getKey(), sortedDataIds);
+            }
         }
-        if (!userPrivileges.get(company).get(user).containsKey(key)) {
-            return false;
+
+        /**
+         * Checks whether privilege exists.
+         * @param key the privilege key
+         * @param dataId the data ID
+         * @return true if privilege exists
+         */
+        private boolean contains(final String key, final String dataId) {
+            final String[] sortedDataIds = dataIds.get(key);
+            return sortedDataIds != null && Arrays.binarySearch(sortedDataIds,
+                    dataId != null ? dataId : NULL_DATA_ID) >= 0;
         }
-        return userPrivileges.get(company).get(user).get(key).contains(dataId);
     }
 
 }
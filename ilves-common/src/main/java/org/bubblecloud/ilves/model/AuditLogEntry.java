@@ -97,6 +97,10 @@ public final class AuditLogEntry implements Serializable {
         return auditLogEntryId;
     }
 
+    public void setAuditLogEntryId(String auditLogEntryId) {
+        this.auditLogEntryId = auditLogEntryId;
+    }
+
     public String getEvent() {
         return event;
     }
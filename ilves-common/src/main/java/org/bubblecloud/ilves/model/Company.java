@@ -125,6 +125,14 @@ public final class Company implements Serializable {
     @Column(nullable = true)
     private String gaTrackingId;
 
+    /** Comma separated CIDR list of remote addresses allowed to access the site. Empty allows all. */
+    @Column(nullable = true, length = 4096)
+    private String ipAllowList;
+
+    /** Comma separated CIDR list of remote addresses denied access to the site. */
+    @Column(nullable = true, length = 4096)
+    private String ipDenyList;
+
     /** Created time of the task. */
     @Temporal(TemporalType.TIMESTAMP)
     @Column(nullable = false)
@@ -514,6 +522,34 @@ public final class Company implements Serializable {
         this.gaTrackingId = gaTrackingId;
     }
 
+    /**
+     * @return the comma separated CIDR list of remote addresses allowed to access the site
+     */
+    public String getIpAllowList() {
+        return ipAllowList;
+    }
+
+    /**
+     * @param ipAllowList the comma separated CIDR list of remote addresses allowed to access the site
+     */
+    public void setIpAllowList(final String ipAllowList) {
+        this.ipAllowList = ipAllowList;
+    }
+
+    /**
+     * @return the comma separated CIDR list of remote addresses denied access to the site
+     */
+    public String getIpDenyList() {
+        return ipDenyList;
+    }
+
+    /**
+     * @param ipDenyList the comma separated CIDR list of remote addresses denied access to the site
+     */
+    public void setIpDenyList(final String ipDenyList) {
+        this.ipDenyList = ipDenyList;
+    }
+
     public String getGitHubClientId() {
         return gitHubClientId;
     }
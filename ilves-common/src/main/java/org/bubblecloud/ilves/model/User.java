@@ -84,6 +84,10 @@ public final class User implements Serializable {
     @Column(nullable = true)
     private String certificate;
 
+    /** Normalized DN of the user in user directory. Null corresponds to user not managed by user directory. */
+    @Column(nullable = true)
+    private String directoryDn;
+
     /** Date of password expiration. Null corresponds to password never expiring. */
     @Temporal(TemporalType.DATE)
     @Column(nullable = true)
@@ -323,6 +327,22 @@ public final class User implements Serializable {
         this.certificate = certificate;
     }
 
+    /**
+     * Gets the normalized DN of the user in user directory. Null corresponds to user not managed by user directory.
+     * @return the directory DN
+     */
+    public String getDirectoryDn() {
+        return directoryDn;
+    }
+
+    /**
+     * Sets the normalized DN of the user in user directory. Null corresponds to user not managed by user directory.
+     * @param directoryDn the directory DN
+     */
+    public void setDirectoryDn(final String directoryDn) {
+        this.directoryDn = directoryDn;
+    }
+
     /**
      * Gets the date of password expiration. Null corresponds to password never expiring.
      * @return the password expiration date.
@@ -62,6 +62,10 @@ public final class Asset implements Serializable {
     @Column(nullable = false)
     private String description;
 
+    /** SHA-256 hash of content in hex or null if content is stored in database only. */
+    @Column(length = 64)
+    private String contentHash;
+
     /** Created time of the task. */
     @Temporal(TemporalType.TIMESTAMP)
     @Column(nullable = false)
@@ -135,6 +139,14 @@ public final class Asset implements Serializable {
         this.description = description;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
     public Date getCreated() {
         return created;
     }
@@ -0,0 +1,524 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Size bounded on-disk cache of asset contents. Contents are stored once per SHA-256 content
+ * hash in blobs directory and cache keys refer to content hashes with small reference files
+ * in refs directory so that identical assets share single file. Files are written to temp
+ * directory and atomically renamed in place. Concurrent misses of the same key load content
+ * only once. Least recently used contents are evicted when cache grows over maximum size
+ * and access order is persisted as blob file modification time which is used to rebuild the
+ * index on startup.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AssetCache {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AssetCache.class);
+    /** The minimum interval of persisting blob access time in milliseconds. */
+    private static final long ACCESS_TIME_UPDATE_INTERVAL_MILLIS = 60 * 1000;
+    /** The reference file charset. */
+    private static final Charset REF_CHARSET = Charset.forName("US-ASCII");
+
+    /** The shared asset cache. */
+    private static AssetCache instance;
+
+    /** The blobs directory. */
+    private final File blobsDirectory;
+    /** The refs directory. */
+    private final File refsDirectory;
+    /** The temp directory. */
+    private final File tempDirectory;
+    /** The maximum total size of blobs in bytes. */
+    private final long maxBytes;
+
+    /** The content hashes by key. */
+    private final ConcurrentHashMap<String, String> refs = new ConcurrentHashMap<String, String>();
+    /** The blobs by content hash in least recently used order. Guarded by this. */
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<String, Blob>(16, 0.75f, true);
+    /** The total size of blobs in bytes. Guarded by this. */
+    private long totalBytes;
+    /** The loads in progress by key. */
+    private final ConcurrentHashMap<String, FutureTask<String>> loads =
+            new ConcurrentHashMap<String, FutureTask<String>>();
+
+    /**
+     * Gets the shared asset cache configured with asset-cache-path and asset-cache-max-bytes properties.
+     * @return the asset cache
+     */
+    public static synchronized AssetCache getInstance() {
+        if (instance == null) {
+            instance = new AssetCache(new File(PropertiesUtil.getProperty("site", "asset-cache-path")),
+                    Long.parseLong(PropertiesUtil.getProperty("site", "asset-cache-max-bytes")));
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor which scans cache directory and rebuilds the index.
+     * @param directory the cache directory
+     * @param maxBytes the maximum total size of cached contents in bytes
+     */
+    public AssetCache(final File directory, final long maxBytes) {
+        this.blobsDirectory = new File(directory, "blobs");
+        this.refsDirectory = new File(directory, "refs");
+        this.tempDirectory = new File(directory, "tmp");
+        this.maxBytes = maxBytes;
+        blobsDirectory.mkdirs();
+        refsDirectory.mkdirs();
+        tempDirectory.mkdirs();
+        scan();
+    }
+
+    /**
+     * Opens cached content of key. Content is loaded with loader on miss.
+     * @param key the file name safe cache key which changes whenever content changes
+     * @param loader the loader
+     * @return the input stream of cached content or null if loader did not find content
+     * @throws IOException if loading or opening content fails
+     */
+    public FileInputStream open(final String key, final Loader loader) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String hash = refs.get(key);
+            if (hash == null) {
+                hash = load(key, loader);
+                if (hash == null) {
+                    return null;
+                }
+            }
+            final FileInputStream inputStream = openBlob(hash);
+            if (inputStream != null) {
+                return inputStream;
+            }
+            // Blob was evicted after reference was read.
+            refs.remove(key, hash);
+        }
+        throw new IOException("Asset cache content evicted while opening: " + key);
+    }
+
+    /**
+     * Gets total size of cached contents.
+     * @return the total size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Opens blob and marks it recently used.
+     * @param hash the content hash
+     * @return the input stream or null if blob is not cached
+     * @throws IOException if opening blob fails
+     */
+    private synchronized FileInputStream openBlob(final String hash) throws IOException {
+        final Blob blob = blobs.get(hash);
+        if (blob == null) {
+            return null;
+        }
+        final File file = new File(blobsDirectory, hash);
+        final long now = System.currentTimeMillis();
+        if (now - blob.accessTimeMillis > ACCESS_TIME_UPDATE_INTERVAL_MILLIS) {
+            blob.accessTimeMillis = now;
+            file.setLastModified(now);
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Loads content of key once even if multiple threads miss the same key concurrently.
+     * @param key the key
+     * @param loader the loader
+     * @return the content hash or null if loader did not find content
+     * @throws IOException if loading fails
+     */
+    private String load(final String key, final Loader loader) throws IOException {
+        final FutureTask<String> newLoad = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return fill(key, loader);
+            }
+        });
+        final FutureTask<String> existingLoad = loads.putIfAbsent(key, newLoad);
+        final FutureTask<String> load = existingLoad != null ? existingLoad : newLoad;
+        if (existingLoad == null) {
+            try {
+                newLoad.run();
+            } finally {
+                loads.remove(key, newLoad);
+            }
+        }
+        try {
+            return load.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for asset cache load: " + key, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Asset cache load failed: " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Loads content to spool and commits it under key.
+     * @param key the key
+     * @param loader the loader
+     * @return the content hash or null if loader did not find content
+     * @throws IOException if loading or writing fails
+     */
+    private String fill(final String key, final Loader loader) throws IOException {
+        final Spool spool = newSpool();
+        try {
+            final boolean found;
+            try {
+                found = loader.load(spool);
+            } finally {
+                spool.close();
+            }
+            if (!found) {
+                return null;
+            }
+            spool.commit(key);
+            return spool.getHash();
+        } finally {
+            spool.discard();
+        }
+    }
+
+    /**
+     * Creates spool for writing content to cache. Spooled content can be read back before
+     * it is committed to cache under key.
+     * @return the spool
+     * @throws IOException if creating temp file fails
+     */
+    public Spool newSpool() throws IOException {
+        return new Spool(File.createTempFile("blob", ".tmp", tempDirectory));
+    }
+
+    /**
+     * Moves spooled content to blobs directory unless identical content is already
+     * cached and writes reference of key.
+     * @param spool the closed spool
+     * @param key the key
+     * @throws IOException if moving or writing fails
+     */
+    private synchronized void commit(final Spool spool, final String key) throws IOException {
+        final String hash = spool.getHash();
+        if (!blobs.containsKey(hash)) {
+            move(spool.file, new File(blobsDirectory, hash));
+            blobs.put(hash, new Blob(spool.length, System.currentTimeMillis()));
+            totalBytes += spool.length;
+        }
+        writeRef(key, hash);
+        blobs.get(hash).keys.add(key);
+        final String previousHash = refs.put(key, hash);
+        if (previousHash != null && !previousHash.equals(hash) && blobs.containsKey(previousHash)) {
+            blobs.get(previousHash).keys.remove(key);
+        }
+        evict(hash);
+    }
+
+    /**
+     * Writes reference file of key atomically.
+     * @param key the key
+     * @param hash the content hash
+     * @throws IOException if writing fails
+     */
+    private void writeRef(final String key, final String hash) throws IOException {
+        final File tempFile = File.createTempFile("ref", ".tmp", tempDirectory);
+        try {
+            Files.write(tempFile.toPath(), hash.getBytes(REF_CHARSET));
+            move(tempFile, new File(refsDirectory, key));
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used blobs and their references until cache fits maximum size.
+     * @param retainedHash the hash of blob which is not evicted
+     */
+    private synchronized void evict(final String retainedHash) {
+        final Iterator<Map.Entry<String, Blob>> iterator = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Blob> entry = iterator.next();
+            if (entry.getKey().equals(retainedHash)) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= entry.getValue().size;
+            for (final String key : entry.getValue().keys) {
+                if (refs.remove(key, entry.getKey())) {
+                    new File(refsDirectory, key).delete();
+                }
+            }
+            if (!new File(blobsDirectory, entry.getKey()).delete()) {
+                LOGGER.warn("Unable to delete evicted asset cache blob: " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds index from cache directory. Temp files are removed, references to missing
+     * blobs are removed and blobs are ordered by last access time.
+     */
+    private synchronized void scan() {
+        for (final File file : listFiles(tempDirectory)) {
+            file.delete();
+        }
+
+        final List<File> blobFiles = listFiles(blobsDirectory);
+        Collections.sort(blobFiles, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                final long aModified = a.lastModified();
+                final long bModified = b.lastModified();
+                return aModified < bModified ? -1 : aModified == bModified ? 0 : 1;
+            }
+        });
+        for (final File file : blobFiles) {
+            final Blob blob = new Blob(file.length(), file.lastModified());
+            blobs.put(file.getName(), blob);
+            totalBytes += blob.size;
+        }
+
+        for (final File file : listFiles(refsDirectory)) {
+            try {
+                final String hash = new String(Files.readAllBytes(file.toPath()), REF_CHARSET).trim();
+                final Blob blob = blobs.get(hash);
+                if (blob == null) {
+                    file.delete();
+                    continue;
+                }
+                blob.keys.add(file.getName());
+                refs.put(file.getName(), hash);
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to read asset cache reference: " + file.getName(), e);
+                file.delete();
+            }
+        }
+
+        evict(null);
+        LOGGER.info("Asset cache index rebuilt with " + blobs.size() + " contents and " + refs.size()
+                + " references totaling " + totalBytes + " bytes.");
+    }
+
+    /**
+     * Lists files of directory.
+     * @param directory the directory
+     * @return the files
+     */
+    private static List<File> listFiles(final File directory) {
+        final File[] files = directory.listFiles();
+        return files != null ? new ArrayList<File>(Arrays.asList(files)) : new ArrayList<File>();
+    }
+
+    /**
+     * Moves file atomically replacing existing target.
+     * @param source the source file
+     * @param target the target file
+     * @throws IOException if move fails
+     */
+    private static void move(final File source, final File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Constructs content hash digest.
+     * @return the message digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets cache key of asset content. Key changes whenever asset is modified.
+     * @param asset the asset
+     * @return the cache key
+     */
+    public static String getKey(final Asset asset) {
+        return asset.getAssetId() + "-" + Long.toHexString(asset.getModified().getTime());
+    }
+
+    /**
+     * Output stream which writes content to temp file of cache while computing content hash.
+     */
+    public final class Spool extends OutputStream {
+        /** The temp file. */
+        private final File file;
+        /** The content hash digest. */
+        private final MessageDigest digest = newDigest();
+        /** The output stream. */
+        private final OutputStream outputStream;
+        /** The number of bytes written. */
+        private long length;
+        /** The content hash or null if spool is not closed. */
+        private String hash;
+
+        /**
+         * Constructor which opens temp file.
+         * @param file the temp file
+         * @throws IOException if opening temp file fails
+         */
+        private Spool(final File file) throws IOException {
+            this.file = file;
+            this.outputStream = new DigestOutputStream(new FileOutputStream(file), digest);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            outputStream.write(b);
+            length++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int count) throws IOException {
+            outputStream.write(bytes, offset, count);
+            length += count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (hash == null) {
+                outputStream.close();
+                hash = Hex.encodeHexString(digest.digest());
+            }
+        }
+
+        /**
+         * @return the number of bytes written
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the SHA-256 content hash in hex after spool is closed
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Opens spooled content for reading before commit.
+         * @return the input stream
+         * @throws IOException if opening fails
+         */
+        public FileInputStream openInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        /**
+         * Commits closed spool to cache under key. Spool can not be used after commit.
+         * @param key the file name safe cache key
+         * @throws IOException if committing fails
+         */
+        public void commit(final String key) throws IOException {
+            if (hash == null) {
+                throw new IllegalStateException("Spool not closed.");
+            }
+            AssetCache.this.commit(this, key);
+        }
+
+        /**
+         * Discards spool if it has not been committed.
+         */
+        public void discard() {
+            try {
+                close();
+            } catch (final IOException e) {
+                LOGGER.warn("Error closing asset cache spool.", e);
+            }
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Loader of content on cache miss.
+     */
+    public interface Loader {
+        /**
+         * Writes content to output stream.
+         * @param outputStream the output stream
+         * @return true if content was found and written
+         * @throws IOException if loading fails
+         */
+        boolean load(final OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Cached content.
+     */
+    private static final class Blob {
+        /** The size in bytes. */
+        private final long size;
+        /** The keys referring to blob. */
+        private final Set<String> keys = new HashSet<String>();
+        /** The last persisted access time in milliseconds. */
+        private long accessTimeMillis;
+
+        /**
+         * Constructor which sets size and access time.
+         * @param size the size in bytes
+         * @param accessTimeMillis the access time in milliseconds
+         */
+        private Blob(final long size, final long accessTimeMillis) {
+            this.size = size;
+            this.accessTimeMillis = accessTimeMillis;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Store of asset contents. Content addressed stores locate content by SHA-256 content hash
+ * of the asset so that identical uploads share storage and content can be verified on write.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public interface AssetStore {
+
+    /**
+     * Writes asset content. Invoked inside entity manager transaction.
+     * @param entityManager the entity manager
+     * @param asset the asset with asset ID and content hash set
+     * @param inputStream the content input stream
+     * @param length the content length in bytes
+     * @throws IOException if writing fails or content does not match content hash
+     */
+    void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+               final long length) throws IOException;
+
+    /**
+     * Reads asset content. Nothing is written to output stream if content is not found.
+     * @param entityManager the entity manager
+     * @param asset the asset
+     * @param outputStream the output stream to write content to
+     * @return true if content was found
+     * @throws IOException if reading fails
+     */
+    boolean read(final EntityManager entityManager, final Asset asset, final OutputStream outputStream)
+            throws IOException;
+
+}
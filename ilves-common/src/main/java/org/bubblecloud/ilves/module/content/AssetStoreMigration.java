@@ -0,0 +1,283 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Online migration of asset contents from database to configured asset store. Assets are
+ * migrated in batches ordered by asset ID while site is running, each batch continuing after
+ * the last asset ID of the previous one so that failing assets do not stall the round. Content
+ * of each asset is copied to the store, read back and verified against its SHA-256 hash before
+ * database copy is cleared. Assets which fail or are modified during migration are left in
+ * database and migrated on next round.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AssetStoreMigration {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AssetStoreMigration.class);
+
+    /** The migration executor or null if not started. */
+    private static ScheduledExecutorService executor;
+
+    /**
+     * Starts periodic asset store migration if enabled in site properties.
+     * @param entityManagerFactory the entity manager factory
+     */
+    public static synchronized void start(final EntityManagerFactory entityManagerFactory) {
+        if (executor != null || !"true".equals(getProperty("asset-store-migration", "false"))) {
+            return;
+        }
+        if (AssetStores.isDatabaseStore()) {
+            LOGGER.warn("Asset store migration enabled but asset store is database.");
+            return;
+        }
+        final AssetStore store = AssetStores.getStore();
+        final int batchSize = Integer.parseInt(getProperty("asset-store-migration-batch-size", "100"));
+        final long intervalMillis = Long.parseLong(getProperty("asset-store-migration-interval-millis", "600000"));
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ilves-asset-store-migration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                try {
+                    final int migrated = migrate(entityManager, store, batchSize);
+                    if (migrated > 0) {
+                        LOGGER.info("Migrated " + migrated + " assets to asset store.");
+                    }
+                } catch (final Exception e) {
+                    LOGGER.error("Error in asset store migration.", e);
+                } finally {
+                    entityManager.close();
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic asset store migration.
+     */
+    public static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Migrates all assets which still have contents in database in batches ordered by asset ID.
+     * Assets which fail migration are logged, left in database and skipped for the rest of the round.
+     * @param entityManager the entity manager
+     * @param store the asset store to migrate to
+     * @param batchSize the maximum number of assets listed per batch
+     * @return the number of assets migrated
+     * @throws SQLException if listing assets fails
+     */
+    static int migrate(final EntityManager entityManager, final AssetStore store, final int batchSize)
+            throws SQLException {
+        int migrated = 0;
+        String lastAssetId = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            final List<String> assetIds = getAssetIdsWithData(entityManager, lastAssetId, batchSize);
+            for (final String assetId : assetIds) {
+                try {
+                    if (migrateAsset(entityManager, store, assetId)) {
+                        migrated++;
+                    }
+                } catch (final Exception e) {
+                    LOGGER.error("Error migrating asset to asset store: " + assetId, e);
+                } finally {
+                    if (entityManager.getTransaction().isActive()) {
+                        entityManager.getTransaction().rollback();
+                    }
+                }
+            }
+            if (assetIds.size() < batchSize) {
+                break;
+            }
+            lastAssetId = assetIds.get(assetIds.size() - 1);
+        }
+        return migrated;
+    }
+
+    /**
+     * Lists IDs of assets which still have contents in database in asset ID order.
+     * @param entityManager the entity manager
+     * @param afterAssetId the asset ID to continue after or null to start from beginning
+     * @param batchSize the maximum number of asset IDs to list
+     * @return the asset IDs
+     * @throws SQLException if SQL exception occurs
+     */
+    private static List<String> getAssetIdsWithData(final EntityManager entityManager, final String afterAssetId,
+                                                    final int batchSize) throws SQLException {
+        final List<String> assetIds = new ArrayList<String>();
+        entityManager.getTransaction().begin();
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(afterAssetId == null
+                    ? "SELECT assetid FROM asset WHERE data IS NOT NULL ORDER BY assetid"
+                    : "SELECT assetid FROM asset WHERE data IS NOT NULL AND assetid > ? ORDER BY assetid");
+            try {
+                if (afterAssetId != null) {
+                    preparedStatement.setString(1, afterAssetId);
+                }
+                preparedStatement.setMaxRows(batchSize);
+                final ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    assetIds.add(resultSet.getString(1));
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        } finally {
+            entityManager.getTransaction().rollback();
+        }
+        return assetIds;
+    }
+
+    /**
+     * Migrates contents of single asset from database to asset store.
+     * @param entityManager the entity manager
+     * @param store the asset store
+     * @param assetId the asset ID
+     * @return true if asset was migrated
+     * @throws IOException if copying or verification fails
+     * @throws SQLException if SQL exception occurs
+     */
+    private static boolean migrateAsset(final EntityManager entityManager, final AssetStore store,
+                                        final String assetId) throws IOException, SQLException {
+        final File tempFile = File.createTempFile("asset-migration", ".tmp");
+        try {
+            // Copy content from database to temp file and hash it.
+            final MessageDigest digest = FileSystemAssetStore.newDigest();
+            final Timestamp modified;
+            final long length;
+            entityManager.getTransaction().begin();
+            try {
+                final Connection connection = entityManager.unwrap(Connection.class);
+                final PreparedStatement preparedStatement = connection.prepareStatement(
+                        "SELECT modified, data FROM asset WHERE assetid = ? AND data IS NOT NULL");
+                try {
+                    preparedStatement.setString(1, assetId);
+                    final ResultSet resultSet = preparedStatement.executeQuery();
+                    if (!resultSet.next()) {
+                        return false;
+                    }
+                    modified = resultSet.getTimestamp(1);
+                    final InputStream inputStream = resultSet.getBinaryStream(2);
+                    final OutputStream outputStream = new DigestOutputStream(new FileOutputStream(tempFile), digest);
+                    try {
+                        length = IOUtils.copyLarge(inputStream, outputStream);
+                    } finally {
+                        outputStream.close();
+                        inputStream.close();
+                    }
+                } finally {
+                    preparedStatement.close();
+                }
+            } finally {
+                entityManager.getTransaction().rollback();
+            }
+
+            final Asset asset = new Asset();
+            asset.setAssetId(assetId);
+            asset.setContentHash(Hex.encodeHexString(digest.digest()));
+
+            // Write content to store and verify it by reading it back.
+            final InputStream inputStream = new FileInputStream(tempFile);
+            try {
+                store.write(entityManager, asset, inputStream, length);
+            } finally {
+                inputStream.close();
+            }
+            final MessageDigest verifyDigest = FileSystemAssetStore.newDigest();
+            final CountingOutputStream verifyOutputStream = new CountingOutputStream(
+                    new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, verifyDigest));
+            if (!store.read(entityManager, asset, verifyOutputStream)
+                    || verifyOutputStream.getByteCount() != length
+                    || !asset.getContentHash().equals(Hex.encodeHexString(verifyDigest.digest()))) {
+                throw new IOException("Asset content verification failed after write to asset store: " + assetId);
+            }
+
+            // Clear database copy unless asset was modified or its content was moved to store during migration.
+            entityManager.getTransaction().begin();
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "UPDATE asset SET contenthash = ?, data = NULL WHERE assetid = ? AND modified = ?"
+                            + " AND data IS NOT NULL AND (contenthash IS NULL OR contenthash = ?)");
+            final int updated;
+            try {
+                preparedStatement.setString(1, asset.getContentHash());
+                preparedStatement.setString(2, assetId);
+                preparedStatement.setTimestamp(3, modified);
+                preparedStatement.setString(4, asset.getContentHash());
+                updated = preparedStatement.executeUpdate();
+            } finally {
+                preparedStatement.close();
+            }
+            entityManager.getTransaction().commit();
+            return updated == 1;
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Gets site property.
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value or default value if property is not set
+     */
+    private static String getProperty(final String key, final String defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        return value != null && value.trim().length() > 0 ? value.trim() : defaultValue;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Access to configured asset store. Contents of assets which have not been migrated from
+ * database to configured store are read from database.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AssetStores {
+    /** The database asset store. */
+    private static final AssetStore databaseStore = new DatabaseAssetStore();
+    /** The configured asset store. */
+    private static AssetStore store;
+
+    /**
+     * Gets asset store configured with asset-store property.
+     * @return the asset store
+     */
+    public static synchronized AssetStore getStore() {
+        if (store == null) {
+            final String type = getProperty("asset-store", "database");
+            if ("filesystem".equals(type)) {
+                store = new FileSystemAssetStore(new File(getProperty("asset-store-path", "./asset-store")));
+            } else if ("s3".equals(type)) {
+                store = new S3AssetStore(getProperty("asset-store-s3-endpoint", "https://s3.amazonaws.com"),
+                        getProperty("asset-store-s3-region", "us-east-1"),
+                        getProperty("asset-store-s3-bucket", null),
+                        getProperty("asset-store-s3-access-key", null),
+                        getProperty("asset-store-s3-secret-key", null));
+            } else if ("database".equals(type)) {
+                store = databaseStore;
+            } else {
+                throw new IllegalArgumentException("Unknown asset store: " + type);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return true if configured asset store is database
+     */
+    public static boolean isDatabaseStore() {
+        return getStore() == databaseStore;
+    }
+
+    /**
+     * Writes asset content to configured store. Content previously stored in database is
+     * cleared if configured store is not database. Invoked inside entity manager transaction.
+     * @param entityManager the entity manager
+     * @param asset the asset with asset ID and content hash set
+     * @param inputStream the content input stream
+     * @param length the content length in bytes
+     * @throws IOException if writing fails
+     */
+    public static void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+                             final long length) throws IOException {
+        getStore().write(entityManager, asset, inputStream, length);
+        if (isDatabaseStore()) {
+            return;
+        }
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "UPDATE asset SET data = NULL WHERE assetid = ?");
+            try {
+                preparedStatement.setString(1, asset.getAssetId());
+                preparedStatement.executeUpdate();
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Error clearing asset data: " + asset.getAssetId(), e);
+        }
+    }
+
+    /**
+     * Reads asset content from configured store or from database if content has not been migrated.
+     * @param entityManager the entity manager
+     * @param asset the asset
+     * @param outputStream the output stream to write content to
+     * @return true if content was found
+     * @throws IOException if reading fails
+     */
+    public static boolean read(final EntityManager entityManager, final Asset asset, final OutputStream outputStream)
+            throws IOException {
+        if (isDatabaseStore()) {
+            return databaseStore.read(entityManager, asset, outputStream);
+        }
+        if (getStore().read(entityManager, asset, outputStream)
+                || databaseStore.read(entityManager, asset, outputStream)) {
+            return true;
+        }
+
+        // Cached asset entity does not know content hash if asset was migrated after it was loaded.
+        final String contentHash = loadContentHash(entityManager, asset.getAssetId());
+        if (contentHash == null || contentHash.equals(asset.getContentHash())) {
+            return false;
+        }
+        final Asset migratedAsset = new Asset();
+        migratedAsset.setAssetId(asset.getAssetId());
+        migratedAsset.setContentHash(contentHash);
+        return getStore().read(entityManager, migratedAsset, outputStream);
+    }
+
+    /**
+     * Loads current content hash of asset from database.
+     * @param entityManager the entity manager
+     * @param assetId the asset ID
+     * @return the content hash or null if asset does not exist or does not have content hash
+     * @throws IOException if reading fails
+     */
+    private static String loadContentHash(final EntityManager entityManager, final String assetId)
+            throws IOException {
+        entityManager.getTransaction().begin();
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT contenthash FROM asset WHERE assetid = ?");
+            try {
+                preparedStatement.setString(1, assetId);
+                final ResultSet resultSet = preparedStatement.executeQuery();
+                return resultSet.next() ? resultSet.getString(1) : null;
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Error reading asset content hash: " + assetId, e);
+        } finally {
+            entityManager.getTransaction().rollback();
+        }
+    }
+
+    /**
+     * Gets site property.
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value or default value if property is not set
+     */
+    private static String getProperty(final String key, final String defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        return value != null && value.trim().length() > 0 ? value.trim() : defaultValue;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream receiving uploaded asset content in single pass. Maximum asset size is enforced
+ * while bytes arrive, MIME type is sniffed from leading bytes and content is spooled to asset
+ * cache while content hash is computed so that spool can be streamed to database and then
+ * committed to cache as is.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AssetUpload extends OutputStream {
+    /** The number of leading bytes used for MIME type sniffing. */
+    private static final int SNIFF_LENGTH = 16;
+    /** The generic binary MIME type. */
+    private static final String OCTET_STREAM = "application/octet-stream";
+    /** The ZIP MIME type which is also container of many more specific types. */
+    private static final String ZIP = "application/zip";
+
+    /** The spool. */
+    private final AssetCache.Spool spool;
+    /** The maximum size in bytes. */
+    private final long maximumSize;
+    /** The leading bytes. */
+    private final byte[] header = new byte[SNIFF_LENGTH];
+    /** The number of leading bytes received. */
+    private int headerLength;
+    /** True if upload was aborted due to maximum size. */
+    private boolean tooLarge;
+
+    /**
+     * Constructor which sets spool and maximum size.
+     * @param spool the asset cache spool
+     * @param maximumSize the maximum size in bytes
+     */
+    public AssetUpload(final AssetCache.Spool spool, final long maximumSize) {
+        this.spool = spool;
+        this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int count) throws IOException {
+        if (spool.getLength() + count > maximumSize) {
+            tooLarge = true;
+            throw new IOException("Asset exceeds maximum size of " + maximumSize + " bytes.");
+        }
+        if (headerLength < SNIFF_LENGTH) {
+            final int headerCount = Math.min(count, SNIFF_LENGTH - headerLength);
+            System.arraycopy(bytes, offset, header, headerLength, headerCount);
+            headerLength += headerCount;
+        }
+        spool.write(bytes, offset, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        spool.close();
+    }
+
+    /**
+     * @return the spool
+     */
+    public AssetCache.Spool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return the number of bytes received
+     */
+    public long getLength() {
+        return spool.getLength();
+    }
+
+    /**
+     * @return true if upload was aborted due to maximum size
+     */
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    /**
+     * Resolves MIME type of upload. Sniffed type is preferred over declared type unless
+     * sniffed type is generic container type and declared type is more specific.
+     * @param declaredType the MIME type declared by client or null
+     * @return the MIME type
+     */
+    public String resolveType(final String declaredType) {
+        final String sniffedType = sniffType(header, headerLength);
+        final boolean declaredGeneric = declaredType == null || declaredType.length() == 0
+                || declaredType.equals(OCTET_STREAM);
+        if (sniffedType != null && (declaredGeneric || !sniffedType.equals(ZIP))) {
+            return sniffedType;
+        }
+        return declaredGeneric ? OCTET_STREAM : declaredType;
+    }
+
+    /**
+     * Sniffs MIME type from leading bytes of content.
+     * @param header the leading bytes
+     * @param length the number of leading bytes
+     * @return the MIME type or null if type was not recognized
+     */
+    static String sniffType(final byte[] header, final int length) {
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a)) {
+            return "image/png";
+        }
+        if (startsWith(header, length, 0, 0xff, 0xd8, 0xff)) {
+            return "image/jpeg";
+        }
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8', '7', 'a')
+                || startsWith(header, length, 0, 'G', 'I', 'F', '8', '9', 'a')) {
+            return "image/gif";
+        }
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F') && startsWith(header, length, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        if (startsWith(header, length, 0, '%', 'P', 'D', 'F', '-')) {
+            return "application/pdf";
+        }
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p')) {
+            return "video/mp4";
+        }
+        if (startsWith(header, length, 0, 0x1a, 0x45, 0xdf, 0xa3)) {
+            return "video/webm";
+        }
+        if (startsWith(header, length, 0, 'O', 'g', 'g', 'S')) {
+            return "audio/ogg";
+        }
+        if (startsWith(header, length, 0, 'I', 'D', '3')) {
+            return "audio/mpeg";
+        }
+        if (startsWith(header, length, 0, 'P', 'K', 0x03, 0x04)) {
+            return ZIP;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether leading bytes contain signature at offset.
+     * @param header the leading bytes
+     * @param length the number of leading bytes
+     * @param offset the signature offset
+     * @param signature the signature bytes
+     * @return true if signature matches
+     */
+    private static boolean startsWith(final byte[] header, final int length, final int offset,
+                                      final int... signature) {
+        if (length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xff) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
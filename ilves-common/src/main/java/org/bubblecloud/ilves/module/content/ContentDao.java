@@ -23,6 +23,8 @@ import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Content data access object.
@@ -35,6 +37,42 @@ public class ContentDao {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ContentDao.class);
 
+    /** The content revisions of companies. */
+    private static final ConcurrentHashMap<String, AtomicLong> contentRevisions =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Gets content revision of company. Revision is incremented whenever content of the company changes.
+     * @param owner the owning company
+     * @return the content revision
+     */
+    public static long getContentRevision(final Company owner) {
+        return getContentRevisionCounter(owner).get();
+    }
+
+    /**
+     * Increments content revision of company.
+     * @param owner the owning company
+     */
+    public static void incrementContentRevision(final Company owner) {
+        getContentRevisionCounter(owner).incrementAndGet();
+    }
+
+    /**
+     * Gets content revision counter of company.
+     * @param owner the owning company
+     * @return the content revision counter
+     */
+    private static AtomicLong getContentRevisionCounter(final Company owner) {
+        final AtomicLong counter = contentRevisions.get(owner.getCompanyId());
+        if (counter != null) {
+            return counter;
+        }
+        final AtomicLong newCounter = new AtomicLong();
+        final AtomicLong existingCounter = contentRevisions.putIfAbsent(owner.getCompanyId(), newCounter);
+        return existingCounter != null ? existingCounter : newCounter;
+    }
+
     /**
      * Saves content to database.
      * @param entityManager the entity manager
@@ -51,6 +89,7 @@ public class ContentDao {
 
             entityManager.persist(content);
             transaction.commit();
+            incrementContentRevision(content.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in add content.", e);
             if (transaction.isActive()) {
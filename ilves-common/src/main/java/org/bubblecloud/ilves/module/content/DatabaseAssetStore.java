@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Asset store keeping asset contents in data column of asset table.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class DatabaseAssetStore implements AssetStore {
+
+    @Override
+    public void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+                      final long length) throws IOException {
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "UPDATE asset SET data = ? WHERE assetid = ?");
+            try {
+                preparedStatement.setBinaryStream(1, inputStream, length);
+                preparedStatement.setString(2, asset.getAssetId());
+                preparedStatement.executeUpdate();
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Error writing asset data: " + asset.getAssetId(), e);
+        }
+    }
+
+    @Override
+    public boolean read(final EntityManager entityManager, final Asset asset, final OutputStream outputStream)
+            throws IOException {
+        final boolean transactionOwner = !entityManager.getTransaction().isActive();
+        if (transactionOwner) {
+            entityManager.getTransaction().begin();
+        }
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT data FROM asset WHERE assetid = ?");
+            try {
+                preparedStatement.setString(1, asset.getAssetId());
+                final ResultSet resultSet = preparedStatement.executeQuery();
+                try {
+                    if (!resultSet.next()) {
+                        return false;
+                    }
+                    final InputStream inputStream = resultSet.getBinaryStream(1);
+                    if (inputStream == null) {
+                        return false;
+                    }
+                    try {
+                        IOUtils.copy(inputStream, outputStream);
+                    } finally {
+                        inputStream.close();
+                    }
+                    return true;
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Error reading asset data: " + asset.getAssetId(), e);
+        } finally {
+            if (transactionOwner && entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import javax.persistence.EntityManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed asset store keeping asset contents in local file system. Content files
+ * are named by content hash and sharded to two levels of directories by hash prefix so
+ * that single directory does not grow too large. Content is written to temporary file,
+ * verified against content hash and then moved to place atomically.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class FileSystemAssetStore implements AssetStore {
+    /** The root directory. */
+    private final File directory;
+    /** The temp directory. */
+    private final File tempDirectory;
+
+    /**
+     * Constructor which sets root directory.
+     * @param directory the root directory
+     */
+    public FileSystemAssetStore(final File directory) {
+        this.directory = directory;
+        this.tempDirectory = new File(directory, "tmp");
+        tempDirectory.mkdirs();
+    }
+
+    @Override
+    public void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+                      final long length) throws IOException {
+        final String contentHash = asset.getContentHash();
+        if (contentHash == null) {
+            throw new IOException("Content hash missing: " + asset.getAssetId());
+        }
+        final File file = getFile(contentHash);
+        if (file.exists()) {
+            return;
+        }
+
+        final File tempFile = File.createTempFile("asset", ".tmp", tempDirectory);
+        try {
+            final MessageDigest digest = newDigest();
+            final OutputStream outputStream = new FileOutputStream(tempFile);
+            final long copiedLength;
+            try {
+                copiedLength = IOUtils.copyLarge(new DigestInputStream(inputStream, digest), outputStream);
+            } finally {
+                outputStream.close();
+            }
+            if (copiedLength != length || !contentHash.equals(Hex.encodeHexString(digest.digest()))) {
+                throw new IOException("Asset content does not match content hash: " + asset.getAssetId());
+            }
+            file.getParentFile().mkdirs();
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Override
+    public boolean read(final EntityManager entityManager, final Asset asset, final OutputStream outputStream)
+            throws IOException {
+        if (asset.getContentHash() == null) {
+            return false;
+        }
+        final FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(getFile(asset.getContentHash()));
+        } catch (final IOException e) {
+            return false;
+        }
+        try {
+            IOUtils.copyLarge(inputStream, outputStream);
+        } finally {
+            inputStream.close();
+        }
+        return true;
+    }
+
+    /**
+     * Gets content file of content hash.
+     * @param contentHash the content hash
+     * @return the content file
+     * @throws IOException if content hash is not valid
+     */
+    File getFile(final String contentHash) throws IOException {
+        if (!isContentHash(contentHash)) {
+            throw new IOException("Invalid content hash: " + contentHash);
+        }
+        return new File(new File(new File(directory, contentHash.substring(0, 2)), contentHash.substring(2, 4)),
+                contentHash);
+    }
+
+    /**
+     * Checks whether string is hex encoded SHA-256 hash.
+     * @param contentHash the content hash
+     * @return true if string is valid content hash
+     */
+    static boolean isContentHash(final String contentHash) {
+        return contentHash != null && contentHash.matches("[0-9a-f]{64}");
+    }
+
+    /**
+     * Creates new SHA-256 message digest.
+     * @return the message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Resized and recompressed variant of image asset. Derivative parameters are normalized
+ * when parsed so that equivalent requests share the same key. Large source images are
+ * subsampled while decoding so that only roughly twice the target resolution is kept
+ * in memory and the rest of downscaling is done in halving steps for quality.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class ImageDerivative {
+    /** The maximum width and height of derivative. */
+    public static final int MAX_DIMENSION = 4096;
+    /** The maximum number of decoded source pixels. */
+    private static final long MAX_DECODED_PIXELS = 50L * 1000 * 1000;
+    /** The JPEG compression quality. */
+    private static final float JPEG_QUALITY = 0.85f;
+
+    /**
+     * The ways to fit image to requested width and height.
+     */
+    public enum Fit {
+        /** Scale down to fit inside width and height preserving aspect ratio. */
+        CONTAIN,
+        /** Scale to cover width and height preserving aspect ratio and crop center. */
+        COVER,
+        /** Scale to width and height ignoring aspect ratio. */
+        FILL
+    }
+
+    /** The requested width or 0 if not constrained. */
+    private final int width;
+    /** The requested height or 0 if not constrained. */
+    private final int height;
+    /** The fit. */
+    private final Fit fit;
+    /** The output format: jpeg or png. */
+    private final String format;
+
+    /**
+     * Constructor which sets normalized derivative parameters.
+     * @param width the width or 0 if not constrained
+     * @param height the height or 0 if not constrained
+     * @param fit the fit
+     * @param format the output format
+     */
+    private ImageDerivative(final int width, final int height, final Fit fit, final String format) {
+        this.width = width;
+        this.height = height;
+        this.fit = fit;
+        this.format = format;
+    }
+
+    /**
+     * Parses and normalizes derivative parameters.
+     * @param width the width parameter or null
+     * @param height the height parameter or null
+     * @param fit the fit parameter or null
+     * @param format the format parameter or null
+     * @param sourceType the MIME type of source image
+     * @return the derivative or null if no derivative parameters were given
+     * @throws IllegalArgumentException if parameters are not valid
+     */
+    public static ImageDerivative parse(final String width, final String height, final String fit,
+                                        final String format, final String sourceType) {
+        if (width == null && height == null && fit == null && format == null) {
+            return null;
+        }
+        final int parsedWidth = parseDimension(width);
+        final int parsedHeight = parseDimension(height);
+
+        Fit parsedFit = Fit.CONTAIN;
+        if (fit != null) {
+            try {
+                parsedFit = Fit.valueOf(fit.toUpperCase());
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid fit: " + fit);
+            }
+        }
+        if (parsedWidth == 0 || parsedHeight == 0) {
+            // Cover and fill need both dimensions and are equal to contain otherwise.
+            parsedFit = Fit.CONTAIN;
+        }
+
+        final String parsedFormat;
+        if (format == null) {
+            parsedFormat = "image/png".equals(sourceType) || "image/gif".equals(sourceType) ? "png" : "jpeg";
+        } else if ("jpeg".equals(format) || "jpg".equals(format)) {
+            parsedFormat = "jpeg";
+        } else if ("png".equals(format)) {
+            parsedFormat = "png";
+        } else {
+            throw new IllegalArgumentException("Invalid format: " + format);
+        }
+
+        return new ImageDerivative(parsedWidth, parsedHeight, parsedFit, parsedFormat);
+    }
+
+    /**
+     * Parses width or height parameter.
+     * @param dimension the dimension parameter or null
+     * @return the dimension or 0 if not given
+     */
+    private static int parseDimension(final String dimension) {
+        if (dimension == null) {
+            return 0;
+        }
+        final int value;
+        try {
+            value = Integer.parseInt(dimension);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid dimension: " + dimension);
+        }
+        if (value < 1 || value > MAX_DIMENSION) {
+            throw new IllegalArgumentException("Dimension out of range: " + dimension);
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether derivatives can be generated from images of given MIME type.
+     * @param type the MIME type
+     * @return true if type is supported
+     */
+    public static boolean isSupportedType(final String type) {
+        return type != null && type.startsWith("image/") && ImageIO.getImageReadersByMIMEType(type).hasNext();
+    }
+
+    /**
+     * Gets file name safe key which is unique for normalized derivative parameters.
+     * @return the key
+     */
+    public String getKey() {
+        return width + "x" + height + "-" + fit.name().toLowerCase() + "." + format;
+    }
+
+    /**
+     * @return the MIME type of derivative
+     */
+    public String getContentType() {
+        return "image/" + format;
+    }
+
+    /**
+     * Generates derivative from source image.
+     * @param inputStream the source image input stream
+     * @param outputStream the output stream to write derivative to
+     * @throws IOException if source image can not be decoded or derivative can not be written
+     */
+    public void generate(final InputStream inputStream, final OutputStream outputStream) throws IOException {
+        final BufferedImage source;
+        final int[] size;
+        final ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream);
+        if (imageInputStream == null) {
+            throw new IOException("Unable to read image.");
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format.");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                final int sourceWidth = reader.getWidth(0);
+                final int sourceHeight = reader.getHeight(0);
+                size = getSize(sourceWidth, sourceHeight);
+                final int subsampling = Math.max(1, Math.min(sourceWidth / (2 * size[0]),
+                        sourceHeight / (2 * size[1])));
+                if ((long) sourceWidth * sourceHeight / ((long) subsampling * subsampling) > MAX_DECODED_PIXELS) {
+                    throw new IOException("Image too large: " + sourceWidth + "x" + sourceHeight);
+                }
+                final ImageReadParam readParam = reader.getDefaultReadParam();
+                readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                source = reader.read(0, readParam);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageInputStream.close();
+        }
+
+        // Cover crops center of source to aspect ratio of derivative before scaling.
+        BufferedImage cropped = source;
+        if (fit == Fit.COVER) {
+            final double scale = Math.max((double) width / source.getWidth(), (double) height / source.getHeight());
+            final int cropWidth = Math.min(source.getWidth(), Math.max(1, (int) Math.round(width / scale)));
+            final int cropHeight = Math.min(source.getHeight(), Math.max(1, (int) Math.round(height / scale)));
+            cropped = source.getSubimage((source.getWidth() - cropWidth) / 2, (source.getHeight() - cropHeight) / 2,
+                    cropWidth, cropHeight);
+        }
+
+        final BufferedImage scaled = scale(cropped, size[2], size[3]);
+        final boolean opaque = "jpeg".equals(format);
+        final BufferedImage target = new BufferedImage(size[2], size[3],
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = target.createGraphics();
+        try {
+            if (opaque) {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, size[2], size[3]);
+            }
+            graphics.drawImage(scaled, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        write(target, outputStream);
+    }
+
+    /**
+     * Calculates size of whole source image when scaled for derivative and size of derivative.
+     * The former is larger than the latter when cover fit crops source.
+     * @param sourceWidth the source width
+     * @param sourceHeight the source height
+     * @return the scaled source width, scaled source height, derivative width and derivative height
+     */
+    int[] getSize(final int sourceWidth, final int sourceHeight) {
+        if (fit == Fit.FILL) {
+            return new int[] {width, height, width, height};
+        }
+        if (fit == Fit.COVER) {
+            final double scale = Math.max((double) width / sourceWidth, (double) height / sourceHeight);
+            return new int[] {(int) Math.min(Integer.MAX_VALUE / 2, Math.max(width, Math.round(sourceWidth * scale))),
+                    (int) Math.min(Integer.MAX_VALUE / 2, Math.max(height, Math.round(sourceHeight * scale))),
+                    width, height};
+        }
+        double scale = 1;
+        if (width > 0) {
+            scale = Math.min(scale, (double) width / sourceWidth);
+        }
+        if (height > 0) {
+            scale = Math.min(scale, (double) height / sourceHeight);
+        }
+        final int scaledWidth = Math.max(1, (int) Math.round(sourceWidth * scale));
+        final int scaledHeight = Math.max(1, (int) Math.round(sourceHeight * scale));
+        return new int[] {scaledWidth, scaledHeight, scaledWidth, scaledHeight};
+    }
+
+    /**
+     * Scales image to given size. Downscaling is done in halving steps with bilinear
+     * interpolation to avoid aliasing.
+     * @param image the image
+     * @param targetWidth the target width
+     * @param targetHeight the target height
+     * @return the scaled image
+     */
+    private static BufferedImage scale(final BufferedImage image, final int targetWidth, final int targetHeight) {
+        BufferedImage scaled = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = currentWidth / 2 >= targetWidth ? currentWidth / 2 : targetWidth;
+            currentHeight = currentHeight / 2 >= targetHeight ? currentHeight / 2 : targetHeight;
+            final BufferedImage step = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(scaled, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            scaled = step;
+        } while (currentWidth != targetWidth || currentHeight != targetHeight);
+        return scaled;
+    }
+
+    /**
+     * Encodes image in derivative format.
+     * @param image the image
+     * @param outputStream the output stream
+     * @throws IOException if encoding fails
+     */
+    private void write(final BufferedImage image, final OutputStream outputStream) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        final ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream);
+        try {
+            writer.setOutput(imageOutputStream);
+            final ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                writeParam.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+            imageOutputStream.close();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Content addressed asset store keeping asset contents as objects of S3 compatible object
+ * storage bucket. Objects are named by content hash and requests are path style and signed
+ * with AWS signature version 4. Content hash is sent as payload hash so that storage
+ * verifies content on write.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class S3AssetStore implements AssetStore {
+    /** The signature algorithm. */
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    /** The SHA-256 hash of empty payload. */
+    private static final String EMPTY_PAYLOAD_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    /** The UTF-8 charset. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The connect and read timeout in milliseconds. */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    /** The endpoint URL without trailing slash. */
+    private final String endpoint;
+    /** The region. */
+    private final String region;
+    /** The bucket. */
+    private final String bucket;
+    /** The access key ID. */
+    private final String accessKey;
+    /** The secret access key. */
+    private final String secretKey;
+
+    /**
+     * Constructor which sets storage endpoint, bucket and credentials.
+     * @param endpoint the endpoint URL
+     * @param region the region
+     * @param bucket the bucket
+     * @param accessKey the access key ID
+     * @param secretKey the secret access key
+     */
+    public S3AssetStore(final String endpoint, final String region, final String bucket,
+                        final String accessKey, final String secretKey) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    @Override
+    public void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+                      final long length) throws IOException {
+        final String contentHash = asset.getContentHash();
+        if (!FileSystemAssetStore.isContentHash(contentHash)) {
+            throw new IOException("Content hash missing: " + asset.getAssetId());
+        }
+        final HttpURLConnection connection = openConnection("PUT", contentHash, contentHash);
+        try {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            final OutputStream outputStream = connection.getOutputStream();
+            try {
+                IOUtils.copyLarge(inputStream, outputStream);
+            } finally {
+                outputStream.close();
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Error writing asset " + asset.getAssetId() + " to object storage: "
+                        + responseCode + " " + connection.getResponseMessage());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public boolean read(final EntityManager entityManager, final Asset asset, final OutputStream outputStream)
+            throws IOException {
+        final String contentHash = asset.getContentHash();
+        if (!FileSystemAssetStore.isContentHash(contentHash)) {
+            return false;
+        }
+        final HttpURLConnection connection = openConnection("GET", contentHash, EMPTY_PAYLOAD_HASH);
+        try {
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Error reading asset " + asset.getAssetId() + " from object storage: "
+                        + responseCode + " " + connection.getResponseMessage());
+            }
+            final InputStream inputStream = connection.getInputStream();
+            try {
+                IOUtils.copyLarge(inputStream, outputStream);
+            } finally {
+                inputStream.close();
+            }
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Opens signed connection to object.
+     * @param method the HTTP method
+     * @param objectKey the object key
+     * @param payloadHash the payload hash
+     * @return the connection
+     * @throws IOException if connection can not be opened
+     */
+    private HttpURLConnection openConnection(final String method, final String objectKey,
+                                             final String payloadHash) throws IOException {
+        final URL url = new URL(endpoint + "/" + bucket + "/" + objectKey);
+        final String amzDate = formatAmzDate(new Date());
+        final SortedMap<String, String> headers = new TreeMap<String, String>();
+        headers.put("host", url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("Authorization", sign(method, url.getPath(), headers, payloadHash,
+                amzDate, region, accessKey, secretKey));
+        return connection;
+    }
+
+    /**
+     * Formats time as AWS signature version 4 request date.
+     * @param time the time
+     * @return the formatted time
+     */
+    static String formatAmzDate(final Date time) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(time);
+    }
+
+    /**
+     * Signs request with AWS signature version 4. Request path is expected to be URI encoded
+     * already and request has no query parameters.
+     * @param method the HTTP method
+     * @param path the request path
+     * @param headers the signed headers with lower case names
+     * @param payloadHash the payload hash
+     * @param amzDate the request date
+     * @param region the region
+     * @param accessKey the access key ID
+     * @param secretKey the secret access key
+     * @return the authorization header value
+     */
+    static String sign(final String method, final String path, final SortedMap<String, String> headers,
+                       final String payloadHash, final String amzDate, final String region,
+                       final String accessKey, final String secretKey) {
+        final StringBuilder canonicalHeaders = new StringBuilder();
+        final StringBuilder signedHeaders = new StringBuilder();
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            if (signedHeaders.length() > 0) {
+                signedHeaders.append(';');
+            }
+            signedHeaders.append(header.getKey());
+        }
+        final String canonicalRequest = method + "\n" + path + "\n\n" + canonicalHeaders + "\n"
+                + signedHeaders + "\n" + payloadHash;
+
+        final String date = amzDate.substring(0, 8);
+        final String scope = date + "/" + region + "/s3/aws4_request";
+        final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + Hex.encodeHexString(FileSystemAssetStore.newDigest().digest(canonicalRequest.getBytes(UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        final String signature = Hex.encodeHexString(hmac(signingKey, stringToSign));
+
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ",SignedHeaders=" + signedHeaders
+                + ",Signature=" + signature;
+    }
+
+    /**
+     * Calculates HMAC-SHA256 of data.
+     * @param key the key
+     * @param data the data
+     * @return the HMAC
+     */
+    private static byte[] hmac(final byte[] key, final String data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(UTF_8));
+        } catch (final GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
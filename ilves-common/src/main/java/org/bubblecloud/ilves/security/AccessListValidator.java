@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.UserDirectory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+
+/**
+ * Validates stored company IP access lists and user directory sub net white lists at startup.
+ * Lists stored before CIDR validation may contain host names or other invalid entries which
+ * are skipped when lists are matched. Such lists are logged so that they can be corrected.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AccessListValidator {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AccessListValidator.class);
+
+    /**
+     * Validates stored access lists and logs lists containing invalid entries.
+     * @param entityManagerFactory the entity manager factory
+     * @return the number of lists containing invalid entries
+     */
+    public static int validate(final EntityManagerFactory entityManagerFactory) {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            int invalidListCount = 0;
+            for (final Company company : CompanyDao.getCompanies(entityManager)) {
+                invalidListCount += validate("IP allow list of company " + company.getHost(),
+                        company.getIpAllowList());
+                invalidListCount += validate("IP deny list of company " + company.getHost(),
+                        company.getIpDenyList());
+            }
+            final List<UserDirectory> userDirectories = entityManager.createQuery(
+                    "select e from UserDirectory as e", UserDirectory.class).getResultList();
+            for (final UserDirectory userDirectory : userDirectories) {
+                invalidListCount += validate("sub net white list of user directory " + userDirectory.getAddress()
+                        + ":" + userDirectory.getPort(), userDirectory.getSubNetWhiteList());
+            }
+            return invalidListCount;
+        } catch (final Exception e) {
+            LOGGER.error("Error validating access lists.", e);
+            return 0;
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Validates CIDR list and logs invalid entries.
+     * @param description the list description
+     * @param cidrList the comma separated CIDR list or null
+     * @return 1 if list contains invalid entries and 0 otherwise
+     */
+    private static int validate(final String description, final String cidrList) {
+        if (cidrList == null) {
+            return 0;
+        }
+        final List<String> invalidEntries = new CidrTrie(cidrList, true).getInvalidEntries();
+        if (invalidEntries.isEmpty()) {
+            return 0;
+        }
+        LOGGER.error("Invalid entries " + invalidEntries + " are ignored in " + description
+                + ". Only numeric IP addresses and CIDR prefixes are supported.");
+        return 1;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Exports audit log entries as CSV or newline delimited JSON. Entries are read with
+ * forward only JDBC cursor and written to the writer row by row so that memory use
+ * does not depend on the number of exported entries.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogExporter {
+
+    /** The exported columns. */
+    private static final String[] COLUMNS = new String[] {"auditlogentryid", "created", "event",
+            "componentaddress", "componenttype", "useraddress", "userid", "username", "datatype", "dataid",
+            "dataoldversionid", "datanewversionid", "datalabel"};
+
+    /**
+     * The export formats.
+     */
+    public enum Format {
+        /** Comma separated values with header row. */
+        CSV,
+        /** One JSON object per line. */
+        NDJSON
+    }
+
+    /**
+     * Exports audit log entries created during given time range ordered by created time.
+     * Fetch size is read from site properties.
+     *
+     * @param entityManager the entity manager
+     * @param start the start time inclusive
+     * @param end the end time exclusive
+     * @param userId the user ID or null to export entries of all users
+     * @param dataType the data type or null to export entries of all data types
+     * @param format the format
+     * @param writer the writer
+     * @return the number of exported entries
+     * @throws IOException if writing fails
+     */
+    public static long export(final EntityManager entityManager, final Date start, final Date end,
+                              final String userId, final String dataType, final Format format,
+                              final Writer writer) throws IOException {
+        final int fetchSize = Integer.parseInt(PropertiesUtil.getProperty("site", "audit-log-export-fetch-size"));
+        // Cursor based fetching requires open transaction on PostgreSQL.
+        entityManager.getTransaction().begin();
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            return export(connection, start, end, userId, dataType, format, fetchSize, writer);
+        } catch (final SQLException e) {
+            throw new SecurityException("Error exporting audit log.", e);
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Exports audit log entries created during given time range ordered by created time.
+     *
+     * @param connection the connection
+     * @param start the start time inclusive
+     * @param end the end time exclusive
+     * @param userId the user ID or null to export entries of all users
+     * @param dataType the data type or null to export entries of all data types
+     * @param format the format
+     * @param fetchSize the number of rows fetched from database per round trip
+     * @param writer the writer
+     * @return the number of exported entries
+     * @throws SQLException if reading fails
+     * @throws IOException if writing fails
+     */
+    static long export(final Connection connection, final Date start, final Date end,
+                       final String userId, final String dataType, final Format format,
+                       final int fetchSize, final Writer writer) throws SQLException, IOException {
+        final StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(COLUMNS[i]);
+        }
+        sql.append(" FROM auditlogentry WHERE created >= ? AND created < ?");
+        final List<String> parameters = new ArrayList<String>();
+        if (userId != null) {
+            sql.append(" AND userid = ?");
+            parameters.add(userId);
+        }
+        if (dataType != null) {
+            sql.append(" AND datatype = ?");
+            parameters.add(dataType);
+        }
+        sql.append(" ORDER BY created");
+
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final PreparedStatement preparedStatement = connection.prepareStatement(sql.toString(),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            preparedStatement.setFetchSize(fetchSize);
+            preparedStatement.setTimestamp(1, new Timestamp(start.getTime()));
+            preparedStatement.setTimestamp(2, new Timestamp(end.getTime()));
+            for (int i = 0; i < parameters.size(); i++) {
+                preparedStatement.setString(3 + i, parameters.get(i));
+            }
+            final ResultSet resultSet = preparedStatement.executeQuery();
+            try {
+                if (format == Format.CSV) {
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        writer.write(i > 0 ? "," : "");
+                        writer.write(COLUMNS[i]);
+                    }
+                    writer.write("\r\n");
+                }
+                long count = 0;
+                while (resultSet.next()) {
+                    if (format == Format.NDJSON) {
+                        writer.write('{');
+                    }
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        final String value;
+                        if (i == 1) {
+                            final Timestamp created = resultSet.getTimestamp(i + 1);
+                            value = created != null ? dateFormat.format(created) : null;
+                        } else {
+                            value = resultSet.getString(i + 1);
+                        }
+                        if (format == Format.CSV) {
+                            writer.write(i > 0 ? "," : "");
+                            writeCsv(writer, value);
+                        } else {
+                            writer.write(i > 0 ? ",\"" : "\"");
+                            writer.write(COLUMNS[i]);
+                            writer.write("\":");
+                            writeJson(writer, value);
+                        }
+                    }
+                    writer.write(format == Format.CSV ? "\r\n" : "}\n");
+                    count++;
+                }
+                writer.flush();
+                return count;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Writes CSV field. Fields containing separators, quotes or line breaks are quoted.
+     * @param writer the writer
+     * @param value the value or null
+     * @throws IOException if writing fails
+     */
+    private static void writeCsv(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes JSON string value.
+     * @param writer the writer
+     * @param value the value or null
+     * @throws IOException if writing fails
+     */
+    private static void writeJson(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
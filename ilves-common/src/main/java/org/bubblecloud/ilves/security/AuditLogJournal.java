@@ -0,0 +1,537 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append only audit log journal consisting of memory mapped segment files. Audit log entries
+ * are appended to the journal in compact binary format and read back in order until acknowledged
+ * as written to database. The read position is stored in checkpoint file and entries after the
+ * checkpoint are recovered when journal is opened.
+ *
+ * Record format is: payload length (int), CRC32 of payload (int) and payload. Zero length marks
+ * the end of written records in a segment.
+ *
+ * Mapped segment buffers are not unmapped explicitly as there is no supported API for it. Closed
+ * and deleted segments release their mappings when the buffers are garbage collected.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class AuditLogJournal {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogJournal.class);
+
+    /** The record header size in bytes. */
+    private static final int HEADER_SIZE = 8;
+    /** The record payload format version. */
+    private static final byte FORMAT_VERSION = 1;
+    /** The segment file name prefix. */
+    private static final String SEGMENT_PREFIX = "audit-";
+    /** The segment file name suffix. */
+    private static final String SEGMENT_SUFFIX = ".journal";
+    /** The checkpoint file name. */
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * Policy for forcing appended records to disk.
+     */
+    enum FsyncPolicy {
+        /** Records are forced to disk on every append. */
+        ALWAYS,
+        /** Records are forced to disk periodically by the journal owner. */
+        INTERVAL,
+        /** Forcing records to disk is left to operating system. */
+        NEVER
+    }
+
+    /** The journal directory. */
+    private final File directory;
+    /** The segment size in bytes. */
+    private final int segmentSize;
+    /** The fsync policy. */
+    private final FsyncPolicy fsyncPolicy;
+    /** The open segments in sequence order. First is read segment and last is write segment. */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    /** The read position in the first segment. */
+    private int readPosition;
+    /** The read position after the last read but not yet acknowledged records. */
+    private int pendingReadPosition;
+    /** The segment containing the pending read position. */
+    private Segment pendingReadSegment;
+    /** The number of records appended but not acknowledged. */
+    private long pendingCount;
+    /** True if records have been appended since last force. */
+    private boolean dirty;
+    /** True if journal has been closed. */
+    private boolean closed;
+
+    /**
+     * Opens journal in given directory and recovers records after checkpoint.
+     * @param directory the journal directory
+     * @param segmentSize the segment size in bytes
+     * @param fsyncPolicy the fsync policy
+     * @throws IOException if IO exception occurs
+     */
+    AuditLogJournal(final File directory, final int segmentSize, final FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create audit log journal directory: " + directory.getAbsolutePath());
+        }
+        recover();
+    }
+
+    /**
+     * Appends audit log entry to journal.
+     * @param auditLogEntry the audit log entry
+     * @throws IOException if IO exception occurs or journal is closed
+     */
+    synchronized void append(final AuditLogEntry auditLogEntry) throws IOException {
+        if (closed) {
+            throw new IOException("Audit log journal is closed: " + directory.getAbsolutePath());
+        }
+        final byte[] payload = encode(auditLogEntry);
+        if (HEADER_SIZE + payload.length > segmentSize - HEADER_SIZE) {
+            throw new IOException("Audit log entry does not fit to journal segment: " + payload.length);
+        }
+        Segment segment = segments.getLast();
+        if (segment.buffer.remaining() < HEADER_SIZE + payload.length + HEADER_SIZE) {
+            segment.force();
+            segment = openSegment(segment.sequence + 1, true);
+            segments.addLast(segment);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final int position = segment.buffer.position();
+        // Payload and checksum are written before length so that partially written record is never valid.
+        segment.buffer.putInt(position + 4, (int) crc.getValue());
+        final ByteBuffer payloadBuffer = segment.buffer.duplicate();
+        payloadBuffer.position(position + HEADER_SIZE);
+        payloadBuffer.put(payload);
+        segment.buffer.putInt(position, payload.length);
+        segment.buffer.position(position + HEADER_SIZE + payload.length);
+        pendingCount++;
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            segment.force();
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Reads unacknowledged audit log entries starting from the read position.
+     * Read entries are returned again by next read unless acknowledged.
+     * @param maxEntries the maximum number of entries to read
+     * @return the read audit log entries or empty list if journal is closed
+     */
+    synchronized List<AuditLogEntry> read(final int maxEntries) {
+        final List<AuditLogEntry> auditLogEntries = new ArrayList<AuditLogEntry>();
+        if (closed) {
+            return auditLogEntries;
+        }
+        int segmentIndex = 0;
+        Segment segment = segments.get(segmentIndex);
+        int position = readPosition;
+        while (auditLogEntries.size() < maxEntries) {
+            final int length = segment.length(position);
+            if (length <= 0) {
+                if (segmentIndex + 1 >= segments.size()) {
+                    break;
+                }
+                segmentIndex++;
+                segment = segments.get(segmentIndex);
+                position = 0;
+                continue;
+            }
+            auditLogEntries.add(decode(segment.payload(position, length)));
+            position += HEADER_SIZE + length;
+        }
+        pendingReadSegment = segment;
+        pendingReadPosition = position;
+        return auditLogEntries;
+    }
+
+    /**
+     * Acknowledges entries returned by the last read as written to database. Read position is
+     * advanced, checkpoint is stored and fully read segments are deleted.
+     * @param count the number of acknowledged entries
+     * @throws IOException if IO exception occurs or journal is closed
+     */
+    synchronized void acknowledge(final int count) throws IOException {
+        if (closed) {
+            throw new IOException("Audit log journal is closed: " + directory.getAbsolutePath());
+        }
+        if (pendingReadSegment == null) {
+            return;
+        }
+        while (segments.getFirst() != pendingReadSegment) {
+            final Segment consumedSegment = segments.removeFirst();
+            consumedSegment.close();
+            if (!consumedSegment.file.delete()) {
+                LOGGER.warn("Unable to delete audit log journal segment: " + consumedSegment.file.getAbsolutePath());
+            }
+        }
+        readPosition = pendingReadPosition;
+        pendingReadSegment = null;
+        pendingCount = Math.max(0, pendingCount - count);
+        writeCheckpoint(segments.getFirst().sequence, readPosition);
+    }
+
+    /**
+     * Checks whether journal contains unacknowledged entries.
+     * @return true if journal is empty or closed
+     */
+    synchronized boolean isEmpty() {
+        return closed || pendingCount == 0;
+    }
+
+    /**
+     * Forces appended records to disk if policy is not always.
+     */
+    synchronized void force() {
+        if (dirty && !closed) {
+            segments.getLast().force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Forces appended records to disk and closes the journal. Closing is idempotent.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Segment segment : segments) {
+            segment.force();
+            segment.close();
+        }
+        segments.clear();
+        pendingReadSegment = null;
+    }
+
+    /**
+     * Recovers journal state from segment files and checkpoint.
+     * @throws IOException if IO exception occurs
+     */
+    private void recover() throws IOException {
+        long checkpointSequence = 0;
+        int checkpointPosition = 0;
+        final File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        if (checkpointFile.exists()) {
+            final DataInputStream inputStream = new DataInputStream(new FileInputStream(checkpointFile));
+            try {
+                checkpointSequence = inputStream.readLong();
+                checkpointPosition = inputStream.readInt();
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        final File[] segmentFiles = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(segmentFiles);
+        for (final File segmentFile : segmentFiles) {
+            final String name = segmentFile.getName();
+            final long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            if (sequence < checkpointSequence) {
+                if (!segmentFile.delete()) {
+                    LOGGER.warn("Unable to delete audit log journal segment: " + segmentFile.getAbsolutePath());
+                }
+                continue;
+            }
+            segments.addLast(openSegment(sequence, false));
+        }
+
+        if (segments.isEmpty()) {
+            segments.addLast(openSegment(checkpointSequence, true));
+            checkpointPosition = 0;
+        }
+        readPosition = segments.getFirst().sequence == checkpointSequence ? checkpointPosition : 0;
+
+        // Count recovered records and find append position of the last segment.
+        for (final Segment segment : segments) {
+            int position = segment == segments.getFirst() ? readPosition : 0;
+            while (true) {
+                final int length = segment.length(position);
+                if (length <= 0) {
+                    break;
+                }
+                if (!segment.isValid(position, length)) {
+                    LOGGER.warn("Truncating audit log journal segment " + segment.file.getName()
+                            + " at invalid record in position: " + position);
+                    segment.truncate(position);
+                    break;
+                }
+                position += HEADER_SIZE + length;
+                pendingCount++;
+            }
+            segment.buffer.position(position);
+        }
+        if (pendingCount > 0) {
+            LOGGER.info("Recovered " + pendingCount + " audit log entries from journal: "
+                    + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Writes checkpoint atomically.
+     * @param sequence the read segment sequence
+     * @param position the read position in the segment
+     * @throws IOException if IO exception occurs
+     */
+    private void writeCheckpoint(final long sequence, final int position) throws IOException {
+        final File temporaryFile = new File(directory, CHECKPOINT_FILE + ".tmp");
+        final FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            final DataOutputStream outputStream = new DataOutputStream(fileOutputStream);
+            outputStream.writeLong(sequence);
+            outputStream.writeInt(position);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!temporaryFile.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Unable to write audit log journal checkpoint: " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Opens segment file and maps it to memory.
+     * @param sequence the segment sequence
+     * @param create true if segment file is to be created
+     * @return the segment
+     * @throws IOException if IO exception occurs
+     */
+    private Segment openSegment(final long sequence, final boolean create) throws IOException {
+        final File file = new File(directory, SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX);
+        if (create && file.exists()) {
+            throw new IOException("Audit log journal segment already exists: " + file.getAbsolutePath());
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (create) {
+                randomAccessFile.setLength(segmentSize);
+            }
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            return new Segment(sequence, file, buffer);
+        } finally {
+            // Mapping remains valid after the file is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Encodes audit log entry to compact binary format.
+     * @param auditLogEntry the audit log entry
+     * @return the encoded bytes
+     * @throws IOException if IO exception occurs
+     */
+    private static byte[] encode(final AuditLogEntry auditLogEntry) throws IOException {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+        final DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        outputStream.writeByte(FORMAT_VERSION);
+        writeString(outputStream, auditLogEntry.getAuditLogEntryId());
+        writeString(outputStream, auditLogEntry.getEvent());
+        writeString(outputStream, auditLogEntry.getComponentAddress());
+        writeString(outputStream, auditLogEntry.getComponentType());
+        writeString(outputStream, auditLogEntry.getUserAddress());
+        writeString(outputStream, auditLogEntry.getUserId());
+        writeString(outputStream, auditLogEntry.getUserName());
+        writeString(outputStream, auditLogEntry.getDataType());
+        writeString(outputStream, auditLogEntry.getDataId());
+        writeString(outputStream, auditLogEntry.getDataOldVersionId());
+        writeString(outputStream, auditLogEntry.getDataNewVersionId());
+        writeString(outputStream, auditLogEntry.getDataLabel());
+        outputStream.writeLong(auditLogEntry.getCreated().getTime());
+        outputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Decodes audit log entry from compact binary format.
+     * @param payload the encoded bytes
+     * @return the audit log entry
+     */
+    private static AuditLogEntry decode(final byte[] payload) {
+        try {
+            final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload));
+            final byte version = inputStream.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported audit log journal record format: " + version);
+            }
+            final String auditLogEntryId = readString(inputStream);
+            final AuditLogEntry auditLogEntry = new AuditLogEntry(
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    readString(inputStream),
+                    new Date(inputStream.readLong()));
+            auditLogEntry.setAuditLogEntryId(auditLogEntryId);
+            return auditLogEntry;
+        } catch (final IOException e) {
+            throw new SecurityException("Error decoding audit log journal record.", e);
+        }
+    }
+
+    /**
+     * Writes nullable string.
+     * @param outputStream the output stream
+     * @param value the value or null
+     * @throws IOException if IO exception occurs
+     */
+    private static void writeString(final DataOutputStream outputStream, final String value) throws IOException {
+        outputStream.writeBoolean(value != null);
+        if (value != null) {
+            outputStream.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads nullable string.
+     * @param inputStream the input stream
+     * @return the value or null
+     * @throws IOException if IO exception occurs
+     */
+    private static String readString(final DataInputStream inputStream) throws IOException {
+        return inputStream.readBoolean() ? inputStream.readUTF() : null;
+    }
+
+    /**
+     * Memory mapped journal segment.
+     */
+    private static final class Segment {
+        /** The segment sequence. */
+        private final long sequence;
+        /** The segment file. */
+        private final File file;
+        /** The mapped segment buffer. Position is the append position. */
+        private MappedByteBuffer buffer;
+
+        /**
+         * Constructor which sets the segment fields.
+         * @param sequence the segment sequence
+         * @param file the segment file
+         * @param buffer the mapped segment buffer
+         */
+        private Segment(final long sequence, final File file, final MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Gets length of record payload at given position.
+         * @param position the position
+         * @return the payload length or zero if there is no record at the position
+         */
+        private int length(final int position) {
+            if (position + HEADER_SIZE > buffer.capacity()) {
+                return 0;
+            }
+            final int length = buffer.getInt(position);
+            if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                return 0;
+            }
+            return length;
+        }
+
+        /**
+         * Checks record checksum.
+         * @param position the record position
+         * @param length the payload length
+         * @return true if record is valid
+         */
+        private boolean isValid(final int position, final int length) {
+            final CRC32 crc = new CRC32();
+            crc.update(payload(position, length));
+            return (int) crc.getValue() == buffer.getInt(position + 4);
+        }
+
+        /**
+         * Gets record payload.
+         * @param position the record position
+         * @param length the payload length
+         * @return the payload
+         */
+        private byte[] payload(final int position, final int length) {
+            final byte[] payload = new byte[length];
+            final ByteBuffer payloadBuffer = buffer.duplicate();
+            payloadBuffer.position(position + HEADER_SIZE);
+            payloadBuffer.get(payload);
+            return payload;
+        }
+
+        /**
+         * Clears segment from given position onwards.
+         * @param position the position
+         */
+        private void truncate(final int position) {
+            final byte[] zeros = new byte[4096];
+            final ByteBuffer truncateBuffer = buffer.duplicate();
+            truncateBuffer.position(position);
+            while (truncateBuffer.hasRemaining()) {
+                truncateBuffer.put(zeros, 0, Math.min(zeros.length, truncateBuffer.remaining()));
+            }
+            buffer.force();
+        }
+
+        /**
+         * Forces segment to disk.
+         */
+        private void force() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Releases reference to the segment buffer. Mapping is released when buffer is garbage collected.
+         */
+        private void close() {
+            buffer = null;
+        }
+    }
+}
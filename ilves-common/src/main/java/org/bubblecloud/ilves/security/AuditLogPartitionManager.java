@@ -0,0 +1,397 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains monthly partitions of audit log. On PostgreSQL audit log table is natively
+ * partitioned by created time and the manager creates partitions for current and next month
+ * ahead of time. Entries outside of created partitions land in default partition and are moved
+ * to their monthly partition when it is created. Partitions older than retention period are
+ * dropped or detached as archive tables.
+ * On other databases partitions are emulated: entries older than retention period are deleted
+ * or moved to archive table per month.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogPartitionManager {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogPartitionManager.class);
+
+    /** The audit log table name. */
+    private static final String TABLE = "auditlogentry";
+    /** The partition table name prefix. */
+    private static final String PARTITION_PREFIX = TABLE + "_p";
+    /** The default partition table name. */
+    private static final String DEFAULT_PARTITION = TABLE + "_default";
+    /** The pattern for parsing upper bound of partition. */
+    private static final Pattern UPPER_BOUND_PATTERN = Pattern.compile("TO \\('([^']+)'\\)");
+
+    /** The maintenance executor or null if not started. */
+    private static ScheduledExecutorService executor;
+
+    /**
+     * Starts periodic audit log partition maintenance. Partitions are maintained always on
+     * natively partitioned database and retention is applied if retention months is set in site properties.
+     * @param entityManagerFactory the entity manager factory
+     */
+    public static synchronized void start(final EntityManagerFactory entityManagerFactory) {
+        if (executor != null) {
+            return;
+        }
+        final int retentionMonths = Integer.parseInt(getProperty("audit-log-retention-months", "0"));
+        final boolean archive = "archive".equals(getProperty("audit-log-retention-action", "archive"));
+        final long intervalMillis = Long.parseLong(getProperty("audit-log-maintenance-interval-millis", "3600000"));
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ilves-audit-log-partitions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                try {
+                    maintain(entityManager, new Date(), retentionMonths, archive);
+                } catch (final Exception e) {
+                    LOGGER.error("Error in audit log partition maintenance.", e);
+                } finally {
+                    entityManager.close();
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic audit log partition maintenance.
+     */
+    public static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Ensures partitions exist for current and next month and applies retention.
+     * @param entityManager the entity manager
+     * @param now the current time
+     * @param retentionMonths the number of full months to retain in addition to current month or 0 to retain all
+     * @param archive true if expired partitions are archived instead of dropped
+     * @throws SQLException if SQL exception occurs
+     */
+    static void maintain(final EntityManager entityManager, final Date now, final int retentionMonths,
+                         final boolean archive) throws SQLException {
+        entityManager.getTransaction().begin();
+        try {
+            maintain(entityManager.unwrap(Connection.class), now, retentionMonths, archive);
+            entityManager.getTransaction().commit();
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Ensures partitions exist for current and next month and applies retention inside
+     * transaction of the connection.
+     * @param connection the connection
+     * @param now the current time
+     * @param retentionMonths the number of full months to retain in addition to current month or 0 to retain all
+     * @param archive true if expired partitions are archived instead of dropped
+     * @throws SQLException if SQL exception occurs
+     */
+    static void maintain(final Connection connection, final Date now, final int retentionMonths,
+                         final boolean archive) throws SQLException {
+        final Date cutoff = addMonths(getMonthStart(now), -retentionMonths);
+        if (isNativelyPartitioned(connection)) {
+            ensurePartitions(connection, now);
+            if (retentionMonths > 0) {
+                expireNativePartitions(connection, cutoff, archive);
+            }
+        } else if (retentionMonths > 0) {
+            expireEmulatedPartitions(connection, cutoff, archive);
+        }
+    }
+
+    /**
+     * Checks whether audit log table is natively partitioned.
+     * @param connection the connection
+     * @return true if audit log table is natively partitioned
+     * @throws SQLException if SQL exception occurs
+     */
+    private static boolean isNativelyPartitioned(final Connection connection) throws SQLException {
+        if (!connection.getMetaData().getDatabaseProductName().toLowerCase().contains("postgresql")) {
+            return false;
+        }
+        final PreparedStatement statement = connection.prepareStatement(
+                "SELECT relkind FROM pg_class WHERE relname = ? AND relkind = 'p'");
+        try {
+            statement.setString(1, TABLE);
+            return statement.executeQuery().next();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Gets upper bounds of native partitions by partition table name.
+     * @param connection the connection
+     * @return the upper bounds by partition table name
+     * @throws SQLException if SQL exception occurs
+     */
+    private static Map<String, Date> getNativePartitions(final Connection connection) throws SQLException {
+        final Map<String, Date> partitions = new TreeMap<String, Date>();
+        final PreparedStatement statement = connection.prepareStatement(
+                "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i "
+                        + "JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent "
+                        + "WHERE p.relname = ?");
+        try {
+            statement.setString(1, TABLE);
+            final ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                final Matcher matcher = UPPER_BOUND_PATTERN.matcher(resultSet.getString(2));
+                if (matcher.find()) {
+                    final String bound = matcher.group(1);
+                    partitions.put(resultSet.getString(1),
+                            Timestamp.valueOf(bound.length() == 10 ? bound + " 00:00:00" : bound));
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return partitions;
+    }
+
+    /**
+     * Creates native partitions for current and next month if they do not exist.
+     * Months covered by existing partitions are skipped. Entries of the month already
+     * in default partition are moved to the new partition.
+     * @param connection the connection
+     * @param now the current time
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void ensurePartitions(final Connection connection, final Date now) throws SQLException {
+        Date coveredUntil = new Date(0);
+        for (final Date upperBound : getNativePartitions(connection).values()) {
+            if (upperBound.after(coveredUntil)) {
+                coveredUntil = upperBound;
+            }
+        }
+        final Date currentMonth = getMonthStart(now);
+        for (int i = 0; i < 2; i++) {
+            final Date start = addMonths(currentMonth, i);
+            final Date end = addMonths(start, 1);
+            if (start.before(coveredUntil)) {
+                continue;
+            }
+            final String partition = getPartitionName(start);
+            final String bounds = " FOR VALUES FROM ('" + formatTimestamp(start) + "') TO ('" + formatTimestamp(end) + "')";
+            if (tableExists(connection, DEFAULT_PARTITION)) {
+                final String range = " WHERE created >= '" + formatTimestamp(start)
+                        + "' AND created < '" + formatTimestamp(end) + "'";
+                execute(connection, "CREATE TABLE " + partition + " (LIKE " + TABLE + " INCLUDING DEFAULTS)");
+                execute(connection, "INSERT INTO " + partition + " SELECT * FROM " + DEFAULT_PARTITION + range);
+                execute(connection, "DELETE FROM " + DEFAULT_PARTITION + range);
+                execute(connection, "ALTER TABLE " + TABLE + " ATTACH PARTITION " + partition + bounds);
+            } else {
+                execute(connection, "CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF " + TABLE + bounds);
+            }
+            LOGGER.info("Ensured audit log partition: " + partition);
+        }
+    }
+
+    /**
+     * Drops or detaches native partitions which end before cutoff.
+     * @param connection the connection
+     * @param cutoff the cutoff time
+     * @param archive true if partitions are detached instead of dropped
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void expireNativePartitions(final Connection connection, final Date cutoff,
+                                               final boolean archive) throws SQLException {
+        for (final Map.Entry<String, Date> partition : getNativePartitions(connection).entrySet()) {
+            if (partition.getValue().after(cutoff)) {
+                continue;
+            }
+            if (archive) {
+                execute(connection, "ALTER TABLE " + TABLE + " DETACH PARTITION " + partition.getKey());
+                LOGGER.info("Archived audit log partition: " + partition.getKey());
+            } else {
+                execute(connection, "DROP TABLE " + partition.getKey());
+                LOGGER.info("Dropped audit log partition: " + partition.getKey());
+            }
+        }
+    }
+
+    /**
+     * Deletes entries created before cutoff or moves them to archive table per month.
+     * @param connection the connection
+     * @param cutoff the cutoff time
+     * @param archive true if entries are moved to archive tables instead of deleted
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void expireEmulatedPartitions(final Connection connection, final Date cutoff,
+                                                 final boolean archive) throws SQLException {
+        final Date oldest;
+        final Statement statement = connection.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery("SELECT MIN(created) FROM " + TABLE);
+            resultSet.next();
+            oldest = resultSet.getTimestamp(1);
+        } finally {
+            statement.close();
+        }
+        if (oldest == null || !oldest.before(cutoff)) {
+            return;
+        }
+        for (Date start = getMonthStart(oldest); start.before(cutoff); start = addMonths(start, 1)) {
+            final String range = " WHERE created >= '" + formatTimestamp(start)
+                    + "' AND created < '" + formatTimestamp(addMonths(start, 1)) + "'";
+            if (archive) {
+                final String partition = getPartitionName(start);
+                if (!tableExists(connection, partition)) {
+                    execute(connection, "CREATE TABLE " + partition + " AS (SELECT * FROM " + TABLE + ") WITH NO DATA");
+                }
+                execute(connection, "INSERT INTO " + partition + " SELECT * FROM " + TABLE + range);
+                LOGGER.info("Archived audit log entries to: " + partition);
+            }
+            execute(connection, "DELETE FROM " + TABLE + range);
+        }
+    }
+
+    /**
+     * Checks whether table exists.
+     * @param connection the connection
+     * @param table the table name
+     * @return true if table exists
+     * @throws SQLException if SQL exception occurs
+     */
+    private static boolean tableExists(final Connection connection, final String table) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        for (final String name : new String[] {table, table.toUpperCase()}) {
+            final ResultSet resultSet = metaData.getTables(null, null, name, null);
+            try {
+                if (resultSet.next()) {
+                    return true;
+                }
+            } finally {
+                resultSet.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes SQL statement.
+     * @param connection the connection
+     * @param sql the SQL statement
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void execute(final Connection connection, final String sql) throws SQLException {
+        final Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Gets partition table name for month.
+     * @param monthStart the month start
+     * @return the partition table name
+     */
+    static String getPartitionName(final Date monthStart) {
+        return PARTITION_PREFIX + new SimpleDateFormat("yyyyMM").format(monthStart);
+    }
+
+    /**
+     * Gets start of the month of given time.
+     * @param time the time
+     * @return the month start
+     */
+    private static Date getMonthStart(final Date time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+
+    /**
+     * Adds months to time.
+     * @param time the time
+     * @param months the number of months
+     * @return the time after adding months
+     */
+    private static Date addMonths(final Date time, final int months) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        calendar.add(Calendar.MONTH, months);
+        return calendar.getTime();
+    }
+
+    /**
+     * Formats time as SQL timestamp literal value.
+     * @param time the time
+     * @return the formatted time
+     */
+    private static String formatTimestamp(final Date time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(time);
+    }
+
+    /**
+     * Gets site property or default value if property is not defined.
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value
+     */
+    private static String getProperty(final String key, final String defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        return value != null && value.trim().length() > 0 ? value.trim() : defaultValue;
+    }
+}
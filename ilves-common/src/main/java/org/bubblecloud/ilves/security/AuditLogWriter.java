@@ -0,0 +1,579 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous audit log writer. Audit log entries are queued to bounded queue and
+ * written to database in JDBC batches by a dedicated writer thread. Writer is enabled
+ * with site property audit-log-async. When writer is not started audit log entries
+ * are written synchronously.
+ *
+ * In write ahead mode audit log entries are appended to local audit log journal instead
+ * of the queue and the writer thread replays them from the journal to database. Journal
+ * is also used for spilling entries when queue is full or database writes fail.
+ *
+ * On stop the writer stops accepting entries, waits for writes in progress to be enqueued
+ * and writes all queued entries before returning. Entries logged after stop has begun are
+ * written synchronously by the caller.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogWriter {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogWriter.class);
+
+    /** The audit log entry insert statement. */
+    private static final String INSERT_SQL = "INSERT INTO auditlogentry (auditlogentryid, event, componentaddress, "
+            + "componenttype, useraddress, userid, username, datatype, dataid, dataoldversionid, datanewversionid, "
+            + "datalabel, created) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    /** The number of write attempts before batch is spilled or dropped. */
+    private static final int WRITE_ATTEMPTS = 3;
+
+    /**
+     * Policy for handling audit log entries when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Caller blocks until there is room in the queue. */
+        BLOCK,
+        /** Entry is dropped and drop counter is incremented. */
+        DROP,
+        /** Entry is spilled to audit log journal and written to database later. */
+        SPILL
+    }
+
+    /** The writer instance or null if writer is not started. Modified only while holding class lock. */
+    private static volatile AuditLogWriter writer;
+    /** True if shutdown hook flushing the writer has been added. */
+    private static boolean shutdownHookAdded;
+
+    /** The entity manager factory. */
+    private final EntityManagerFactory entityManagerFactory;
+    /** The queue of audit log entries waiting to be written. */
+    private final ArrayBlockingQueue<AuditLogEntry> queue;
+    /** The maximum batch size. */
+    private final int batchSize;
+    /** The maximum time in milliseconds an entry waits for batch to fill. */
+    private final long batchIntervalMillis;
+    /** The overflow policy. */
+    private final OverflowPolicy overflowPolicy;
+    /** The audit log journal or null if journal is not used. */
+    private final AuditLogJournal journal;
+    /** True if all entries are appended to journal before writing to database. */
+    private final boolean writeAhead;
+    /** The interval in milliseconds for forcing journal to disk. */
+    private final long fsyncIntervalMillis;
+    /** The number of dropped audit log entries. */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** The writer thread. */
+    private final Thread thread;
+    /** True while writer is running. */
+    private volatile boolean running = true;
+    /** True once writer has stopped accepting entries. */
+    private volatile boolean stopping;
+    /** The number of write calls currently enqueueing entries. */
+    private final AtomicInteger activeWrites = new AtomicInteger();
+    /** The earliest time of next journal replay attempt. Accessed only by writer thread. */
+    private long nextReplayMillis;
+    /** The time of last journal force. Accessed only by writer thread. */
+    private long lastForceMillis;
+
+    /**
+     * Starts asynchronous audit log writer if enabled in site properties.
+     * @param entityManagerFactory the entity manager factory
+     */
+    public static synchronized void start(final EntityManagerFactory entityManagerFactory) {
+        if (writer != null || !"true".equals(getProperty("audit-log-async", "false"))) {
+            return;
+        }
+        final boolean writeAhead = "true".equals(getProperty("audit-log-write-ahead", "false"));
+        final OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(
+                getProperty("audit-log-overflow-policy", "block").toUpperCase());
+        final File journalDirectory = new File(getProperty("audit-log-journal-path", "./audit-journal"));
+        AuditLogJournal journal = null;
+        // Journal is opened also if it exists to recover entries left by previous run.
+        if (writeAhead || overflowPolicy == OverflowPolicy.SPILL || journalDirectory.exists()) {
+            try {
+                journal = new AuditLogJournal(journalDirectory,
+                        Integer.parseInt(getProperty("audit-log-journal-segment-size", "16777216")),
+                        AuditLogJournal.FsyncPolicy.valueOf(
+                                getProperty("audit-log-journal-fsync", "interval").toUpperCase()));
+            } catch (final IOException e) {
+                throw new SecurityException("Error opening audit log journal: "
+                        + journalDirectory.getAbsolutePath(), e);
+            }
+        }
+        start(entityManagerFactory,
+                Integer.parseInt(getProperty("audit-log-queue-size", "10000")),
+                Integer.parseInt(getProperty("audit-log-batch-size", "200")),
+                Long.parseLong(getProperty("audit-log-batch-interval-millis", "50")),
+                overflowPolicy, journal, writeAhead,
+                Long.parseLong(getProperty("audit-log-journal-fsync-interval-millis", "1000")));
+    }
+
+    /**
+     * Starts asynchronous audit log writer.
+     * @param entityManagerFactory the entity manager factory
+     * @param queueSize the maximum number of queued audit log entries
+     * @param batchSize the maximum batch size
+     * @param batchIntervalMillis the maximum time in milliseconds an entry waits for batch to fill
+     * @param overflowPolicy the overflow policy
+     * @param journal the audit log journal or null
+     * @param writeAhead true if all entries are appended to journal before writing to database
+     * @param fsyncIntervalMillis the interval in milliseconds for forcing journal to disk
+     */
+    static synchronized void start(final EntityManagerFactory entityManagerFactory,
+                                   final int queueSize, final int batchSize, final long batchIntervalMillis,
+                                   final OverflowPolicy overflowPolicy, final AuditLogJournal journal,
+                                   final boolean writeAhead, final long fsyncIntervalMillis) {
+        if (writer != null) {
+            return;
+        }
+        if ((writeAhead || overflowPolicy == OverflowPolicy.SPILL) && journal == null) {
+            throw new IllegalArgumentException("Audit log journal is required for write ahead and spill.");
+        }
+        writer = new AuditLogWriter(entityManagerFactory, queueSize, batchSize, batchIntervalMillis,
+                overflowPolicy, journal, writeAhead, fsyncIntervalMillis);
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            }, "ilves-audit-log-shutdown"));
+            shutdownHookAdded = true;
+        }
+        LOGGER.info("Started asynchronous audit log writer with overflow policy: " + overflowPolicy
+                + (writeAhead ? " in write ahead mode." : "."));
+    }
+
+    /**
+     * Stops asynchronous audit log writer. Queued audit log entries are written before returning.
+     */
+    public static synchronized void stop() {
+        final AuditLogWriter stoppedWriter = writer;
+        if (stoppedWriter == null) {
+            return;
+        }
+        // Late writes are rejected and written synchronously by callers from now on.
+        stoppedWriter.stopping = true;
+        writer = null;
+        // Writes which passed the stopping check are enqueued while writer thread still drains the queue.
+        while (stoppedWriter.activeWrites.get() > 0) {
+            Thread.yield();
+        }
+        stoppedWriter.running = false;
+        try {
+            stoppedWriter.thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stoppedWriter.flushQueue();
+        LOGGER.info("Stopped asynchronous audit log writer. Dropped entries: " + stoppedWriter.droppedCount.get());
+    }
+
+    /**
+     * Checks whether asynchronous audit log writer is started.
+     * @return true if writer is started
+     */
+    public static synchronized boolean isStarted() {
+        return writer != null;
+    }
+
+    /**
+     * Gets number of audit log entries dropped due to full queue or write failures.
+     * @return the dropped entry count
+     */
+    public static synchronized long getDroppedCount() {
+        return writer != null ? writer.droppedCount.get() : 0;
+    }
+
+    /**
+     * Writes audit log entry asynchronously if writer is started.
+     * @param auditLogEntry the audit log entry
+     * @return true if entry was accepted by asynchronous writer, false if writer is not started or is stopping
+     */
+    static boolean write(final AuditLogEntry auditLogEntry) {
+        final AuditLogWriter currentWriter = writer;
+        if (currentWriter == null) {
+            return false;
+        }
+        currentWriter.activeWrites.incrementAndGet();
+        try {
+            if (currentWriter.stopping) {
+                return false;
+            }
+            currentWriter.enqueue(auditLogEntry);
+            return true;
+        } finally {
+            currentWriter.activeWrites.decrementAndGet();
+        }
+    }
+
+    /**
+     * Constructor which starts the writer thread.
+     * @param entityManagerFactory the entity manager factory
+     * @param queueSize the maximum number of queued audit log entries
+     * @param batchSize the maximum batch size
+     * @param batchIntervalMillis the maximum time in milliseconds an entry waits for batch to fill
+     * @param overflowPolicy the overflow policy
+     * @param journal the audit log journal or null
+     * @param writeAhead true if all entries are appended to journal before writing to database
+     * @param fsyncIntervalMillis the interval in milliseconds for forcing journal to disk
+     */
+    private AuditLogWriter(final EntityManagerFactory entityManagerFactory,
+                           final int queueSize, final int batchSize, final long batchIntervalMillis,
+                           final OverflowPolicy overflowPolicy, final AuditLogJournal journal,
+                           final boolean writeAhead, final long fsyncIntervalMillis) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.queue = new ArrayBlockingQueue<AuditLogEntry>(queueSize);
+        this.batchSize = batchSize;
+        this.batchIntervalMillis = batchIntervalMillis;
+        this.overflowPolicy = overflowPolicy;
+        this.journal = journal;
+        this.writeAhead = writeAhead;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, "ilves-audit-log-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Enqueues audit log entry according to overflow policy.
+     * @param auditLogEntry the audit log entry
+     */
+    private void enqueue(final AuditLogEntry auditLogEntry) {
+        if (auditLogEntry.getAuditLogEntryId() == null) {
+            auditLogEntry.setAuditLogEntryId(UUID.randomUUID().toString().toUpperCase());
+        }
+        if (writeAhead) {
+            try {
+                journal.append(auditLogEntry);
+                return;
+            } catch (final IOException e) {
+                LOGGER.error("Error appending audit log entry to journal, queueing instead.", e);
+            }
+        }
+        if (queue.offer(auditLogEntry)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(auditLogEntry);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SecurityException("Interrupted while waiting for audit log queue.");
+                }
+                break;
+            case SPILL:
+                spill(Collections.singletonList(auditLogEntry));
+                break;
+            default:
+                if (droppedCount.incrementAndGet() % 1000 == 1) {
+                    LOGGER.warn("Audit log queue full, dropped entries: " + droppedCount.get());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Processes queued audit log entries until writer is stopped and queue is empty.
+     */
+    private void process() {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(batchSize);
+            while (running || !queue.isEmpty()) {
+                forceJournal();
+                if (replayJournal(entityManager)) {
+                    continue;
+                }
+                try {
+                    final AuditLogEntry first = queue.poll(batchIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    final long deadline = System.currentTimeMillis() + batchIntervalMillis;
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        final long remainingMillis = deadline - System.currentTimeMillis();
+                        if (batch.size() >= batchSize || remainingMillis <= 0 || !running) {
+                            break;
+                        }
+                        final AuditLogEntry next = queue.poll(remainingMillis, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (final InterruptedException e) {
+                    running = false;
+                }
+                if (!batch.isEmpty()) {
+                    writeOrSpill(entityManager, batch);
+                    batch.clear();
+                }
+            }
+            // Flush journal to database on stop. Entries which can not be written remain in journal.
+            nextReplayMillis = 0;
+            while (replayJournal(entityManager)) {
+                continue;
+            }
+        } finally {
+            entityManager.close();
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Writes entries remaining in queue after writer thread has exited. Entries remain only
+     * if writer thread was interrupted.
+     */
+    private void flushQueue() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                writeOrSpill(entityManager, batch);
+                batch.clear();
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Writes batch to database retrying on failure. Failed batch is spilled to disk
+     * if overflow policy is spill and otherwise dropped.
+     * @param entityManager the entity manager
+     * @param batch the batch
+     */
+    private void writeOrSpill(final EntityManager entityManager, final List<AuditLogEntry> batch) {
+        for (int attempt = 1; attempt <= WRITE_ATTEMPTS; attempt++) {
+            try {
+                writeBatch(entityManager, batch);
+                return;
+            } catch (final Exception e) {
+                LOGGER.error("Error writing audit log batch of " + batch.size() + " entries, attempt "
+                        + attempt + "/" + WRITE_ATTEMPTS + ".", e);
+                if (attempt < WRITE_ATTEMPTS && running) {
+                    try {
+                        Thread.sleep(100L * attempt);
+                    } catch (final InterruptedException ie) {
+                        running = false;
+                    }
+                }
+            }
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            spill(batch);
+        } else {
+            droppedCount.addAndGet(batch.size());
+            LOGGER.error("Dropped audit log batch of " + batch.size() + " entries.");
+        }
+    }
+
+    /**
+     * Writes batch of audit log entries to database in single transaction using JDBC batch.
+     * @param entityManager the entity manager
+     * @param batch the batch
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void writeBatch(final EntityManager entityManager, final List<AuditLogEntry> batch)
+            throws SQLException {
+        entityManager.getTransaction().begin();
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(INSERT_SQL);
+            try {
+                for (final AuditLogEntry auditLogEntry : batch) {
+                    preparedStatement.setString(1, auditLogEntry.getAuditLogEntryId());
+                    preparedStatement.setString(2, auditLogEntry.getEvent());
+                    preparedStatement.setString(3, auditLogEntry.getComponentAddress());
+                    preparedStatement.setString(4, auditLogEntry.getComponentType());
+                    preparedStatement.setString(5, auditLogEntry.getUserAddress());
+                    preparedStatement.setString(6, auditLogEntry.getUserId());
+                    preparedStatement.setString(7, auditLogEntry.getUserName());
+                    preparedStatement.setString(8, auditLogEntry.getDataType());
+                    preparedStatement.setString(9, auditLogEntry.getDataId());
+                    preparedStatement.setString(10, auditLogEntry.getDataOldVersionId());
+                    preparedStatement.setString(11, auditLogEntry.getDataNewVersionId());
+                    preparedStatement.setString(12, auditLogEntry.getDataLabel());
+                    preparedStatement.setTimestamp(13, new Timestamp(auditLogEntry.getCreated().getTime()));
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+            } finally {
+                preparedStatement.close();
+            }
+            entityManager.getTransaction().commit();
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Spills audit log entries to audit log journal.
+     * @param auditLogEntries the audit log entries
+     */
+    private void spill(final List<AuditLogEntry> auditLogEntries) {
+        try {
+            for (final AuditLogEntry auditLogEntry : auditLogEntries) {
+                journal.append(auditLogEntry);
+            }
+        } catch (final IOException e) {
+            droppedCount.addAndGet(auditLogEntries.size());
+            LOGGER.error("Error spilling " + auditLogEntries.size() + " audit log entries to journal.", e);
+        }
+    }
+
+    /**
+     * Forces journal to disk if fsync interval has elapsed.
+     */
+    private void forceJournal() {
+        if (journal == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - lastForceMillis >= fsyncIntervalMillis) {
+            journal.force();
+            lastForceMillis = now;
+        }
+    }
+
+    /**
+     * Writes next batch of journaled audit log entries to database and acknowledges them in journal.
+     * Replay is paused for a while after failure.
+     * @param entityManager the entity manager
+     * @return true if entries were written
+     */
+    private boolean replayJournal(final EntityManager entityManager) {
+        if (journal == null || journal.isEmpty() || System.currentTimeMillis() < nextReplayMillis) {
+            return false;
+        }
+        final List<AuditLogEntry> auditLogEntries = journal.read(batchSize);
+        if (auditLogEntries.isEmpty()) {
+            return false;
+        }
+        try {
+            writeBatchIdempotently(entityManager, auditLogEntries);
+            journal.acknowledge(auditLogEntries.size());
+            return true;
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to replay audit log entries from journal.", e);
+            nextReplayMillis = System.currentTimeMillis() + 5000;
+            return false;
+        }
+    }
+
+    /**
+     * Writes batch of audit log entries to database skipping entries which already exist.
+     * Entries may already exist if process stopped after writing them but before acknowledging
+     * them in journal.
+     * @param entityManager the entity manager
+     * @param batch the batch
+     * @throws SQLException if SQL exception occurs
+     */
+    private static void writeBatchIdempotently(final EntityManager entityManager, final List<AuditLogEntry> batch)
+            throws SQLException {
+        try {
+            writeBatch(entityManager, batch);
+            return;
+        } catch (final SQLException e) {
+            LOGGER.debug("Audit log batch write failed, retrying entry by entry.", e);
+        }
+        for (final AuditLogEntry auditLogEntry : batch) {
+            if (!exists(entityManager, auditLogEntry.getAuditLogEntryId())) {
+                writeBatch(entityManager, Collections.singletonList(auditLogEntry));
+            }
+        }
+    }
+
+    /**
+     * Checks whether audit log entry exists in database.
+     * @param entityManager the entity manager
+     * @param auditLogEntryId the audit log entry ID
+     * @return true if audit log entry exists
+     * @throws SQLException if SQL exception occurs
+     */
+    private static boolean exists(final EntityManager entityManager, final String auditLogEntryId)
+            throws SQLException {
+        entityManager.getTransaction().begin();
+        try {
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT COUNT(*) FROM auditlogentry WHERE auditlogentryid = ?");
+            try {
+                preparedStatement.setString(1, auditLogEntryId);
+                final ResultSet resultSet = preparedStatement.executeQuery();
+                resultSet.next();
+                return resultSet.getInt(1) > 0;
+            } finally {
+                preparedStatement.close();
+            }
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Gets site property or default value if property is not defined.
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value
+     */
+    private static String getProperty(final String key, final String defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        return value != null && value.trim().length() > 0 ? value.trim() : defaultValue;
+    }
+}
@@ -19,7 +19,9 @@ import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.model.AuditLogEntry;
 
 import javax.persistence.EntityManager;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Audit log service.
@@ -116,7 +118,45 @@ public class AuditService {
     }
 
     /**
-     * Logs audit log entry.
+     * Log audit event related to versioned data. Durable events are written synchronously
+     * to database before returning even if asynchronous audit log writer has been started.
+     * @param securityContext the processing context
+     * @param event the event
+     * @param dataType the data type
+     * @param dataId the data ID
+     * @param dataOldVersionId the old data version ID
+     * @param dataNewVersionId the new data version ID
+     * @param dataLabel the data label
+     * @param durable true if event is to be written synchronously
+     */
+    public static void log(final SecurityContext securityContext,
+                           final String event,
+                           final String dataType,
+                           final String dataId,
+                           final String dataOldVersionId,
+                           final String dataNewVersionId,
+                           final String dataLabel,
+                           final boolean durable) {
+        log(securityContext.getAuditEntityManager(),
+                event,
+                securityContext.getLocalIpAddress() + ":" +
+                securityContext.getComponentPort() + " (" + securityContext.getServerName() + ")",
+                securityContext.getComponentType(),
+                securityContext.getRemoteIpAddress() + ":" +
+                securityContext.getRemotePort() + " (" + securityContext.getRemoteHost() + ")",
+                securityContext.getUserId(),
+                securityContext.getUserName(),
+                dataType,
+                dataId,
+                dataOldVersionId,
+                dataNewVersionId,
+                dataLabel,
+                durable);
+    }
+
+    /**
+     * Logs audit log entry. Entry is written asynchronously if asynchronous audit log
+     * writer has been started and otherwise synchronously with given entity manager.
      *
      * @param entityManager the entity manager
      * @param event the event
@@ -144,6 +184,43 @@ public class AuditService {
                                     String dataOldVersionId,
                                     String dataNewVersionId,
                                     String dataLabel) {
+        return log(entityManager, event, componentAddress, componentType, userAddress, userId, userName,
+                dataType, dataId, dataOldVersionId, dataNewVersionId, dataLabel, false);
+    }
+
+    /**
+     * Logs audit log entry. Entry is written asynchronously if asynchronous audit log
+     * writer has been started and entry is not durable and otherwise synchronously with
+     * given entity manager.
+     *
+     * @param entityManager the entity manager
+     * @param event the event
+     * @param componentAddress the component address
+     * @param componentType the component type
+     * @param userAddress the user address
+     * @param userId the user ID
+     * @param userName the user name
+     * @param dataType the data type
+     * @param dataId the data ID
+     * @param dataOldVersionId the old data version ID
+     * @param dataNewVersionId the new data version ID
+     * @param dataLabel the data label
+     * @param durable true if entry is to be written synchronously
+     * @return the audit log entry
+     */
+    protected static AuditLogEntry log(EntityManager entityManager,
+                                    String event,
+                                    String componentAddress,
+                                    String componentType,
+                                    String userAddress,
+                                    String userId,
+                                    String userName,
+                                    String dataType,
+                                    String dataId,
+                                    String dataOldVersionId,
+                                    String dataNewVersionId,
+                                    String dataLabel,
+                                    boolean durable) {
         final AuditLogEntry auditLogEntry = new AuditLogEntry(
                 event,
                 componentAddress,
@@ -159,6 +236,9 @@ public class AuditService {
                 new Date()
         );
         LOGGER.info(auditLogEntry);
+        if (!durable && AuditLogWriter.write(auditLogEntry)) {
+            return auditLogEntry;
+        }
         entityManager.getTransaction().begin();
         try {
             entityManager.persist(auditLogEntry);
@@ -174,6 +254,42 @@ public class AuditService {
         }
     }
 
+    /**
+     * Logs audit log entries in bulk. Entries are written asynchronously if asynchronous audit log
+     * writer has been started and otherwise synchronously in single transaction.
+     *
+     * @param entityManager the entity manager
+     * @param auditLogEntries the audit log entries
+     */
+    protected static void log(final EntityManager entityManager, final List<AuditLogEntry> auditLogEntries) {
+        final List<AuditLogEntry> unwrittenEntries = new ArrayList<AuditLogEntry>();
+        for (final AuditLogEntry auditLogEntry : auditLogEntries) {
+            LOGGER.info(auditLogEntry);
+            if (!AuditLogWriter.write(auditLogEntry)) {
+                unwrittenEntries.add(auditLogEntry);
+            }
+        }
+        if (unwrittenEntries.isEmpty()) {
+            return;
+        }
+        entityManager.getTransaction().begin();
+        try {
+            for (final AuditLogEntry auditLogEntry : unwrittenEntries) {
+                entityManager.persist(auditLogEntry);
+            }
+            entityManager.getTransaction().commit();
+            for (final AuditLogEntry auditLogEntry : unwrittenEntries) {
+                entityManager.detach(auditLogEntry);
+            }
+        } catch (final Exception e) {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            LOGGER.error("Error writing audit log entries: " + unwrittenEntries.size());
+            throw new SecurityException(e);
+        }
+    }
+
     /**
      * Gets audit log entry with given audit log entry ID.
      * @param entityManager the entity manager
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.InMemoryCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable binary prefix trie compiled from comma separated list of IPv4 and IPv6 CIDR
+ * specifications. Matching walks the bits of parsed address bytes without allocation.
+ * IPv4 mapped IPv6 addresses are matched against IPv4 prefixes. Addresses are parsed
+ * from numeric literals only so that matching never causes DNS lookups.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class CidrTrie {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(CidrTrie.class);
+
+    /** The IPv4 root node index. */
+    private static final int IPV4_ROOT = 0;
+    /** The IPv6 root node index. */
+    private static final int IPV6_ROOT = 1;
+    /** The child index of missing child. Roots are never children. */
+    private static final int NONE = 0;
+
+    /** The compiled tries by CIDR list. */
+    private static final InMemoryCache<String, CidrTrie> compiledTries =
+            new InMemoryCache<String, CidrTrie>(0, 0, 1000);
+
+    /** The zero bit child indexes by node index. */
+    private final int[] zeroChildren;
+    /** The one bit child indexes by node index. */
+    private final int[] oneChildren;
+    /** The flags marking nodes which end a prefix by node index. */
+    private final boolean[] terminals;
+    /** True if trie contains no prefixes. */
+    private final boolean empty;
+    /** The invalid CIDR specifications skipped while compiling. */
+    private final List<String> invalidEntries;
+
+    /**
+     * Gets compiled trie for CIDR list. Compiled tries are cached by CIDR list so that
+     * trie is rebuilt only when the list changes. Invalid CIDR specifications are skipped and
+     * logged so that single malformed entry does not disable the whole list.
+     * @param cidrList the comma separated CIDR list or null
+     * @return the compiled trie
+     */
+    public static CidrTrie getCompiled(final String cidrList) {
+        final String key = cidrList != null ? cidrList : "";
+        final CidrTrie cachedTrie = compiledTries.get(key);
+        if (cachedTrie != null) {
+            return cachedTrie;
+        }
+        final CidrTrie trie = new CidrTrie(key, true);
+        if (!trie.getInvalidEntries().isEmpty()) {
+            LOGGER.error("Skipped invalid CIDR specifications " + trie.getInvalidEntries() + " of list: " + key);
+        }
+        compiledTries.put(key, trie);
+        return trie;
+    }
+
+    /**
+     * Constructor which compiles CIDR list. Specifications without prefix length match single address.
+     * @param cidrList the comma separated CIDR list
+     * @throws IllegalArgumentException if CIDR list contains invalid CIDR specification
+     */
+    public CidrTrie(final String cidrList) {
+        this(cidrList, false);
+    }
+
+    /**
+     * Constructor which compiles CIDR list. Specifications without prefix length match single address.
+     * @param cidrList the comma separated CIDR list
+     * @param skipInvalid true if invalid CIDR specifications are skipped instead of rejected
+     * @throws IllegalArgumentException if CIDR list contains invalid CIDR specification and
+     *                                  invalid specifications are not skipped
+     */
+    public CidrTrie(final String cidrList, final boolean skipInvalid) {
+        final List<String> invalids = new ArrayList<String>();
+        int[] zeros = new int[64];
+        int[] ones = new int[64];
+        boolean[] ends = new boolean[64];
+        int nodeCount = 2;
+        int prefixCount = 0;
+
+        for (final String item : cidrList.split(",")) {
+            final String cidr = item.trim();
+            if (cidr.length() == 0) {
+                continue;
+            }
+            final int separator = cidr.indexOf('/');
+            final byte[] address = parseAddress(separator >= 0 ? cidr.substring(0, separator) : cidr);
+            if (address == null) {
+                if (skipInvalid) {
+                    invalids.add(cidr);
+                    continue;
+                }
+                throw new IllegalArgumentException("Invalid CIDR address: " + cidr);
+            }
+            final int prefixLength = parsePrefixLength(cidr, separator, address.length * 8);
+            if (prefixLength < 0) {
+                if (skipInvalid) {
+                    invalids.add(cidr);
+                    continue;
+                }
+                throw new IllegalArgumentException("Invalid CIDR prefix length: " + cidr);
+            }
+
+            int node = address.length == 4 ? IPV4_ROOT : IPV6_ROOT;
+            for (int i = 0; i < prefixLength; i++) {
+                final int bit = getBit(address, i);
+                int child = bit == 0 ? zeros[node] : ones[node];
+                if (child == NONE) {
+                    if (nodeCount == zeros.length) {
+                        zeros = Arrays.copyOf(zeros, nodeCount * 2);
+                        ones = Arrays.copyOf(ones, nodeCount * 2);
+                        ends = Arrays.copyOf(ends, nodeCount * 2);
+                    }
+                    child = nodeCount++;
+                    if (bit == 0) {
+                        zeros[node] = child;
+                    } else {
+                        ones[node] = child;
+                    }
+                }
+                node = child;
+            }
+            ends[node] = true;
+            prefixCount++;
+        }
+
+        zeroChildren = Arrays.copyOf(zeros, nodeCount);
+        oneChildren = Arrays.copyOf(ones, nodeCount);
+        terminals = Arrays.copyOf(ends, nodeCount);
+        empty = prefixCount == 0;
+        invalidEntries = Collections.unmodifiableList(invalids);
+    }
+
+    /**
+     * Gets invalid CIDR specifications skipped while compiling.
+     * @return the invalid CIDR specifications
+     */
+    public List<String> getInvalidEntries() {
+        return invalidEntries;
+    }
+
+    /**
+     * Checks whether trie contains no prefixes.
+     * @return true if trie is empty
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Checks whether IP address literal matches any prefix.
+     * @param ipAddress the IP address literal
+     * @return true if address is valid and matches a prefix
+     */
+    public boolean contains(final String ipAddress) {
+        return !empty && contains(parseAddress(ipAddress));
+    }
+
+    /**
+     * Checks whether address matches any prefix.
+     * @param address the 4 byte IPv4 or 16 byte IPv6 address
+     * @return true if address matches a prefix
+     */
+    public boolean contains(final byte[] address) {
+        if (empty || address == null) {
+            return false;
+        }
+        int node;
+        int offset;
+        if (address.length == 4) {
+            node = IPV4_ROOT;
+            offset = 0;
+        } else if (address.length == 16) {
+            if (isIpv4Mapped(address)) {
+                node = IPV4_ROOT;
+                offset = 96;
+            } else {
+                node = IPV6_ROOT;
+                offset = 0;
+            }
+        } else {
+            return false;
+        }
+        if (terminals[node]) {
+            return true;
+        }
+        for (int i = offset; i < address.length * 8; i++) {
+            node = getBit(address, i) == 0 ? zeroChildren[node] : oneChildren[node];
+            if (node == NONE) {
+                return false;
+            }
+            if (terminals[node]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses numeric IPv4 or IPv6 address literal. IPv6 literal may be enclosed in brackets
+     * and contain zone index which is ignored.
+     * @param value the address literal
+     * @return the 4 byte IPv4 or 16 byte IPv6 address or null if value is not valid address literal
+     */
+    public static byte[] parseAddress(final String value) {
+        if (value == null) {
+            return null;
+        }
+        String address = value.trim();
+        if (address.startsWith("[") && address.endsWith("]")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        final int zoneIndex = address.indexOf('%');
+        if (zoneIndex >= 0) {
+            address = address.substring(0, zoneIndex);
+        }
+        if (address.indexOf(':') < 0) {
+            final byte[] bytes = new byte[4];
+            return parseIpv4(address, bytes) ? bytes : null;
+        }
+
+        final int[] groups = new int[8];
+        final int compression = address.indexOf("::");
+        if (compression < 0) {
+            if (parseGroups(address, groups, true) != 8) {
+                return null;
+            }
+        } else {
+            if (address.indexOf("::", compression + 1) >= 0) {
+                return null;
+            }
+            final int[] tailGroups = new int[8];
+            final int headCount = parseGroups(address.substring(0, compression), groups, false);
+            final int tailCount = parseGroups(address.substring(compression + 2), tailGroups, true);
+            if (headCount < 0 || tailCount < 0 || headCount + tailCount > 7) {
+                return null;
+            }
+            System.arraycopy(tailGroups, 0, groups, 8 - tailCount, tailCount);
+        }
+        final byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i * 2] = (byte) (groups[i] >>> 8);
+            bytes[i * 2 + 1] = (byte) groups[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Parses prefix length of CIDR specification.
+     * @param cidr the CIDR specification
+     * @param separator the index of prefix length separator or -1 if prefix length is missing
+     * @param maximum the address length in bits
+     * @return the prefix length or -1 if prefix length is invalid
+     */
+    private static int parsePrefixLength(final String cidr, final int separator, final int maximum) {
+        if (separator < 0) {
+            return maximum;
+        }
+        final int prefixLength;
+        try {
+            prefixLength = Integer.parseInt(cidr.substring(separator + 1));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+        return prefixLength <= maximum ? prefixLength : -1;
+    }
+
+    /**
+     * Parses dotted decimal IPv4 address.
+     * @param address the address
+     * @param bytes the array to write 4 address bytes to
+     * @return true if address is valid
+     */
+    private static boolean parseIpv4(final String address, final byte[] bytes) {
+        int part = 0;
+        int value = -1;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255 || ++digits > 3) {
+                    return false;
+                }
+            } else if (c == '.') {
+                if (value < 0 || part == 3) {
+                    return false;
+                }
+                bytes[part++] = (byte) value;
+                value = -1;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (value < 0 || part != 3) {
+            return false;
+        }
+        bytes[3] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Parses colon separated IPv6 groups. Last group may be dotted decimal IPv4 address
+     * which is parsed as two groups.
+     * @param part the colon separated groups
+     * @param groups the array to write groups to
+     * @param allowIpv4 true if last group may be IPv4 address
+     * @return the number of groups parsed or -1 if groups are invalid
+     */
+    private static int parseGroups(final String part, final int[] groups, final boolean allowIpv4) {
+        if (part.length() == 0) {
+            return 0;
+        }
+        final String[] fields = part.split(":", -1);
+        int count = 0;
+        for (int i = 0; i < fields.length; i++) {
+            final String field = fields[i];
+            if (allowIpv4 && i == fields.length - 1 && field.indexOf('.') >= 0) {
+                final byte[] ipv4 = new byte[4];
+                if (count > 6 || !parseIpv4(field, ipv4)) {
+                    return -1;
+                }
+                groups[count++] = ((ipv4[0] & 0xff) << 8) | (ipv4[1] & 0xff);
+                groups[count++] = ((ipv4[2] & 0xff) << 8) | (ipv4[3] & 0xff);
+                continue;
+            }
+            if (field.length() == 0 || field.length() > 4 || count == 8) {
+                return -1;
+            }
+            int value = 0;
+            for (int j = 0; j < field.length(); j++) {
+                final int digit = Character.digit(field.charAt(j), 16);
+                if (digit < 0) {
+                    return -1;
+                }
+                value = value * 16 + digit;
+            }
+            groups[count++] = value;
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether IPv6 address is IPv4 mapped address.
+     * @param address the 16 byte address
+     * @return true if address is IPv4 mapped
+     */
+    private static boolean isIpv4Mapped(final byte[] address) {
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+    }
+
+    /**
+     * Gets bit of address.
+     * @param address the address
+     * @param index the bit index starting from most significant bit
+     * @return the bit value 0 or 1
+     */
+    private static int getBit(final byte[] address, final int index) {
+        return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+}
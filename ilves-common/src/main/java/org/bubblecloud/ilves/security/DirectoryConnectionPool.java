@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.ldap.client.api.LdapConnectionPool;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.ldap.client.api.PoolableLdapConnectionFactory;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pooled LDAP connections of user directory. Service connections are bound with the directory
+ * login DN and used for searches. Bind connections are used only for verifying user credentials
+ * so that service connections never change identity. Idle connections are validated and evicted
+ * periodically.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class DirectoryConnectionPool {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(DirectoryConnectionPool.class);
+
+    /** The connection pools by user directory ID. */
+    private static final ConcurrentHashMap<String, DirectoryConnectionPool> pools =
+            new ConcurrentHashMap<String, DirectoryConnectionPool>();
+
+    /** The connection settings the pools were created with. */
+    private final String settings;
+    /** The service connection pool. */
+    private final LdapConnectionPool servicePool;
+    /** The bind connection pool. */
+    private final LdapConnectionPool bindPool;
+
+    /**
+     * Gets connection pool of user directory. Pool is recreated if connection
+     * settings of the user directory have changed.
+     * @param userDirectory the user directory
+     * @return the connection pool
+     */
+    public static DirectoryConnectionPool getPool(final UserDirectory userDirectory) {
+        final String settings = getSettings(userDirectory);
+        while (true) {
+            final DirectoryConnectionPool pool = pools.get(userDirectory.getUserDirectoryId());
+            if (pool != null && pool.settings.equals(settings)) {
+                return pool;
+            }
+            final DirectoryConnectionPool newPool = new DirectoryConnectionPool(userDirectory, settings);
+            final boolean added = pool == null
+                    ? pools.putIfAbsent(userDirectory.getUserDirectoryId(), newPool) == null
+                    : pools.replace(userDirectory.getUserDirectoryId(), pool, newPool);
+            if (added) {
+                if (pool != null) {
+                    pool.close();
+                }
+                return newPool;
+            }
+            newPool.close();
+        }
+    }
+
+    /**
+     * Closes all connection pools.
+     */
+    public static void closeAll() {
+        for (final String userDirectoryId : pools.keySet()) {
+            final DirectoryConnectionPool pool = pools.remove(userDirectoryId);
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Constructor which creates service and bind connection pools.
+     * @param userDirectory the user directory
+     * @param settings the connection settings
+     */
+    private DirectoryConnectionPool(final UserDirectory userDirectory, final String settings) {
+        this.settings = settings;
+
+        final LdapConnectionConfig serviceConfig = new LdapConnectionConfig();
+        serviceConfig.setLdapHost(userDirectory.getAddress());
+        serviceConfig.setLdapPort(userDirectory.getPort());
+        serviceConfig.setName(userDirectory.getLoginDn());
+        serviceConfig.setCredentials(userDirectory.getLoginPassword());
+        servicePool = new LdapConnectionPool(new PoolableLdapConnectionFactory(serviceConfig));
+        configure(servicePool);
+
+        final LdapConnectionConfig bindConfig = new LdapConnectionConfig();
+        bindConfig.setLdapHost(userDirectory.getAddress());
+        bindConfig.setLdapPort(userDirectory.getPort());
+        bindPool = new LdapConnectionPool(new BindConnectionFactory(bindConfig));
+        configure(bindPool);
+    }
+
+    /**
+     * Borrows service connection bound with the directory login DN.
+     * @return the service connection
+     * @throws Exception if connection can not be borrowed
+     */
+    public LdapConnection borrowServiceConnection() throws Exception {
+        return servicePool.getConnection();
+    }
+
+    /**
+     * Releases service connection back to pool or destroys it if it is broken.
+     * @param connection the service connection
+     * @param broken true if connection failed during use
+     */
+    public void releaseServiceConnection(final LdapConnection connection, final boolean broken) {
+        release(servicePool, connection, broken);
+    }
+
+    /**
+     * Verifies user credentials by binding with pooled bind connection. Bind is retried once
+     * with another connection if pooled connection fails for other reason than invalid credentials.
+     * @param dn the user DN
+     * @param password the user password
+     * @return true if bind succeeded
+     * @throws Exception if connection fails
+     */
+    public boolean verifyBind(final Dn dn, final char[] password) throws Exception {
+        // Empty password would be unauthenticated bind which directories accept.
+        if (password == null || password.length == 0) {
+            return false;
+        }
+        for (int attempt = 1; ; attempt++) {
+            final LdapConnection connection = bindPool.getConnection();
+            boolean broken = true;
+            try {
+                connection.bind(dn, new String(password));
+                broken = false;
+                return true;
+            } catch (final LdapAuthenticationException e) {
+                broken = false;
+                return false;
+            } catch (final LdapException e) {
+                if (attempt == 2) {
+                    throw e;
+                }
+                LOGGER.debug("Retrying bind with another connection due to: " + e.getMessage());
+            } finally {
+                release(bindPool, connection, broken);
+            }
+        }
+    }
+
+    /**
+     * Closes pools. Idle connections are closed immediately and borrowed connections when released.
+     */
+    private void close() {
+        try {
+            servicePool.close();
+            bindPool.close();
+        } catch (final Exception e) {
+            LOGGER.warn("Error closing LDAP connection pool.", e);
+        }
+    }
+
+    /**
+     * Releases connection back to pool or destroys it if it is broken.
+     * @param pool the pool
+     * @param connection the connection
+     * @param broken true if connection failed during use
+     */
+    private static void release(final LdapConnectionPool pool, final LdapConnection connection,
+                                final boolean broken) {
+        try {
+            if (broken) {
+                pool.invalidateObject(connection);
+            } else {
+                pool.releaseConnection(connection);
+            }
+        } catch (final Exception e) {
+            LOGGER.warn("Error releasing LDAP connection.", e);
+        }
+    }
+
+    /**
+     * Configures pool size, health checks and idle eviction from site properties.
+     * @param pool the pool
+     */
+    private static void configure(final GenericObjectPool<LdapConnection> pool) {
+        final int maxSize = Integer.parseInt(PropertiesUtil.getProperty("site", "ldap-pool-max-size"));
+        pool.setMaxActive(maxSize);
+        pool.setMaxIdle(maxSize);
+        pool.setMinIdle(0);
+        pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        pool.setMaxWait(Long.parseLong(PropertiesUtil.getProperty("site", "ldap-pool-max-wait-millis")));
+        pool.setTestOnBorrow(false);
+        pool.setTestWhileIdle(true);
+        pool.setMinEvictableIdleTimeMillis(Long.parseLong(
+                PropertiesUtil.getProperty("site", "ldap-pool-idle-timeout-millis")));
+        pool.setTimeBetweenEvictionRunsMillis(Long.parseLong(
+                PropertiesUtil.getProperty("site", "ldap-pool-eviction-interval-millis")));
+        pool.setNumTestsPerEvictionRun(maxSize);
+    }
+
+    /**
+     * Gets connection settings of user directory.
+     * @param userDirectory the user directory
+     * @return the connection settings
+     */
+    private static String getSettings(final UserDirectory userDirectory) {
+        return userDirectory.getAddress() + ":" + userDirectory.getPort() + ":" + userDirectory.getLoginDn()
+                + ":" + userDirectory.getLoginPassword();
+    }
+
+    /**
+     * Factory for bind connections which are connected but not bound.
+     */
+    private static final class BindConnectionFactory extends PoolableLdapConnectionFactory {
+        /** The connection configuration. */
+        private final LdapConnectionConfig config;
+
+        /**
+         * Constructor which sets the connection configuration.
+         * @param config the connection configuration
+         */
+        private BindConnectionFactory(final LdapConnectionConfig config) {
+            super(config);
+            this.config = config;
+        }
+
+        @Override
+        public LdapConnection makeObject() throws Exception {
+            final LdapNetworkConnection connection = new LdapNetworkConnection(config);
+            connection.connect();
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.AccessTokenCache;
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.GroupMember;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronizes local group memberships of directory users periodically in background. Users and
+ * mapped remote groups are read from each enabled user directory with paged searches, remote
+ * memberships are compared against group member rows of mapped local groups in bulk and the
+ * differences are applied in batched transactions. While synchronizer is running login only
+ * verifies the directory bind and required remote group.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class DirectoryGroupSynchronizer {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(DirectoryGroupSynchronizer.class);
+
+    /** The component type of audit log entries. */
+    private static final String COMPONENT_TYPE = "directory-group-sync";
+
+    /** The synchronization executor or null if not started. */
+    private static ScheduledExecutorService executor;
+
+    /**
+     * Starts periodic group synchronization if enabled in site properties.
+     * @param entityManagerFactory the entity manager factory
+     */
+    public static synchronized void start(final EntityManagerFactory entityManagerFactory) {
+        final long intervalMillis = Long.parseLong(getProperty("ldap-group-sync-interval-millis", "0"));
+        if (executor != null || intervalMillis <= 0) {
+            return;
+        }
+        final int pageSize = Integer.parseInt(getProperty("ldap-group-sync-page-size", "500"));
+        final int batchSize = Integer.parseInt(getProperty("ldap-group-sync-batch-size", "200"));
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ilves-directory-group-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                try {
+                    synchronizeAll(entityManager, pageSize, batchSize);
+                } catch (final Exception e) {
+                    LOGGER.error("Error in directory group synchronization.", e);
+                } finally {
+                    entityManager.close();
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic group synchronization.
+     */
+    public static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Checks whether periodic group synchronization is started.
+     * @return true if synchronizer is started
+     */
+    public static synchronized boolean isStarted() {
+        return executor != null;
+    }
+
+    /**
+     * Synchronizes group memberships of all enabled user directories. Failure of
+     * one directory does not prevent synchronization of the others.
+     * @param entityManager the entity manager
+     * @param pageSize the LDAP search page size
+     * @param batchSize the maximum number of group member changes per transaction
+     */
+    static void synchronizeAll(final EntityManager entityManager, final int pageSize, final int batchSize) {
+        for (final UserDirectory userDirectory : UserDirectoryDao.getEnabledUserDirectories(entityManager)) {
+            try {
+                synchronize(entityManager, userDirectory, pageSize, batchSize);
+            } catch (final Exception e) {
+                LOGGER.error("Error synchronizing groups of user directory: "
+                        + userDirectory.getAddress() + ":" + userDirectory.getPort(), e);
+            } finally {
+                entityManager.clear();
+            }
+        }
+    }
+
+    /**
+     * Synchronizes local group memberships of company users against user directory. Users found from
+     * user directory are marked as directory users by recording their DN. Directory users no longer
+     * found from user directory lose their memberships in mapped local groups while memberships of
+     * local users never found from user directory are left untouched.
+     * @param entityManager the entity manager
+     * @param userDirectory the user directory
+     * @param pageSize the LDAP search page size
+     * @param batchSize the maximum number of group member changes per transaction
+     * @throws Exception if directory access or database update fails
+     */
+    static void synchronize(final EntityManager entityManager, final UserDirectory userDirectory,
+                            final int pageSize, final int batchSize) throws Exception {
+        final Company company = userDirectory.getOwner();
+        final Map<String, String> groupMapping = PasswordLoginUtil.getRemoteLocalGroupMapping(userDirectory);
+        final Map<String, Group> localGroups = UserDao.getGroups(entityManager, company,
+                new HashSet<String>(groupMapping.values()));
+        if (localGroups.isEmpty()) {
+            return;
+        }
+
+        final Map<String, User> usersByEmailAddress = new HashMap<String, User>();
+        for (final User user : UserDao.getUsers(entityManager, company)) {
+            if (company.equals(user.getOwner()) && user.getEmailAddress() != null) {
+                usersByEmailAddress.put(user.getEmailAddress().toLowerCase(), user);
+            }
+        }
+
+        final Map<String, User> usersByDn = new HashMap<String, User>();
+        final Map<String, Set<String>> remoteGroupMemberDns = new HashMap<String, Set<String>>();
+        readDirectory(userDirectory, groupMapping.keySet(), usersByEmailAddress, pageSize,
+                usersByDn, remoteGroupMemberDns);
+
+        // Directory DNs are recorded so that users removed from directory can later be told apart from local users.
+        final List<User> changedUsers = new ArrayList<User>();
+        for (final Map.Entry<String, User> userEntry : usersByDn.entrySet()) {
+            if (!userEntry.getKey().equals(userEntry.getValue().getDirectoryDn())) {
+                userEntry.getValue().setDirectoryDn(userEntry.getKey());
+                changedUsers.add(userEntry.getValue());
+            }
+        }
+        for (int i = 0; i < changedUsers.size(); i += batchSize) {
+            UserDao.updateUsers(entityManager, changedUsers.subList(i, Math.min(i + batchSize, changedUsers.size())));
+        }
+
+        // Desired memberships of directory users keyed by user ID and group ID.
+        final Map<String, GroupMember> desiredGroupMembers = new LinkedHashMap<String, GroupMember>();
+        for (final Map.Entry<String, User> userEntry : usersByDn.entrySet()) {
+            for (final Map.Entry<String, String> mapping : groupMapping.entrySet()) {
+                final Group localGroup = localGroups.get(mapping.getValue());
+                final Set<String> memberDns = remoteGroupMemberDns.get(mapping.getKey());
+                if (localGroup != null && memberDns != null && memberDns.contains(userEntry.getKey())) {
+                    final User user = userEntry.getValue();
+                    desiredGroupMembers.put(user.getUserId() + ":" + localGroup.getGroupId(),
+                            new GroupMember(localGroup, user));
+                }
+            }
+        }
+
+        // Memberships of directory users in mapped groups are removed unless desired, including
+        // memberships of users who have been removed from directory. Local users without directory
+        // DN keep their manual memberships. Empty directory result is not trusted to avoid stripping
+        // all memberships on misconfigured search base.
+        final Set<User> directoryUsers = new HashSet<User>();
+        for (final User user : usersByEmailAddress.values()) {
+            if (user.getDirectoryDn() != null) {
+                directoryUsers.add(user);
+            }
+        }
+        final boolean removeMemberships = !usersByDn.isEmpty();
+        if (!removeMemberships) {
+            LOGGER.warn("No users found from user directory " + userDirectory.getAddress() + ":"
+                    + userDirectory.getPort() + ", skipping removal of group memberships.");
+        }
+        final List<GroupMember> removedGroupMembers = new ArrayList<GroupMember>();
+        for (final GroupMember groupMember : UserDao.getGroupMembers(entityManager, localGroups.values())) {
+            final String key = groupMember.getUser().getUserId() + ":" + groupMember.getGroup().getGroupId();
+            if (desiredGroupMembers.remove(key) == null && removeMemberships
+                    && directoryUsers.contains(groupMember.getUser())) {
+                removedGroupMembers.add(groupMember);
+            }
+        }
+        final List<GroupMember> addedGroupMembers = new ArrayList<GroupMember>(desiredGroupMembers.values());
+
+        final String componentAddress = userDirectory.getAddress() + ":" + userDirectory.getPort();
+        for (int i = 0; i < addedGroupMembers.size(); i += batchSize) {
+            applyBatch(entityManager, company, componentAddress,
+                    addedGroupMembers.subList(i, Math.min(i + batchSize, addedGroupMembers.size())),
+                    new ArrayList<GroupMember>());
+        }
+        for (int i = 0; i < removedGroupMembers.size(); i += batchSize) {
+            applyBatch(entityManager, company, componentAddress, new ArrayList<GroupMember>(),
+                    removedGroupMembers.subList(i, Math.min(i + batchSize, removedGroupMembers.size())));
+        }
+
+        LOGGER.info("Synchronized groups of user directory " + componentAddress + ": users: " + usersByDn.size()
+                + ", added memberships: " + addedGroupMembers.size()
+                + ", removed memberships: " + removedGroupMembers.size());
+    }
+
+    /**
+     * Applies batch of group member changes in single transaction, logs audit entries in bulk
+     * and invalidates cached privileges of the affected users.
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param componentAddress the user directory address
+     * @param addedGroupMembers the group members to add
+     * @param removedGroupMembers the group members to remove
+     */
+    private static void applyBatch(final EntityManager entityManager, final Company company,
+                                   final String componentAddress,
+                                   final List<GroupMember> addedGroupMembers,
+                                   final List<GroupMember> removedGroupMembers) {
+        UserDao.updateGroupMembers(entityManager, addedGroupMembers, removedGroupMembers);
+
+        final Date now = new Date();
+        final List<AuditLogEntry> auditLogEntries = new ArrayList<AuditLogEntry>();
+        final Set<String> userIds = new HashSet<String>();
+        for (final GroupMember groupMember : addedGroupMembers) {
+            auditLogEntries.add(newAuditLogEntry(groupMember, " member add", componentAddress, now));
+            userIds.add(groupMember.getUser().getUserId());
+        }
+        for (final GroupMember groupMember : removedGroupMembers) {
+            auditLogEntries.add(newAuditLogEntry(groupMember, " member remove", componentAddress, now));
+            userIds.add(groupMember.getUser().getUserId());
+        }
+        AuditService.log(entityManager, auditLogEntries);
+        PrivilegeCache.invalidate(company, userIds);
+        AccessTokenCache.invalidateUsers(userIds);
+    }
+
+    /**
+     * Constructs audit log entry of group member change.
+     * @param groupMember the group member
+     * @param action the action suffix of the event
+     * @param componentAddress the user directory address
+     * @param created the created time
+     * @return the audit log entry
+     */
+    private static AuditLogEntry newAuditLogEntry(final GroupMember groupMember, final String action,
+                                                  final String componentAddress, final Date created) {
+        final User user = groupMember.getUser();
+        return new AuditLogEntry(groupMember.getGroup().getName() + action, componentAddress, COMPONENT_TYPE,
+                null, null, null, "user", user.getUserId(), null, null, user.getEmailAddress(), created);
+    }
+
+    /**
+     * Reads local users and members of mapped remote groups from user directory.
+     * @param userDirectory the user directory
+     * @param remoteGroups the lower case names of mapped remote groups
+     * @param usersByEmailAddress the local users by lower case email address
+     * @param pageSize the LDAP search page size
+     * @param usersByDn the map to collect local users by normalized DN
+     * @param remoteGroupMemberDns the map to collect normalized member DNs by lower case remote group name
+     * @throws Exception if directory access fails
+     */
+    private static void readDirectory(final UserDirectory userDirectory, final Set<String> remoteGroups,
+                                      final Map<String, User> usersByEmailAddress, final int pageSize,
+                                      final Map<String, User> usersByDn,
+                                      final Map<String, Set<String>> remoteGroupMemberDns) throws Exception {
+        final String userEmailAttribute = userDirectory.getUserEmailAttribute();
+        final StringBuilder groupFilter = new StringBuilder("(|");
+        for (final String remoteGroup : remoteGroups) {
+            groupFilter.append("(cn=").append(FilterEncoder.encodeFilterValue(remoteGroup)).append(")");
+        }
+        groupFilter.append(")");
+
+        final DirectoryConnectionPool connectionPool = DirectoryConnectionPool.getPool(userDirectory);
+        final LdapConnection connection = connectionPool.borrowServiceConnection();
+        boolean connectionBroken = true;
+        try {
+            search(connection, userDirectory.getUserSearchBaseDn(), "(" + userEmailAttribute + "=*)", pageSize,
+                    new EntryHandler() {
+                        @Override
+                        public void handle(final Entry entry) throws LdapException {
+                            final Attribute emailAddress = entry.get(userEmailAttribute);
+                            if (emailAddress == null) {
+                                return;
+                            }
+                            final User user = usersByEmailAddress.get(emailAddress.getString().toLowerCase());
+                            if (user != null) {
+                                usersByDn.put(entry.getDn().getNormName(), user);
+                            }
+                        }
+                    }, userEmailAttribute);
+
+            search(connection, userDirectory.getGroupSearchBaseDn(), groupFilter.toString(), pageSize,
+                    new EntryHandler() {
+                        @Override
+                        public void handle(final Entry entry) throws LdapException {
+                            final Attribute commonNames = entry.get("cn");
+                            final Attribute uniqueMembers = entry.get("uniqueMember");
+                            if (commonNames == null || uniqueMembers == null) {
+                                return;
+                            }
+                            final Set<String> memberDns = new HashSet<String>();
+                            for (final Value<?> uniqueMember : uniqueMembers) {
+                                try {
+                                    memberDns.add(new Dn(uniqueMember.getString()).getNormName());
+                                } catch (final LdapInvalidDnException e) {
+                                    LOGGER.debug("Skipping invalid group member DN: " + uniqueMember.getString());
+                                }
+                            }
+                            for (final Value<?> commonName : commonNames) {
+                                final String groupName = commonName.getString().toLowerCase();
+                                if (remoteGroups.contains(groupName)) {
+                                    if (!remoteGroupMemberDns.containsKey(groupName)) {
+                                        remoteGroupMemberDns.put(groupName, new HashSet<String>());
+                                    }
+                                    remoteGroupMemberDns.get(groupName).addAll(memberDns);
+                                }
+                            }
+                        }
+                    }, "cn", "uniqueMember");
+            connectionBroken = false;
+        } finally {
+            connectionPool.releaseServiceConnection(connection, connectionBroken);
+        }
+    }
+
+    /**
+     * Searches one level below base DN page by page with paged results control.
+     * @param connection the LDAP connection
+     * @param baseDn the base DN
+     * @param filter the filter
+     * @param pageSize the page size
+     * @param handler the entry handler
+     * @param attributes the attributes to return
+     * @throws LdapException if search fails
+     */
+    private static void search(final LdapConnection connection, final String baseDn, final String filter,
+                               final int pageSize, final EntryHandler handler, final String... attributes)
+            throws LdapException {
+        byte[] cookie = null;
+        do {
+            final PagedResults pagedResults = new PagedResultsImpl();
+            pagedResults.setSize(pageSize);
+            pagedResults.setCookie(cookie);
+
+            final SearchRequest searchRequest = new SearchRequestImpl();
+            searchRequest.setBase(new Dn(baseDn));
+            searchRequest.setFilter(filter);
+            searchRequest.setScope(SearchScope.ONELEVEL);
+            searchRequest.addAttributes(attributes);
+            searchRequest.addControl(pagedResults);
+
+            final SearchCursor cursor = connection.search(searchRequest);
+            try {
+                while (cursor.next()) {
+                    if (cursor.isEntry()) {
+                        handler.handle(cursor.getEntry());
+                    }
+                }
+                final SearchResultDone searchResultDone = cursor.getSearchResultDone();
+                if (searchResultDone == null
+                        || searchResultDone.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS) {
+                    throw new LdapException("Paged search failed: " + baseDn + " " + filter + ": "
+                            + (searchResultDone != null ? searchResultDone.getLdapResult() : "no result"));
+                }
+                final PagedResults responsePagedResults =
+                        (PagedResults) searchResultDone.getControl(PagedResults.OID);
+                cookie = responsePagedResults != null ? responsePagedResults.getCookie() : null;
+            } catch (final CursorException e) {
+                throw new LdapException(e);
+            } finally {
+                cursor.close();
+            }
+        } while (cookie != null && cookie.length > 0);
+    }
+
+    /**
+     * Handler of entries returned by paged search.
+     */
+    private interface EntryHandler {
+        /**
+         * Handles search result entry.
+         * @param entry the entry
+         * @throws LdapException if entry can not be handled
+         */
+        void handle(Entry entry) throws LdapException;
+    }
+
+    /**
+     * Gets site property or default value if property is not defined.
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value
+     */
+    private static String getProperty(final String key, final String defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        return value != null && value.trim().length() > 0 ? value.trim() : defaultValue;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.StringUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * Legacy password hasher calculating single SHA-256 digest of salt and password where
+ * salt is either user ID or email address. Encoded hash is the hex encoded digest.
+ * Hashes of this algorithm always need rehashing.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class LegacySha256PasswordHasher implements PasswordHasher {
+    /** The algorithm identifier. */
+    public static final String ALGORITHM = "sha256";
+
+    /** The per thread message digests. */
+    private static final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new SecurityException(e);
+            }
+        }
+    };
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public boolean isEncodedBy(final String encodedHash) {
+        return encodedHash != null && encodedHash.matches("[0-9a-f]{64}");
+    }
+
+    @Override
+    public String hash(final User user, final char[] password) {
+        if (user.getUserId() == null) {
+            user.setUserId(UUID.randomUUID().toString());
+        }
+        return digest(user.getUserId(), password);
+    }
+
+    @Override
+    public boolean verify(final User user, final char[] password) {
+        final String encodedHash = user.getPasswordHash();
+        if (!isEncodedBy(encodedHash)) {
+            return false;
+        }
+        return encodedHash.equals(digest(user.getUserId(), password))
+                || encodedHash.equals(digest(user.getEmailAddress(), password));
+    }
+
+    @Override
+    public boolean needsRehash(final String encodedHash) {
+        return true;
+    }
+
+    /**
+     * Calculates hex encoded digest of salt and password.
+     * @param salt the salt
+     * @param password the password
+     * @return the hex encoded digest
+     */
+    private static String digest(final String salt, final char[] password) {
+        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(
+                ArrayUtils.addAll((salt + ":").toCharArray(), password));
+        return StringUtil.toHexString(messageDigest.get().digest(passwordAndSaltBytes));
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory counters of failed login attempts per account and per remote IP address. Account
+ * counters count consecutive failures until successful login or unlock regardless of time and
+ * decide when user is locked out so that failed logins do not write to database until lockout
+ * threshold is crossed. Account counters are seeded from failed login count persisted to user.
+ * Remote IP address counters are sliding windows which throttle login attempts from addresses
+ * with too many recent failures before password is verified. Counters are node local.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class LoginThrottle {
+    /** The maximum number of failure times tracked per key. */
+    private static final int MAX_TRACKED_FAILURES = 1024;
+
+    /** The sliding window length in milliseconds. */
+    private static final long WINDOW_MILLIS = Long.parseLong(
+            PropertiesUtil.getProperty("site", "login-throttle-window-millis"));
+    /** The maximum number of failures per remote IP address within window. */
+    private static final int MAX_IP_FAILURES = Integer.parseInt(
+            PropertiesUtil.getProperty("site", "login-throttle-max-ip-failures"));
+    /** The number of tracked keys after which expired windows are purged. */
+    private static final int MAX_KEYS = Integer.parseInt(
+            PropertiesUtil.getProperty("site", "login-throttle-max-keys"));
+
+    /** The failure windows by remote IP address key. */
+    private static final ConcurrentHashMap<String, FailureWindow> windows =
+            new ConcurrentHashMap<String, FailureWindow>();
+    /** The consecutive failure counts by user ID. */
+    private static final ConcurrentHashMap<String, AtomicInteger> accountFailures =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Checks whether login attempts from remote IP address are throttled.
+     * @param remoteIpAddress the remote IP address
+     * @return true if remote IP address has too many recent failed login attempts
+     */
+    public static boolean isThrottled(final String remoteIpAddress) {
+        final FailureWindow window = remoteIpAddress != null ? windows.get(getIpKey(remoteIpAddress)) : null;
+        return window != null && window.count(System.currentTimeMillis()) >= MAX_IP_FAILURES;
+    }
+
+    /**
+     * Records failed login attempt for account and remote IP address.
+     * @param userId the user ID or null if account is unknown
+     * @param persistedFailures the failed login count persisted to user used to seed account counter
+     * @param remoteIpAddress the remote IP address
+     * @return the number of consecutive failed login attempts of the account or 0 if account is unknown
+     */
+    public static int recordFailure(final String userId, final int persistedFailures, final String remoteIpAddress) {
+        return recordFailure(userId, persistedFailures, remoteIpAddress, System.currentTimeMillis());
+    }
+
+    /**
+     * Records failed login attempt for account and remote IP address at given time.
+     * @param userId the user ID or null if account is unknown
+     * @param persistedFailures the failed login count persisted to user used to seed account counter
+     * @param remoteIpAddress the remote IP address
+     * @param now the current time in milliseconds
+     * @return the number of consecutive failed login attempts of the account or 0 if account is unknown
+     */
+    static int recordFailure(final String userId, final int persistedFailures, final String remoteIpAddress,
+                             final long now) {
+        if (windows.size() > MAX_KEYS) {
+            purge(now);
+        }
+        if (remoteIpAddress != null) {
+            getWindow(getIpKey(remoteIpAddress)).add(now);
+        }
+        if (userId == null) {
+            return 0;
+        }
+        AtomicInteger failures = accountFailures.get(userId);
+        if (failures == null) {
+            final AtomicInteger newFailures = new AtomicInteger(persistedFailures);
+            failures = accountFailures.putIfAbsent(userId, newFailures);
+            if (failures == null) {
+                failures = newFailures;
+            }
+        }
+        return failures.incrementAndGet();
+    }
+
+    /**
+     * Resets failed login attempts of account after successful login or unlock.
+     * @param userId the user ID
+     */
+    public static void reset(final String userId) {
+        accountFailures.remove(userId);
+    }
+
+    /**
+     * Resets all failed login attempts.
+     */
+    static void clear() {
+        windows.clear();
+        accountFailures.clear();
+    }
+
+    /**
+     * Gets or creates failure window for key.
+     * @param key the key
+     * @return the failure window
+     */
+    private static FailureWindow getWindow(final String key) {
+        final FailureWindow window = windows.get(key);
+        if (window != null) {
+            return window;
+        }
+        final FailureWindow newWindow = new FailureWindow();
+        final FailureWindow existingWindow = windows.putIfAbsent(key, newWindow);
+        return existingWindow != null ? existingWindow : newWindow;
+    }
+
+    /**
+     * Removes windows without failures within window length.
+     * @param now the current time in milliseconds
+     */
+    private static void purge(final long now) {
+        for (final Map.Entry<String, FailureWindow> entry : windows.entrySet()) {
+            if (entry.getValue().count(now) == 0) {
+                windows.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Gets remote IP address key.
+     * @param remoteIpAddress the remote IP address
+     * @return the remote IP address key
+     */
+    private static String getIpKey(final String remoteIpAddress) {
+        return "ip:" + remoteIpAddress;
+    }
+
+    /**
+     * Times of failed login attempts within sliding window.
+     */
+    private static final class FailureWindow {
+        /** The failure times in ascending order. */
+        private final ArrayDeque<Long> failureTimes = new ArrayDeque<Long>();
+
+        /**
+         * Adds failure time.
+         * @param now the current time in milliseconds
+         * @return the number of failures within window
+         */
+        private synchronized int add(final long now) {
+            failureTimes.addLast(now);
+            if (failureTimes.size() > MAX_TRACKED_FAILURES) {
+                failureTimes.removeFirst();
+            }
+            return count(now);
+        }
+
+        /**
+         * Counts failures within window after removing older failures.
+         * @param now the current time in milliseconds
+         * @return the number of failures within window
+         */
+        private synchronized int count(final long now) {
+            while (!failureTimes.isEmpty() && failureTimes.peekFirst() <= now - WINDOW_MILLIS) {
+                failureTimes.removeFirst();
+            }
+            return failureTimes.size();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.model.User;
+
+/**
+ * Password hash algorithm. Encoded hashes carry the algorithm and its parameters
+ * so that hashes created with different algorithms and parameters can coexist.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public interface PasswordHasher {
+
+    /**
+     * Gets the algorithm identifier.
+     * @return the algorithm identifier
+     */
+    String getAlgorithm();
+
+    /**
+     * Checks whether encoded hash has been created by this algorithm.
+     * @param encodedHash the encoded hash
+     * @return true if encoded hash has been created by this algorithm
+     */
+    boolean isEncodedBy(String encodedHash);
+
+    /**
+     * Calculates encoded password hash for user.
+     * @param user the user
+     * @param password the password
+     * @return the encoded hash
+     */
+    String hash(User user, char[] password);
+
+    /**
+     * Verifies password against password hash of user.
+     * @param user the user
+     * @param password the password
+     * @return true if password matches
+     */
+    boolean verify(User user, char[] password);
+
+    /**
+     * Checks whether encoded hash has been created with parameters weaker
+     * than the current parameters of this algorithm.
+     * @param encodedHash the encoded hash
+     * @return true if password should be rehashed
+     */
+    boolean needsRehash(String encodedHash);
+}
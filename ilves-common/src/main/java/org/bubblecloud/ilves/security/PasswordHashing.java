@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Password hashing service. New hashes are calculated with the configured default algorithm
+ * and existing hashes are verified with the algorithm they were encoded with. Verifications run
+ * in fixed size worker pool with bounded queue so that bursts of login attempts can not occupy
+ * all request threads with expensive hash calculations.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class PasswordHashing {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(PasswordHashing.class);
+
+    /** The password hashers by algorithm. */
+    private static final Map<String, PasswordHasher> hashers = new LinkedHashMap<String, PasswordHasher>();
+    /** The default password hasher. */
+    private static final PasswordHasher defaultHasher;
+    /** The verification timeout in milliseconds. */
+    private static final long verificationTimeoutMillis;
+    /** The verification executor. */
+    private static final ThreadPoolExecutor executor;
+
+    /** The number of completed verifications. */
+    private static final AtomicLong verificationCount = new AtomicLong();
+    /** The number of verifications rejected due to full queue. */
+    private static final AtomicLong rejectedCount = new AtomicLong();
+    /** The total verification time in nanoseconds. */
+    private static final AtomicLong verificationNanos = new AtomicLong();
+    /** The total time verifications waited in queue in nanoseconds. */
+    private static final AtomicLong queueWaitNanos = new AtomicLong();
+    /** The maximum verification time in nanoseconds. */
+    private static final AtomicLong maxVerificationNanos = new AtomicLong();
+
+    static {
+        register(new Pbkdf2PasswordHasher(Integer.parseInt(
+                PropertiesUtil.getProperty("site", "password-hash-pbkdf2-iterations"))));
+        register(new ScryptPasswordHasher(
+                Integer.parseInt(PropertiesUtil.getProperty("site", "password-hash-scrypt-log-n")),
+                Integer.parseInt(PropertiesUtil.getProperty("site", "password-hash-scrypt-r")),
+                Integer.parseInt(PropertiesUtil.getProperty("site", "password-hash-scrypt-p"))));
+        register(new LegacySha256PasswordHasher());
+
+        final String algorithm = PropertiesUtil.getProperty("site", "password-hash-algorithm");
+        if (!hashers.containsKey(algorithm)) {
+            throw new SecurityException("Unknown password hash algorithm: " + algorithm);
+        }
+        defaultHasher = hashers.get(algorithm);
+
+        verificationTimeoutMillis = Long.parseLong(
+                PropertiesUtil.getProperty("site", "password-verification-timeout-millis"));
+        final int threads = Integer.parseInt(PropertiesUtil.getProperty("site", "password-verification-threads"));
+        final int queueSize = Integer.parseInt(
+                PropertiesUtil.getProperty("site", "password-verification-queue-size"));
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ilves-password-verification-"
+                        + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Registers password hasher.
+     * @param hasher the password hasher
+     */
+    private static void register(final PasswordHasher hasher) {
+        hashers.put(hasher.getAlgorithm(), hasher);
+    }
+
+    /**
+     * Calculates encoded password hash for user with default algorithm.
+     * @param user the user
+     * @param password the password
+     * @return the encoded hash
+     */
+    public static String hash(final User user, final char[] password) {
+        return defaultHasher.hash(user, password);
+    }
+
+    /**
+     * Verifies password against password hash of user in the verification worker pool.
+     * @param user the user
+     * @param password the password
+     * @return true if password matches
+     * @throws SecurityException if verification queue is full, verification times out or fails
+     */
+    public static boolean verify(final User user, final char[] password) {
+        final PasswordHasher hasher = getHasher(user.getPasswordHash());
+        if (hasher == null) {
+            return false;
+        }
+        final long submitted = System.nanoTime();
+        final Future<Boolean> future;
+        try {
+            future = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    final long started = System.nanoTime();
+                    try {
+                        return hasher.verify(user, password);
+                    } finally {
+                        final long elapsed = System.nanoTime() - started;
+                        queueWaitNanos.addAndGet(started - submitted);
+                        verificationNanos.addAndGet(elapsed);
+                        verificationCount.incrementAndGet();
+                        long max = maxVerificationNanos.get();
+                        while (elapsed > max && !maxVerificationNanos.compareAndSet(max, elapsed)) {
+                            max = maxVerificationNanos.get();
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            LOGGER.warn("Password verification rejected due to full queue: " + user.getEmailAddress());
+            throw new SecurityException("Password verification queue full.", e);
+        }
+        try {
+            return future.get(verificationTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            future.cancel(false);
+            throw new SecurityException("Password verification timed out.", e);
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Password verification interrupted.", e);
+        } catch (final ExecutionException e) {
+            throw new SecurityException("Password verification failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Checks whether encoded hash should be replaced with hash calculated with
+     * default algorithm and current parameters.
+     * @param encodedHash the encoded hash
+     * @return true if password should be rehashed
+     */
+    public static boolean needsRehash(final String encodedHash) {
+        final PasswordHasher hasher = getHasher(encodedHash);
+        return hasher != defaultHasher || hasher.needsRehash(encodedHash);
+    }
+
+    /**
+     * Checks whether value is encoded hash of any supported algorithm.
+     * @param value the value
+     * @return true if value is encoded hash
+     */
+    public static boolean isEncodedHash(final String value) {
+        return getHasher(value) != null;
+    }
+
+    /**
+     * Gets the number of verifications waiting in queue.
+     * @return the queue depth
+     */
+    public static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of completed verifications.
+     * @return the verification count
+     */
+    public static long getVerificationCount() {
+        return verificationCount.get();
+    }
+
+    /**
+     * Gets the number of verifications rejected due to full queue.
+     * @return the rejected count
+     */
+    public static long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the average verification time excluding queue wait.
+     * @return the average verification time in milliseconds
+     */
+    public static double getAverageVerificationMillis() {
+        final long count = verificationCount.get();
+        return count == 0 ? 0 : verificationNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * Gets the average time verifications waited in queue.
+     * @return the average queue wait time in milliseconds
+     */
+    public static double getAverageQueueWaitMillis() {
+        final long count = verificationCount.get();
+        return count == 0 ? 0 : queueWaitNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * Gets the maximum verification time excluding queue wait.
+     * @return the maximum verification time in milliseconds
+     */
+    public static double getMaxVerificationMillis() {
+        return maxVerificationNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Gets hasher which has created the encoded hash.
+     * @param encodedHash the encoded hash
+     * @return the password hasher or null if no hasher recognizes the encoded hash
+     */
+    private static PasswordHasher getHasher(final String encodedHash) {
+        for (final PasswordHasher hasher : hashers.values()) {
+            if (hasher.isEncodedBy(encodedHash)) {
+                return hasher;
+            }
+        }
+        return null;
+    }
+}
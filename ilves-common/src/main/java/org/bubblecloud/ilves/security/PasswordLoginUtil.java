@@ -15,24 +15,26 @@
  */
 package org.bubblecloud.ilves.security;
 
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.ldap.client.api.LdapConnection;
-import org.apache.directory.ldap.client.api.LdapNetworkConnection;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.InMemoryCache;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.model.UserDirectory;
-import org.bubblecloud.ilves.util.StringUtil;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.joda.time.DateTime;
 
 import javax.persistence.EntityManager;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
@@ -46,9 +48,16 @@ public class PasswordLoginUtil {
     private static final long serialVersionUID = 1L;
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(PasswordLoginUtil.class);
+    /** The time to live of cached remote group memberships in milliseconds. */
+    private static final long REMOTE_GROUP_CACHE_TTL_MILLIS = Long.parseLong(
+            PropertiesUtil.getProperty("site", "ldap-group-cache-ttl-millis"));
+    /** The remote group memberships by user directory ID and user DN. */
+    private static final InMemoryCache<String, Set<String>> remoteGroupCache = new InMemoryCache<String, Set<String>>(
+            REMOTE_GROUP_CACHE_TTL_MILLIS, 10 * 1000, 10000);
 
     /**
-     * Calculates and sets user password hash. Updates password expiration date.
+     * Calculates and sets user password hash with the default password hash algorithm.
+     * Updates password expiration date.
      *
      * @param company the company (local web site) entity under which user belongs to
      * @param user the user
@@ -60,10 +69,7 @@ public class PasswordLoginUtil {
         if (user.getUserId() == null) {
             user.setUserId(UUID.randomUUID().toString());
         }
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getUserId() + ":").toCharArray(), password));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final byte[] passwordAndSaltDigest = md.digest(passwordAndSaltBytes);
-        user.setPasswordHash(StringUtil.toHexString(passwordAndSaltDigest));
+        user.setPasswordHash(PasswordHashing.hash(user, password));
 
         if (company.getPasswordValidityPeriodDays() != 0) {
             user.setPasswordExpirationDate(new DateTime().plusDays(company.getPasswordValidityPeriodDays()).toDate());
@@ -92,7 +98,14 @@ public class PasswordLoginUtil {
                                final Company company,
                                final User user,
                                final char[] userPassword) {
+        if (LoginThrottle.isThrottled(remoteIpAddress)) {
+            LOGGER.warn("User login throttled due to too many failed login attempts from remote address: "
+                    + emailAddress + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+            return "message-login-failed";
+        }
+
         if (user == null) {
+            LoginThrottle.recordFailure(null, 0, remoteIpAddress);
             LOGGER.warn("User login failed due to not registered email address: " + emailAddress
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
             return "message-login-failed";
@@ -110,13 +123,9 @@ public class PasswordLoginUtil {
                 if (!userDirectory.isEnabled()) {
                     continue;
                 }
-                final String[] subnets = userDirectory.getSubNetWhiteList().split(",");
-                for (final String subnet : subnets) {
-                    final CidrUtil cidrUtils = new CidrUtil(subnet);
-                    if (cidrUtils.isInRange(remoteIpAddress)) {
-                        return attemptDirectoryLogin(remoteHost, remoteIpAddress, remotePort,
-                                entityManager, company, user, userPassword, userDirectory);
-                    }
+                if (CidrTrie.getCompiled(userDirectory.getSubNetWhiteList()).contains(remoteIpAddress)) {
+                    return attemptDirectoryLogin(remoteHost, remoteIpAddress, remotePort,
+                            entityManager, company, user, userPassword, userDirectory);
                 }
             }
 
@@ -157,21 +166,18 @@ public class PasswordLoginUtil {
                 + ") email: " + user.getEmailAddress()
                 + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
 
-        final LdapConnection connection = new LdapNetworkConnection(userDirectory.getAddress(),
-                userDirectory.getPort());
+        final DirectoryConnectionPool connectionPool = DirectoryConnectionPool.getPool(userDirectory);
+        final LdapConnection connection = connectionPool.borrowServiceConnection();
 
         boolean passwordMatch = false;
+        boolean directoryDnChanged = false;
+        boolean connectionBroken = false;
         try {
-            final String ldapLoginDn = userDirectory.getLoginDn();
-            final String ldapLoginPassword = userDirectory.getLoginPassword();
             final String userEmailAttribute = userDirectory.getUserEmailAttribute();
             final String userSearchBaseDn = userDirectory.getUserSearchBaseDn();
-            final String groupSearchBaseDn = userDirectory.getGroupSearchBaseDn();
 
             final String userFilter = "(" + userEmailAttribute + "=" + user.getEmailAddress() + ")";
 
-            connection.bind(ldapLoginDn, ldapLoginPassword);
-
             final EntryCursor userCursor = connection.search(userSearchBaseDn, userFilter, SearchScope.ONELEVEL);
             if (!userCursor.next()) {
                 LOGGER.warn("User not found from LDAP address: "
@@ -179,109 +185,196 @@ public class PasswordLoginUtil {
                         + ") email: " + user.getEmailAddress()
                         + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
                 userCursor.close();
-                connection.unBind();
                 return "message-directory-user-not-found";
             } else {
                 final Entry userEntry = userCursor.get();
                 userCursor.close();
-                connection.unBind();
-                connection.bind(userEntry.getDn(), new String(userPassword));
-
-                if (!isInRemoteGroup(connection, groupSearchBaseDn,
-                        userEntry, userDirectory.getRequiredRemoteGroup())) {
-                    LOGGER.warn("User not in required remote group '" + userDirectory.getRequiredRemoteGroup()
-                            + "', LDAP address: " + userDirectory.getAddress() + ":" + userDirectory.getPort()
-                            + ") email: " + user.getEmailAddress()
-                            + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-                    return "message-login-failed";
-                }
 
-                final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
-                final Map<String, Group> localGroups = new HashMap<String, Group>();
-                for (final Group group : groups) {
-                    localGroups.put(group.getName(), group);
-                }
-
-                for (final String remoteLocalGroupPair :  userDirectory.getRemoteLocalGroupMapping().split(",")) {
-                    final String[] parts = remoteLocalGroupPair.split("=");
-                    if (parts.length != 2) {
-                        continue;
+                if (connectionPool.verifyBind(userEntry.getDn(), userPassword)) {
+                    final Set<String> remoteGroups = getRemoteGroups(connection, userDirectory, userEntry);
+                    if (userDirectory.getRequiredRemoteGroup() == null
+                            || !remoteGroups.contains(userDirectory.getRequiredRemoteGroup().trim().toLowerCase())) {
+                        LOGGER.warn("User not in required remote group '" + userDirectory.getRequiredRemoteGroup()
+                                + "', LDAP address: " + userDirectory.getAddress() + ":" + userDirectory.getPort()
+                                + ") email: " + user.getEmailAddress()
+                                + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+                        return "message-login-failed";
                     }
-                    final String remoteGroupName = parts[0].trim();
-                    final String localGroupName = parts[1].trim();
 
-                    final boolean remoteGroupMember = isInRemoteGroup(connection, groupSearchBaseDn,
-                            userEntry, remoteGroupName);
-
-                    final boolean localGroupMember = localGroups.containsKey(localGroupName);
-                    final Group localGroup = UserDao.getGroup(entityManager, company, localGroupName);
-                    if (localGroup == null) {
-                        LOGGER.warn("No local group '" + localGroupName
-                                + "'. Skipping group membership synchronization.");
-                        continue;
+                    // Group memberships are kept up to date by background synchronizer when it is running.
+                    if (!DirectoryGroupSynchronizer.isStarted()) {
+                        synchronizeGroups(remoteHost, remoteIpAddress, remotePort, entityManager, company, user,
+                                userDirectory, remoteGroups);
                     }
-                    if (remoteGroupMember && !localGroupMember) {
-                        UserDao.addGroupMember(entityManager, localGroup, user);
-                        LOGGER.info("Added user '" + user.getEmailAddress()
-                                + "' to group '" + localGroupName
-                                + "' (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-                    } else if (!remoteGroupMember && localGroupMember) {
-                        UserDao.removeGroupMember(entityManager, localGroup, user);
-                        LOGGER.info("Removed user '" + user.getEmailAddress()
-                                + "' from group '" + localGroupName
-                                + "' (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+
+                    // Directory DN marks user as directory user for background group synchronization.
+                    final String directoryDn = userEntry.getDn().getNormName();
+                    if (!directoryDn.equals(user.getDirectoryDn())) {
+                        user.setDirectoryDn(directoryDn);
+                        directoryDnChanged = true;
                     }
 
+                    passwordMatch = true;
                 }
-
-                passwordMatch = true;
-                connection.unBind();
             }
         } catch (final LdapException exception) {
+            connectionBroken = true;
             LOGGER.error("LDAP error: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")", exception);
+        } finally {
+            connectionPool.releaseServiceConnection(connection, connectionBroken);
         }
 
         if (passwordMatch) {
             LOGGER.info("User login: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
 
-            user.setFailedLoginCount(0);
-            UserDao.updateUser(entityManager, user);
+            if (resetFailedLogins(user) || directoryDnChanged) {
+                UserDao.updateUser(entityManager, user);
+            }
 
             return null;
         } else {
             LOGGER.warn("User login, password mismatch: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-            user.setFailedLoginCount(user.getFailedLoginCount() + 1);
-            if (user.getFailedLoginCount() > company.getMaxFailedLoginCount()) {
-                user.setLockedOut(true);
-                LOGGER.warn("User locked out due to too many failed login attempts: " + user.getEmailAddress()
-                        + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-            }
-            UserDao.updateUser(entityManager, user);
+            recordFailedLogin(remoteHost, remoteIpAddress, remotePort, entityManager, company, user);
             return "message-login-failed";
         }
     }
 
     /**
-     * Checks whether user is in LDAP group
+     * Synchronizes local group memberships of user according to remote group memberships.
      *
-     * @param connection
-     * @param groupSearchBaseDn
-     * @param userEntry
-     * @param remoteGroupName
-     * @return
-     * @throws Exception
+     * @param remoteHost the remote host
+     * @param remoteIpAddress the remote IP address
+     * @param remotePort the remote port
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user
+     * @param userDirectory the user directory
+     * @param remoteGroups the lower case names of remote groups the user belongs to
      */
-    private static boolean isInRemoteGroup(LdapConnection connection,
-                                           String groupSearchBaseDn, Entry userEntry,
-                                           String remoteGroupName) throws Exception {
-        final String groupFilter = "(&(uniqueMember="+ userEntry.getDn() +")(cn=" + remoteGroupName + "))";
-        final EntryCursor groupCursor = connection.search(groupSearchBaseDn, groupFilter, SearchScope.ONELEVEL );
-        final boolean remoteGroupMember = groupCursor.next();
-        groupCursor.close();
-        return remoteGroupMember;
+    private static void synchronizeGroups(final String remoteHost,
+                                          final String remoteIpAddress,
+                                          final int remotePort,
+                                          final EntityManager entityManager,
+                                          final Company company,
+                                          final User user,
+                                          final UserDirectory userDirectory,
+                                          final Set<String> remoteGroups) {
+        final Map<String, String> groupMapping = getRemoteLocalGroupMapping(userDirectory);
+        final Map<String, Group> localGroups = UserDao.getGroups(entityManager, company,
+                new HashSet<String>(groupMapping.values()));
+        final Set<String> userGroupNames = new HashSet<String>();
+        for (final Group group : UserDao.getUserGroups(entityManager, company, user)) {
+            userGroupNames.add(group.getName());
+        }
+
+        for (final Map.Entry<String, String> mapping : groupMapping.entrySet()) {
+            final String localGroupName = mapping.getValue();
+            final boolean remoteGroupMember = remoteGroups.contains(mapping.getKey());
+            final boolean localGroupMember = userGroupNames.contains(localGroupName);
+            final Group localGroup = localGroups.get(localGroupName);
+            if (localGroup == null) {
+                LOGGER.warn("No local group '" + localGroupName
+                        + "'. Skipping group membership synchronization.");
+                continue;
+            }
+            if (remoteGroupMember && !localGroupMember) {
+                UserDao.addGroupMember(entityManager, localGroup, user);
+                userGroupNames.add(localGroupName);
+                LOGGER.info("Added user '" + user.getEmailAddress()
+                        + "' to group '" + localGroupName
+                        + "' (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+            } else if (!remoteGroupMember && localGroupMember) {
+                UserDao.removeGroupMember(entityManager, localGroup, user);
+                userGroupNames.remove(localGroupName);
+                LOGGER.info("Removed user '" + user.getEmailAddress()
+                        + "' from group '" + localGroupName
+                        + "' (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+            }
+        }
+    }
+
+    /**
+     * Parses remote to local group mapping of user directory.
+     *
+     * @param userDirectory the user directory
+     * @return map of lower case remote group names to local group names
+     */
+    static Map<String, String> getRemoteLocalGroupMapping(final UserDirectory userDirectory) {
+        final Map<String, String> groupMapping = new LinkedHashMap<String, String>();
+        for (final String remoteLocalGroupPair : userDirectory.getRemoteLocalGroupMapping().split(",")) {
+            final String[] parts = remoteLocalGroupPair.split("=");
+            if (parts.length != 2) {
+                continue;
+            }
+            groupMapping.put(parts[0].trim().toLowerCase(), parts[1].trim());
+        }
+        return groupMapping;
+    }
+
+    /**
+     * Gets the required and mapped remote groups which user belongs to with single search.
+     * Results are cached per user directory and user DN for configured time to live.
+     *
+     * @param connection the LDAP service connection
+     * @param userDirectory the user directory
+     * @param userEntry the LDAP user entry
+     * @return the lower case names of remote groups
+     * @throws LdapException if search fails
+     */
+    private static Set<String> getRemoteGroups(final LdapConnection connection,
+                                               final UserDirectory userDirectory,
+                                               final Entry userEntry) throws LdapException {
+        final String cacheKey = userDirectory.getUserDirectoryId() + ":" + userEntry.getDn().getNormName();
+        if (REMOTE_GROUP_CACHE_TTL_MILLIS > 0) {
+            final Set<String> cachedRemoteGroups = remoteGroupCache.get(cacheKey);
+            if (cachedRemoteGroups != null) {
+                return cachedRemoteGroups;
+            }
+        }
+
+        final Set<String> candidateGroups = new HashSet<String>(getRemoteLocalGroupMapping(userDirectory).keySet());
+        if (userDirectory.getRequiredRemoteGroup() != null) {
+            candidateGroups.add(userDirectory.getRequiredRemoteGroup().trim().toLowerCase());
+        }
+
+        final Set<String> remoteGroups = new HashSet<String>();
+        if (!candidateGroups.isEmpty()) {
+            final StringBuilder groupFilter = new StringBuilder("(&(uniqueMember=")
+                    .append(FilterEncoder.encodeFilterValue(userEntry.getDn().getName())).append(")(|");
+            for (final String candidateGroup : candidateGroups) {
+                groupFilter.append("(cn=").append(FilterEncoder.encodeFilterValue(candidateGroup)).append(")");
+            }
+            groupFilter.append("))");
+
+            final EntryCursor groupCursor = connection.search(userDirectory.getGroupSearchBaseDn(),
+                    groupFilter.toString(), SearchScope.ONELEVEL, "cn");
+            try {
+                while (groupCursor.next()) {
+                    final Attribute commonNames = groupCursor.get().get("cn");
+                    if (commonNames == null) {
+                        continue;
+                    }
+                    for (final Value<?> commonName : commonNames) {
+                        final String groupName = commonName.getString().toLowerCase();
+                        if (candidateGroups.contains(groupName)) {
+                            remoteGroups.add(groupName);
+                        }
+                    }
+                }
+            } catch (final CursorException e) {
+                throw new LdapException(e);
+            } finally {
+                groupCursor.close();
+            }
+        }
+
+        if (REMOTE_GROUP_CACHE_TTL_MILLIS > 0) {
+            remoteGroupCache.put(cacheKey, remoteGroups);
+        }
+        return remoteGroups;
     }
 
     /**
@@ -295,8 +388,6 @@ public class PasswordLoginUtil {
      * @param user
      * @param userPassword
      * @return
-     * @throws UnsupportedEncodingException
-     * @throws NoSuchAlgorithmException
      */
     private static String attemptLocalLogin(final String remoteHost,
                                    final String remoteIpAddress,
@@ -304,8 +395,7 @@ public class PasswordLoginUtil {
                                    final EntityManager entityManager,
                                    final Company company,
                                    final User user,
-                                   final char[] userPassword)
-            throws UnsupportedEncodingException, NoSuchAlgorithmException {
+                                   final char[] userPassword) {
 
         if (user.getPasswordExpirationDate() != null
                 && System.currentTimeMillis() > user.getPasswordExpirationDate().getTime()) {
@@ -314,49 +404,71 @@ public class PasswordLoginUtil {
             return "message-password-expired";
         }
 
-        boolean passwordMatch = checkPasswordMatchWithUserIdAsSalt(user, userPassword);
-
-        if (!passwordMatch) {
-            passwordMatch = checkPasswordMatchWithEmailAsSalt(user, userPassword);
-        }
+        final boolean passwordMatch = PasswordHashing.verify(user, userPassword);
 
         if (passwordMatch) {
             LOGGER.info("User login: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + ":" + remotePort + ")");
-            user.setFailedLoginCount(0);
-            UserDao.updateUser(entityManager, user);
+            boolean modified = resetFailedLogins(user);
+            if (PasswordHashing.needsRehash(user.getPasswordHash())) {
+                user.setPasswordHash(PasswordHashing.hash(user, userPassword));
+                LOGGER.info("Upgraded password hash of user: " + user.getEmailAddress());
+                modified = true;
+            }
+            if (modified) {
+                UserDao.updateUser(entityManager, user);
+            }
 
             return null;
         } else {
             LOGGER.warn("User login, password mismatch: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-            user.setFailedLoginCount(user.getFailedLoginCount() + 1);
-
-            if (user.getFailedLoginCount() > company.getMaxFailedLoginCount()) {
-                user.setLockedOut(true);
-                LOGGER.warn("User locked out due to too many failed login attempts: " + user.getEmailAddress()
-                        + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
-            }
-
-            UserDao.updateUser(entityManager, user);
-
+            recordFailedLogin(remoteHost, remoteIpAddress, remotePort, entityManager, company, user);
             return "message-login-failed";
         }
     }
 
-    private static boolean checkPasswordMatchWithUserIdAsSalt(User user, char[] userPassword) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getUserId() + ":").toCharArray(), userPassword));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final String passwordAndSaltDigest = StringUtil.toHexString(md.digest(passwordAndSaltBytes));
-        return passwordAndSaltDigest.equals(user.getPasswordHash());
+    /**
+     * Resets failed login attempts of user after successful login.
+     *
+     * @param user the user
+     * @return true if persisted failed login count was reset and user needs to be updated
+     */
+    private static boolean resetFailedLogins(final User user) {
+        LoginThrottle.reset(user.getUserId());
+        if (user.getFailedLoginCount() == 0) {
+            return false;
+        }
+        user.setFailedLoginCount(0);
+        return true;
     }
 
-    private static boolean checkPasswordMatchWithEmailAsSalt(User user, char[] userPassword) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getEmailAddress() + ":").toCharArray(), userPassword));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final String passwordAndSaltDigest = StringUtil.toHexString(md.digest(passwordAndSaltBytes));
-        return passwordAndSaltDigest.equals(user.getPasswordHash());
+    /**
+     * Records failed login attempt in memory. User is updated to database only when
+     * consecutive failed login attempts cross the lockout threshold.
+     *
+     * @param remoteHost the remote host
+     * @param remoteIpAddress the remote IP address
+     * @param remotePort the remote port
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user
+     */
+    private static void recordFailedLogin(final String remoteHost,
+                                          final String remoteIpAddress,
+                                          final int remotePort,
+                                          final EntityManager entityManager,
+                                          final Company company,
+                                          final User user) {
+        final int failedLoginCount = LoginThrottle.recordFailure(user.getUserId(), user.getFailedLoginCount(),
+                remoteIpAddress);
+        if (failedLoginCount > company.getMaxFailedLoginCount()) {
+            user.setFailedLoginCount(failedLoginCount);
+            user.setLockedOut(true);
+            LOGGER.warn("User locked out due to too many failed login attempts: " + user.getEmailAddress()
+                    + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+            UserDao.updateUser(entityManager, user);
+        }
     }
 
-
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bubblecloud.ilves.model.User;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * PBKDF2 password hasher using HMAC-SHA256. Encoded hash format is
+ * $pbkdf2-sha256$i=ITERATIONS$SALT$HASH where salt and hash are base 64 encoded.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+    /** The algorithm identifier. */
+    public static final String ALGORITHM = "pbkdf2-sha256";
+    /** The encoded hash prefix. */
+    private static final String PREFIX = "$" + ALGORITHM + "$";
+    /** The salt length in bytes. */
+    private static final int SALT_LENGTH = 16;
+    /** The hash length in bytes. */
+    private static final int HASH_LENGTH = 32;
+
+    /** The secure random. */
+    private final SecureRandom random = new SecureRandom();
+    /** The iteration count. */
+    private final int iterations;
+
+    /**
+     * Constructor which sets the iteration count.
+     * @param iterations the iteration count
+     */
+    public Pbkdf2PasswordHasher(final int iterations) {
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public boolean isEncodedBy(final String encodedHash) {
+        return encodedHash != null && encodedHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public String hash(final User user, final char[] password) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return PREFIX + "i=" + iterations + "$" + Base64.encodeBase64URLSafeString(salt) + "$"
+                + Base64.encodeBase64URLSafeString(derive(password, salt, iterations, HASH_LENGTH));
+    }
+
+    @Override
+    public boolean verify(final User user, final char[] password) {
+        final String[] parts = parse(user.getPasswordHash());
+        if (parts == null) {
+            return false;
+        }
+        final int encodedIterations = Integer.parseInt(parts[0].substring(2));
+        final byte[] salt = Base64.decodeBase64(parts[1]);
+        final byte[] hash = Base64.decodeBase64(parts[2]);
+        return MessageDigest.isEqual(hash, derive(password, salt, encodedIterations, hash.length));
+    }
+
+    @Override
+    public boolean needsRehash(final String encodedHash) {
+        final String[] parts = parse(encodedHash);
+        return parts == null || Integer.parseInt(parts[0].substring(2)) < iterations;
+    }
+
+    /**
+     * Parses encoded hash to parameters, salt and hash parts.
+     * @param encodedHash the encoded hash
+     * @return the parts or null if encoded hash is not valid
+     */
+    private String[] parse(final String encodedHash) {
+        if (!isEncodedBy(encodedHash)) {
+            return null;
+        }
+        final String[] parts = encodedHash.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3 || !parts[0].matches("i=[0-9]{1,9}")) {
+            return null;
+        }
+        return parts;
+    }
+
+    /**
+     * Derives key from password.
+     * @param password the password
+     * @param salt the salt
+     * @param iterations the iteration count
+     * @param length the key length in bytes
+     * @return the derived key
+     */
+    private static byte[] derive(final char[] password, final byte[] salt, final int iterations, final int length) {
+        final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+        generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password), salt, iterations);
+        return ((KeyParameter) generator.generateDerivedParameters(length * 8)).getKey();
+    }
+}
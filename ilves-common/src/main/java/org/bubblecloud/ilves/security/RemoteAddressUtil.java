@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.lang.StringUtils;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Resolves remote address of client. Forwarded headers are trusted only when the direct peer
+ * is a reverse proxy listed in trusted-proxies site property. The client address is then the
+ * right most address of X-Forwarded-For which is not a trusted proxy so that addresses
+ * prepended by client itself are ignored.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RemoteAddressUtil {
+
+    /**
+     * Gets remote IP address of request client.
+     * @param request the request
+     * @return the remote IP address
+     */
+    public static String getRemoteIpAddress(final HttpServletRequest request) {
+        final CidrTrie trustedProxies = getTrustedProxies();
+        if (!trustedProxies.contains(request.getRemoteAddr())) {
+            return request.getRemoteAddr();
+        }
+        final List<String> forwardedFor = new ArrayList<String>();
+        final Enumeration<String> headers = request.getHeaders("X-Forwarded-For");
+        while (headers != null && headers.hasMoreElements()) {
+            forwardedFor.add(headers.nextElement());
+        }
+        return getRemoteIpAddress(request.getRemoteAddr(), StringUtils.join(forwardedFor, ','), trustedProxies);
+    }
+
+    /**
+     * Gets remote port of request client. Forwarded port is used only if request comes from trusted proxy.
+     * @param request the request
+     * @return the remote port
+     */
+    public static int getRemotePort(final HttpServletRequest request) {
+        final String forwardedPort = request.getHeader("X-Forwarded-Port");
+        if (forwardedPort != null && getTrustedProxies().contains(request.getRemoteAddr())) {
+            try {
+                return Integer.parseInt(forwardedPort);
+            } catch (final NumberFormatException e) {
+                return request.getRemotePort();
+            }
+        }
+        return request.getRemotePort();
+    }
+
+    /**
+     * Gets remote IP address from direct peer address and X-Forwarded-For header value.
+     * @param remoteAddress the address of direct peer
+     * @param forwardedFor the comma separated X-Forwarded-For addresses or null
+     * @param trustedProxies the trusted proxies
+     * @return the right most address which is not trusted proxy or the left most address if all are trusted
+     */
+    static String getRemoteIpAddress(final String remoteAddress, final String forwardedFor,
+                                     final CidrTrie trustedProxies) {
+        if (!trustedProxies.contains(remoteAddress) || StringUtils.isBlank(forwardedFor)) {
+            return remoteAddress;
+        }
+        final String[] hops = forwardedFor.split(",");
+        String clientAddress = remoteAddress;
+        for (int i = hops.length - 1; i >= 0; i--) {
+            final String hop = hops[i].trim();
+            if (CidrTrie.parseAddress(hop) == null) {
+                // Hop appended by untrusted party can not be interpreted.
+                return clientAddress;
+            }
+            clientAddress = hop;
+            if (!trustedProxies.contains(hop)) {
+                return clientAddress;
+            }
+        }
+        return clientAddress;
+    }
+
+    /**
+     * @return the trusted proxies compiled from trusted-proxies site property
+     */
+    private static CidrTrie getTrustedProxies() {
+        return CidrTrie.getCompiled(PropertiesUtil.getProperty("site", "trusted-proxies", false));
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bubblecloud.ilves.model.User;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Memory hard scrypt password hasher. Encoded hash format is
+ * $scrypt$ln=LOG2_N,r=R,p=P$SALT$HASH where salt and hash are base 64 encoded.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class ScryptPasswordHasher implements PasswordHasher {
+    /** The algorithm identifier. */
+    public static final String ALGORITHM = "scrypt";
+    /** The encoded hash prefix. */
+    private static final String PREFIX = "$" + ALGORITHM + "$";
+    /** The salt length in bytes. */
+    private static final int SALT_LENGTH = 16;
+    /** The hash length in bytes. */
+    private static final int HASH_LENGTH = 32;
+
+    /** The secure random. */
+    private final SecureRandom random = new SecureRandom();
+    /** The base two logarithm of CPU and memory cost. */
+    private final int logN;
+    /** The block size. */
+    private final int r;
+    /** The parallelization. */
+    private final int p;
+
+    /**
+     * Constructor which sets the cost parameters.
+     * @param logN the base two logarithm of CPU and memory cost
+     * @param r the block size
+     * @param p the parallelization
+     */
+    public ScryptPasswordHasher(final int logN, final int r, final int p) {
+        this.logN = logN;
+        this.r = r;
+        this.p = p;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public boolean isEncodedBy(final String encodedHash) {
+        return encodedHash != null && encodedHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public String hash(final User user, final char[] password) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return PREFIX + "ln=" + logN + ",r=" + r + ",p=" + p + "$" + Base64.encodeBase64URLSafeString(salt) + "$"
+                + Base64.encodeBase64URLSafeString(SCrypt.generate(
+                PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password), salt, 1 << logN, r, p, HASH_LENGTH));
+    }
+
+    @Override
+    public boolean verify(final User user, final char[] password) {
+        final String[] parts = parse(user.getPasswordHash());
+        if (parts == null) {
+            return false;
+        }
+        final int[] parameters = parseParameters(parts[0]);
+        final byte[] salt = Base64.decodeBase64(parts[1]);
+        final byte[] hash = Base64.decodeBase64(parts[2]);
+        return MessageDigest.isEqual(hash, SCrypt.generate(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password),
+                salt, 1 << parameters[0], parameters[1], parameters[2], hash.length));
+    }
+
+    @Override
+    public boolean needsRehash(final String encodedHash) {
+        final String[] parts = parse(encodedHash);
+        if (parts == null) {
+            return true;
+        }
+        final int[] parameters = parseParameters(parts[0]);
+        return parameters[0] < logN || parameters[1] < r || parameters[2] < p;
+    }
+
+    /**
+     * Parses encoded hash to parameters, salt and hash parts.
+     * @param encodedHash the encoded hash
+     * @return the parts or null if encoded hash is not valid
+     */
+    private String[] parse(final String encodedHash) {
+        if (!isEncodedBy(encodedHash)) {
+            return null;
+        }
+        final String[] parts = encodedHash.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3 || !parts[0].matches("ln=[0-9]{1,2},r=[0-9]{1,4},p=[0-9]{1,4}")) {
+            return null;
+        }
+        return parts;
+    }
+
+    /**
+     * Parses cost parameters.
+     * @param parameters the encoded parameters
+     * @return log2 N, r and p
+     */
+    private static int[] parseParameters(final String parameters) {
+        final String[] values = parameters.split(",");
+        return new int[] {
+                Integer.parseInt(values[0].substring(3)),
+                Integer.parseInt(values[1].substring(2)),
+                Integer.parseInt(values[2].substring(2))
+        };
+    }
+}
@@ -1,6 +1,5 @@
 package org.bubblecloud.ilves.security;
 
-import org.apache.commons.lang.StringUtils;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 
@@ -148,18 +147,8 @@ public class SecurityContext {
     public void setRemoteDetails(final HttpServletRequest request) {
         remoteHost = request.getRemoteHost();
 
-        if (!StringUtils.isEmpty(request.getHeader("X-Forwarded-For"))) {
-            remoteIpAddress = request.getHeader("X-Forwarded-For");
-        } else {
-            remoteIpAddress = request.getRemoteAddr();
-        }
-
-        if (!StringUtils.isEmpty(request.getHeader("X-Forwarded-Port"))
-                && ! request.getHeader("X-Forwarded-Port").startsWith("(")) {
-            remotePort = Integer.parseInt(request.getHeader("X-Forwarded-Port"));
-        } else {
-            remotePort = request.getRemotePort();
-        }
+        remoteIpAddress = RemoteAddressUtil.getRemoteIpAddress(request);
+        remotePort = RemoteAddressUtil.getRemotePort(request);
     }
 
 
@@ -1,5 +1,7 @@
 package org.bubblecloud.ilves.security;
 
+import org.bubblecloud.ilves.cache.AccessTokenCache;
+import org.bubblecloud.ilves.cache.CompanyResolver;
 import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.exception.SiteException;
 import org.bubblecloud.ilves.model.*;
@@ -10,6 +12,7 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -102,6 +105,7 @@ public class SecurityService {
     public static void addCompany(final SecurityContext context, final Company company) {
         requireRole("add-company", context, DefaultRoles.ADMINISTRATOR);
         CompanyDao.addCompany(context.getEntityManager(), company);
+        CompanyResolver.invalidate();
         AuditService.log(context, "add", "company", company.getCompanyId(), company.getCompanyName());
     }
 
@@ -113,6 +117,7 @@ public class SecurityService {
     public static void updateCompany(final SecurityContext context, final Company company) {
         requireRole("update-company", context, DefaultRoles.ADMINISTRATOR);
         CompanyDao.updateCompany(context.getEntityManager(), company);
+        CompanyResolver.invalidate();
         AuditService.log(context, "update", "company", company.getCompanyId(), company.getCompanyName());
     }
 
@@ -124,6 +129,7 @@ public class SecurityService {
     public static void removeCompany(final SecurityContext context, final Company company) {
         requireRole("remove-company", context, DefaultRoles.ADMINISTRATOR);
         CompanyDao.removeCompany(context.getEntityManager(), company);
+        CompanyResolver.invalidate();
         AuditService.log(context, "remove", "company", company.getCompanyId(), company.getCompanyName());
     }
 
@@ -303,9 +309,9 @@ public class SecurityService {
      * @param context the processing context
      * @param roles the privileged roles
      */
-    private static synchronized void requirePrivilege(final String key,
-                                                      final String dataType, final String dataId, final String dataLabel,
-                                                      final SecurityContext context, final String... roles) {
+    private static void requirePrivilege(final String key,
+                                         final String dataType, final String dataId, final String dataLabel,
+                                         final SecurityContext context, final String... roles) {
         for (final String role : roles) {
             if (context.getRoles().contains(role)) {
                 AuditService.log(context, key + " access granted based on role " + role);
@@ -344,25 +350,39 @@ public class SecurityService {
      * @param dataId the data ID
      * @return true if privilege exists on given data.
      */
-    private static synchronized boolean hasPrivilege(final String key, final String dataId, final SecurityContext context) {
-        final EntityManager entityManager = context.getEntityManager();
+    private static boolean hasPrivilege(final String key, final String dataId, final SecurityContext context) {
         final Company company = context.getObject(Company.class);
+        // Group memberships are resolved by privilege cache when effective privileges are loaded.
+        return PrivilegeCache.hasEffectivePrivilege(context.getEntityManager(), company,
+                getPrivilegeCheckUser(context), key, dataId);
+    }
 
-        if (context.getUserId() != null && context.getObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK) == null) {
-            context.putObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK, entityManager.getReference(User.class, context.getUserId()));
-        }
-        final User user = context.getObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK);
-
-        if (context.getObject(PrivilegeCache.USER_GROUPS_FOR_PRIVILEGE_CHECK) == null) {
-            context.putObject(PrivilegeCache.USER_GROUPS_FOR_PRIVILEGE_CHECK, UserDao.getUserGroups(entityManager, company, user));;
-        }
-        final List<Group> groups = context.getObject(PrivilegeCache.USER_GROUPS_FOR_PRIVILEGE_CHECK);
+    /**
+     * Filters data IDs to those the processing context has given privilege to. Privileges are resolved
+     * from effective privileges of the user which are loaded with single query and cached.
+     * @param context the processing context
+     * @param key the privilege key
+     * @param dataIds the data IDs
+     * @return the permitted data IDs in the order they were given
+     */
+    public static List<String> filterPermitted(final SecurityContext context, final String key,
+                                               final Collection<String> dataIds) {
+        final Company company = context.getObject(Company.class);
+        return PrivilegeCache.filterPermitted(context.getEntityManager(), company,
+                getPrivilegeCheckUser(context), key, dataIds);
+    }
 
-        if (!PrivilegeCache.hasPrivilege(entityManager, company, user, groups, key, dataId)) {
-            return false;
-        } else {
-            return true;
+    /**
+     * Gets user reference for privilege checks or null if processing context is anonymous.
+     * @param context the processing context
+     * @return the user or null
+     */
+    private static User getPrivilegeCheckUser(final SecurityContext context) {
+        if (context.getUserId() != null && context.getObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK) == null) {
+            context.putObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK,
+                    context.getEntityManager().getReference(User.class, context.getUserId()));
         }
+        return context.getObject(PrivilegeCache.USER_FOR_PRIVILEGE_CHECK);
     }
 
     public static void addUserSession(final EntityManager entityManager, final UserSession userSession) {
@@ -390,6 +410,10 @@ public class SecurityService {
             }
             throw new RuntimeException("Unable to persist user session.", e);
         }
+        // Cached access token is invalidated only after removal is committed so that it can not be reloaded.
+        if (userSession.getLoginTransactionIdHash() != null) {
+            AccessTokenCache.invalidate(userSession.getLoginTransactionIdHash());
+        }
     }
 
     /**
@@ -16,6 +16,7 @@
 package org.bubblecloud.ilves.security;
 
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.model.*;
 
 import javax.persistence.EntityManager;
@@ -23,8 +24,11 @@ import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * User data access object.
@@ -84,6 +88,30 @@ public class UserDao {
         }
     }
 
+    /**
+     * Updates users to database in single transaction.
+     * @param entityManager the entity manager
+     * @param users the users
+     */
+    protected static final void updateUsers(final EntityManager entityManager, final List<User> users) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            final Date modified = new Date();
+            for (final User user : users) {
+                user.setModified(modified);
+                entityManager.persist(user);
+            }
+            transaction.commit();
+        } catch (final Exception e) {
+            LOGGER.error("Error in update users.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Removes user from database.
      * @param entityManager the entity manager
@@ -95,6 +123,7 @@ public class UserDao {
         try {
             entityManager.remove(user);
             transaction.commit();
+            PrivilegeCache.invalidate(user.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in remove user.", e);
             if (transaction.isActive()) {
@@ -277,6 +306,52 @@ public class UserDao {
         return users;
     }
 
+    /**
+     * Gets group members of given groups with single query.
+     * @param entityManager the entity manager.
+     * @param groups the groups
+     * @return list of group members
+     */
+    public static final List<GroupMember> getGroupMembers(final EntityManager entityManager,
+                                                          final Collection<Group> groups) {
+        if (groups.isEmpty()) {
+            return new ArrayList<GroupMember>();
+        }
+        final TypedQuery<GroupMember> query = entityManager.createQuery(
+                "select e from GroupMember as e where e.group in :groups", GroupMember.class);
+        query.setParameter("groups", groups);
+        return query.getResultList();
+    }
+
+    /**
+     * Adds and removes group members in single transaction. Privilege cache is not invalidated
+     * so that caller can invalidate privileges of the affected users only.
+     * @param entityManager the entity manager
+     * @param addedGroupMembers the group members to add
+     * @param removedGroupMembers the group members to remove
+     */
+    protected static void updateGroupMembers(final EntityManager entityManager,
+                                             final List<GroupMember> addedGroupMembers,
+                                             final List<GroupMember> removedGroupMembers) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            for (final GroupMember groupMember : addedGroupMembers) {
+                entityManager.persist(groupMember);
+            }
+            for (final GroupMember groupMember : removedGroupMembers) {
+                entityManager.remove(groupMember);
+            }
+            transaction.commit();
+        } catch (final Exception e) {
+            LOGGER.error("Error in update group members.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Adds new group to database.
      * @param entityManager the entity manager
@@ -329,6 +404,7 @@ public class UserDao {
         try {
             entityManager.remove(group);
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in remove group.", e);
             if (transaction.isActive()) {
@@ -359,6 +435,29 @@ public class UserDao {
         }
     }
 
+    /**
+     * Gets groups with given names.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param names the names
+     * @return the groups by name
+     */
+    public static final Map<String, Group> getGroups(final EntityManager entityManager, final Company owner,
+                                                     final Collection<String> names) {
+        final Map<String, Group> groups = new HashMap<String, Group>();
+        if (names.isEmpty()) {
+            return groups;
+        }
+        final TypedQuery<Group> query = entityManager.createQuery(
+                "select e from Group as e where e.owner=:owner and e.name in :names", Group.class);
+        query.setParameter("owner", owner);
+        query.setParameter("names", names);
+        for (final Group group : query.getResultList()) {
+            groups.put(group.getName(), group);
+        }
+        return groups;
+    }
+
     /**
      * Allocates new reference number.
      * @param entityManager the entity manager
@@ -385,6 +484,7 @@ public class UserDao {
         try {
             entityManager.persist(new GroupMember(group, user));
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in add group member.", e);
             if (transaction.isActive()) {
@@ -413,6 +513,7 @@ public class UserDao {
             try {
                 entityManager.remove(groupMembers.get(0));
                 transaction.commit();
+                PrivilegeCache.invalidate(group.getOwner());
             } catch (final Exception e) {
                 LOGGER.error("Error in remove group member.", e);
                 if (transaction.isActive()) {
@@ -435,6 +536,7 @@ public class UserDao {
         try {
             entityManager.persist(new Privilege(null, user, privilegeKey, dataId));
             transaction.commit();
+            PrivilegeCache.invalidate(user.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in adding user privilege.", e);
             if (transaction.isActive()) {
@@ -459,6 +561,7 @@ public class UserDao {
                 entityManager.persist(new Privilege(null, user, privilegeKey, dataId));
             }
             transaction.commit();
+            PrivilegeCache.invalidate(user.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in adding user privilege.", e);
             if (transaction.isActive()) {
@@ -482,6 +585,7 @@ public class UserDao {
         try {
             entityManager.persist(new Privilege(group, null, privilegeKey, dataId));
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in adding group privilege.", e);
             if (transaction.isActive()) {
@@ -507,6 +611,7 @@ public class UserDao {
                 entityManager.persist(new Privilege(group, null, privilegeKey, dataId));
             }
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in adding group privilege.", e);
             if (transaction.isActive()) {
@@ -538,6 +643,7 @@ public class UserDao {
                 entityManager.remove(privileges.get(0));
             }
             transaction.commit();
+            PrivilegeCache.invalidate(user.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in removing user privilege.", e);
             if (transaction.isActive()) {
@@ -571,6 +677,7 @@ public class UserDao {
                 }
             }
             transaction.commit();
+            PrivilegeCache.invalidate(user.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in removing user privilege.", e);
             if (transaction.isActive()) {
@@ -602,6 +709,7 @@ public class UserDao {
                 entityManager.remove(privileges.get(0));
             }
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in removing group privilege.", e);
             if (transaction.isActive()) {
@@ -635,6 +743,7 @@ public class UserDao {
                 }
             }
             transaction.commit();
+            PrivilegeCache.invalidate(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in removing group privilege.", e);
             if (transaction.isActive()) {
@@ -676,6 +785,36 @@ public class UserDao {
         return query.getResultList();
     }
 
+    /**
+     * Get privileges of user and given groups.
+     * @param entityManager the entity manager
+     * @param user the user or null
+     * @param groups the groups
+     * @return list of privileges.
+     */
+    public static List<Privilege> getPrivileges(final EntityManager entityManager, final User user,
+                                                final List<Group> groups) {
+        if (groups.size() == 0) {
+            if (user == null) {
+                return new ArrayList<Privilege>();
+            }
+            return getUserPrivileges(entityManager, user);
+        }
+        if (user == null) {
+            final TypedQuery<Privilege> query = entityManager.createQuery(
+                    "select e from Privilege as e where e.group in :groups",
+                    Privilege.class);
+            query.setParameter("groups", groups);
+            return query.getResultList();
+        }
+        final TypedQuery<Privilege> query = entityManager.createQuery(
+                "select e from Privilege as e where e.user=:user or e.group in :groups",
+                Privilege.class);
+        query.setParameter("user", user);
+        query.setParameter("groups", groups);
+        return query.getResultList();
+    }
+
     /**
      * Get group privileges.
      * @param entityManager the entity manager
@@ -124,4 +124,16 @@ public class UserDirectoryDao {
         query.setParameter("owner", owner);
         return query.getResultList();
     }
+
+    /**
+     * Gets list of enabled user directories of all companies.
+     *
+     * @param entityManager the entity manager.
+     * @return list of user directories
+     */
+    public static final List<UserDirectory> getEnabledUserDirectories(final EntityManager entityManager) {
+        final TypedQuery<UserDirectory> query = entityManager.createQuery(
+                "select e from UserDirectory as e where e.enabled=true", UserDirectory.class);
+        return query.getResultList();
+    }
 }
@@ -0,0 +1,87 @@
+package org.bubblecloud.ilves.cache;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.User;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * Tests access token cache.
+ */
+public class AccessTokenCacheTest {
+    private Company company;
+    private User user;
+
+    @Before
+    public void before() {
+        company = new Company();
+        company.setCompanyId("access-token-cache-test");
+        user = new User();
+        user.setUserId("access-token-cache-test-user");
+    }
+
+    @Test
+    public void testInvalidation() {
+        put("hash-1", System.currentTimeMillis());
+        Assert.assertNotNull(AccessTokenCache.get("hash-1", company));
+        AccessTokenCache.invalidate("hash-1");
+        Assert.assertNull(AccessTokenCache.get("hash-1", company));
+
+        put("hash-2", System.currentTimeMillis());
+        PrivilegeCache.invalidate(company);
+        Assert.assertNull(AccessTokenCache.get("hash-2", company));
+
+        put("hash-3", System.currentTimeMillis());
+        AccessTokenCache.invalidateUsers(Collections.singletonList(user.getUserId()));
+        Assert.assertNull(AccessTokenCache.get("hash-3", company));
+
+        put("hash-4", System.currentTimeMillis());
+        Assert.assertNotNull(AccessTokenCache.get("hash-4", company));
+    }
+
+    @Test
+    public void testLoadBeforeInvalidation() {
+        // Load which read the user session before it was removed is not cached after invalidation.
+        final long[] loadTicket = AccessTokenCache.beginLoad(company);
+        AccessTokenCache.invalidate("hash-7");
+        AccessTokenCache.put(loadTicket, "hash-7", company, user, Collections.<Group>emptyList(),
+                System.currentTimeMillis());
+        Assert.assertNull(AccessTokenCache.get("hash-7", company));
+    }
+
+    @Test
+    public void testCachedIdentity() {
+        user.setEmailAddress("access-token-cache-test@test.com");
+        final Group group = new Group();
+        group.setName("user");
+        AccessTokenCache.put(AccessTokenCache.beginLoad(company), "hash-8", company, user,
+                Collections.singletonList(group), System.currentTimeMillis());
+        final AccessTokenCache.AccessToken accessToken = AccessTokenCache.get("hash-8", company);
+        Assert.assertEquals(user.getUserId(), accessToken.getUserId());
+        Assert.assertEquals(user.getEmailAddress(), accessToken.getUserName());
+        Assert.assertEquals(Collections.singletonList("user"), accessToken.getGroupNames());
+    }
+
+    @Test
+    public void testExpiration() {
+        put("hash-5", 0);
+        Assert.assertNull(AccessTokenCache.get("hash-5", company));
+    }
+
+    @Test
+    public void testCompanyMismatch() {
+        put("hash-6", System.currentTimeMillis());
+        final Company otherCompany = new Company();
+        otherCompany.setCompanyId("access-token-cache-test-other");
+        Assert.assertNull(AccessTokenCache.get("hash-6", otherCompany));
+    }
+
+    private void put(final String accessTokenHash, final long sessionCreatedMillis) {
+        AccessTokenCache.put(AccessTokenCache.beginLoad(company), accessTokenHash, company, user,
+                Collections.<Group>emptyList(), sessionCreatedMillis);
+    }
+}
@@ -0,0 +1,80 @@
+package org.bubblecloud.ilves.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for in memory cache.
+ */
+public class InMemoryCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(60000, 1000, 100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("a", "3");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("3", cache.get("a"));
+        Assert.assertTrue(cache.containsKey("b"));
+        cache.remove("b");
+        Assert.assertFalse(cache.containsKey("b"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testMaxItems() {
+        final InMemoryCache<Integer, Integer> cache = new InMemoryCache<Integer, Integer>(60000, 1000, 1000);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertTrue(cache.size() <= 1000);
+        Assert.assertEquals(Integer.valueOf(9999), cache.get(9999));
+    }
+
+    @Test
+    public void testLeastRecentlyAccessedEvicted() throws Exception {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(60000, 1000, 2);
+        cache.put("a", "1");
+        Thread.sleep(5);
+        cache.put("b", "2");
+        Thread.sleep(5);
+        cache.get("a");
+        cache.put("c", "3");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.containsKey("a"));
+        Assert.assertFalse(cache.containsKey("b"));
+        Assert.assertTrue(cache.containsKey("c"));
+    }
+
+    @Test
+    public void testAccessOrderWithinSameMillisecond() {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(60000, 1000, 3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        cache.put("e", "5");
+        Assert.assertEquals(3, cache.size());
+        Assert.assertTrue(cache.containsKey("a"));
+        Assert.assertFalse(cache.containsKey("b"));
+        Assert.assertFalse(cache.containsKey("c"));
+        Assert.assertTrue(cache.containsKey("e"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(100, 100, 100);
+        cache.put("a", "1");
+        Assert.assertEquals("1", cache.get("a"));
+        Thread.sleep(150);
+        Assert.assertNull(cache.get("a"));
+        cache.put("b", "2");
+        Thread.sleep(1500);
+        Assert.assertEquals(0, cache.size());
+    }
+}
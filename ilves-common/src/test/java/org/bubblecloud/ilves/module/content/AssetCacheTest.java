@@ -0,0 +1,144 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests asset disk cache.
+ */
+public class AssetCacheTest {
+    private File directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("asset-cache-test").toFile();
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        final AssetCache assetCache = new AssetCache(directory, 1000);
+        Assert.assertEquals("content", read(assetCache.open("a-1", new ContentLoader("content"))));
+        Assert.assertEquals("content", read(assetCache.open("b-1", new ContentLoader("content"))));
+        Assert.assertEquals(7, assetCache.getTotalBytes());
+        Assert.assertEquals(1, new File(directory, "blobs").list().length);
+        Assert.assertEquals(2, new File(directory, "refs").list().length);
+        Assert.assertNull(assetCache.open("c-1", new ContentLoader(null)));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final AssetCache assetCache = new AssetCache(directory, 10);
+        read(assetCache.open("a-1", new ContentLoader("aaaa")));
+        read(assetCache.open("b-1", new ContentLoader("bbbb")));
+        read(assetCache.open("a-1", new ContentLoader("xxxx")));
+        read(assetCache.open("c-1", new ContentLoader("cccc")));
+        Assert.assertEquals(8, assetCache.getTotalBytes());
+        Assert.assertEquals("aaaa", read(assetCache.open("a-1", new ContentLoader("xxxx"))));
+        Assert.assertEquals("bbbb", read(assetCache.open("b-1", new ContentLoader("bbbb"))));
+        Assert.assertEquals(2, new File(directory, "refs").list().length);
+    }
+
+    @Test
+    public void testIndexRebuild() throws Exception {
+        read(new AssetCache(directory, 1000).open("a-1", new ContentLoader("content")));
+        final AssetCache assetCache = new AssetCache(directory, 1000);
+        Assert.assertEquals(7, assetCache.getTotalBytes());
+        Assert.assertEquals("content", read(assetCache.open("a-1", new ContentLoader("changed"))));
+    }
+
+    @Test
+    public void testSingleLoadOnConcurrentMiss() throws Exception {
+        final AssetCache assetCache = new AssetCache(directory, 1000);
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch loadReleased = new CountDownLatch(1);
+        final AssetCache.Loader loader = new AssetCache.Loader() {
+            @Override
+            public boolean load(final OutputStream outputStream) throws IOException {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                try {
+                    loadReleased.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+                outputStream.write("content".getBytes("UTF-8"));
+                return true;
+            }
+        };
+        final List<String> results = new ArrayList<String>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final String result = read(assetCache.open("a-1", loader));
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    } catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        loadStarted.await();
+        Thread.sleep(100);
+        loadReleased.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(1, loadCount.get());
+        Assert.assertEquals(4, results.size());
+        for (final String result : results) {
+            Assert.assertEquals("content", result);
+        }
+    }
+
+    private static String read(final FileInputStream inputStream) throws IOException {
+        try {
+            return IOUtils.toString(inputStream, "UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static final class ContentLoader implements AssetCache.Loader {
+        private final String content;
+
+        private ContentLoader(final String content) {
+            this.content = content;
+        }
+
+        @Override
+        public boolean load(final OutputStream outputStream) throws IOException {
+            if (content == null) {
+                return false;
+            }
+            outputStream.write(content.getBytes("UTF-8"));
+            return true;
+        }
+    }
+}
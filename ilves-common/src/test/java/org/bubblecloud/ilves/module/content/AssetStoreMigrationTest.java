@@ -0,0 +1,120 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.io.FileUtils;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Date;
+
+/**
+ * Tests migration of asset contents from database to file system asset store.
+ */
+public class AssetStoreMigrationTest {
+    private File directory;
+    private EntityManager entityManager;
+
+    @Before
+    public void before() throws Exception {
+        directory = Files.createTempDirectory("asset-store-migration-test").toFile();
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+    }
+
+    @After
+    public void after() throws Exception {
+        entityManager.close();
+        TestUtil.after();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        final Company owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11",
+                invoicingAddress, deliveryAddress);
+        entityManager.getTransaction().begin();
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        entityManager.persist(owner);
+        entityManager.getTransaction().commit();
+
+        final DatabaseAssetStore databaseStore = new DatabaseAssetStore();
+        for (int i = 0; i < 3; i++) {
+            final Asset asset = new Asset();
+            asset.setOwner(owner);
+            asset.setName("asset-" + i);
+            asset.setExtension("txt");
+            asset.setType("text/plain");
+            asset.setDescription("");
+            asset.setCreated(new Date());
+            ContentDao.saveAsset(entityManager, asset);
+            final byte[] content = ("content-" + i).getBytes("UTF-8");
+            entityManager.getTransaction().begin();
+            databaseStore.write(entityManager, asset, new ByteArrayInputStream(content), content.length);
+            entityManager.getTransaction().commit();
+        }
+
+        final FileSystemAssetStore fileSystemStore = new FileSystemAssetStore(directory);
+
+        // Failing asset is skipped and remaining assets are migrated in the same round.
+        final AssetStore failingStore = new AssetStore() {
+            private boolean failed;
+
+            @Override
+            public void write(final EntityManager entityManager, final Asset asset, final InputStream inputStream,
+                              final long length) throws IOException {
+                if (!failed) {
+                    failed = true;
+                    throw new IOException("Test failure.");
+                }
+                fileSystemStore.write(entityManager, asset, inputStream, length);
+            }
+
+            @Override
+            public boolean read(final EntityManager entityManager, final Asset asset,
+                                final OutputStream outputStream) throws IOException {
+                return fileSystemStore.read(entityManager, asset, outputStream);
+            }
+        };
+        Assert.assertEquals(2, AssetStoreMigration.migrate(entityManager, failingStore, 1));
+        Assert.assertEquals(1, AssetStoreMigration.migrate(entityManager, fileSystemStore, 2));
+        Assert.assertEquals(0, AssetStoreMigration.migrate(entityManager, fileSystemStore, 2));
+
+        entityManager.getTransaction().begin();
+        final Connection connection = entityManager.unwrap(Connection.class);
+        final PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT assetid, name, contenthash, data FROM asset");
+        final ResultSet resultSet = preparedStatement.executeQuery();
+        int count = 0;
+        while (resultSet.next()) {
+            Assert.assertNull(resultSet.getBinaryStream(4));
+            final Asset asset = new Asset();
+            asset.setAssetId(resultSet.getString(1));
+            asset.setContentHash(resultSet.getString(3));
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            Assert.assertTrue(fileSystemStore.read(entityManager, asset, outputStream));
+            Assert.assertEquals(resultSet.getString(2).replace("asset", "content"), outputStream.toString("UTF-8"));
+            count++;
+        }
+        preparedStatement.close();
+        entityManager.getTransaction().rollback();
+        Assert.assertEquals(3, count);
+    }
+}
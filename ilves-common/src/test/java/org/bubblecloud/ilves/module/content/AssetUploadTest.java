@@ -0,0 +1,85 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Tests asset upload stream.
+ */
+public class AssetUploadTest {
+    private File directory;
+    private AssetCache assetCache;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("asset-upload-test").toFile();
+        assetCache = new AssetCache(directory, 1000);
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testUploadToCache() throws Exception {
+        final AssetUpload assetUpload = new AssetUpload(assetCache.newSpool(), 100);
+        assetUpload.write("%PDF-1.4 test".getBytes("US-ASCII"));
+        assetUpload.close();
+        Assert.assertEquals(13, assetUpload.getLength());
+        Assert.assertEquals("application/pdf", assetUpload.resolveType("application/octet-stream"));
+
+        assetUpload.getSpool().commit("a-1");
+        assetUpload.getSpool().discard();
+        final FileInputStream inputStream = assetCache.open("a-1", null);
+        try {
+            Assert.assertEquals("%PDF-1.4 test", IOUtils.toString(inputStream, "US-ASCII"));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void testMaximumSize() throws Exception {
+        final AssetUpload assetUpload = new AssetUpload(assetCache.newSpool(), 10);
+        assetUpload.write(new byte[10]);
+        try {
+            assetUpload.write(1);
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertTrue(assetUpload.isTooLarge());
+        }
+        assetUpload.getSpool().discard();
+        Assert.assertEquals(0, new File(directory, "tmp").list().length);
+    }
+
+    @Test
+    public void testTypeResolution() throws Exception {
+        final AssetUpload zipUpload = new AssetUpload(assetCache.newSpool(), 100);
+        zipUpload.write(new byte[] {'P', 'K', 3, 4, 0, 0});
+        Assert.assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+                zipUpload.resolveType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+        Assert.assertEquals("application/zip", zipUpload.resolveType(null));
+        zipUpload.getSpool().discard();
+
+        final AssetUpload pngUpload = new AssetUpload(assetCache.newSpool(), 100);
+        pngUpload.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a});
+        Assert.assertEquals("image/png", pngUpload.resolveType("image/jpeg"));
+        pngUpload.getSpool().discard();
+
+        final AssetUpload textUpload = new AssetUpload(assetCache.newSpool(), 100);
+        textUpload.write("hello".getBytes("US-ASCII"));
+        Assert.assertEquals("text/plain", textUpload.resolveType("text/plain"));
+        Assert.assertEquals("application/octet-stream", textUpload.resolveType(""));
+        textUpload.getSpool().discard();
+    }
+}
@@ -0,0 +1,87 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests image derivative parsing and generation.
+ */
+public class ImageDerivativeTest {
+
+    @Test
+    public void testParse() {
+        Assert.assertNull(ImageDerivative.parse(null, null, null, null, "image/png"));
+        Assert.assertEquals("320x0-contain.png",
+                ImageDerivative.parse("320", null, "cover", null, "image/png").getKey());
+        Assert.assertEquals("320x200-cover.jpeg",
+                ImageDerivative.parse("320", "200", "COVER", "jpg", "image/png").getKey());
+        Assert.assertEquals("0x0-contain.jpeg", ImageDerivative.parse(null, null, null, "jpeg", "image/gif").getKey());
+        Assert.assertEquals("image/jpeg", ImageDerivative.parse("10", null, null, null, "image/jpeg").getContentType());
+        for (final String[] invalid : new String[][] {{"0", null, null, null}, {"4097", null, null, null},
+                {"abc", null, null, null}, {"10", null, "stretch", null}, {"10", null, null, "webp"}}) {
+            try {
+                ImageDerivative.parse(invalid[0], invalid[1], invalid[2], invalid[3], "image/png");
+                Assert.fail();
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        Assert.assertTrue(ImageDerivative.isSupportedType("image/jpeg"));
+        Assert.assertFalse(ImageDerivative.isSupportedType("application/pdf"));
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        final byte[] source = newImage(1000, 500);
+
+        // Contain preserves aspect ratio and does not upscale.
+        assertSize(80, 40, generate(source, "80", "80", "contain", "png"));
+        assertSize(1000, 500, generate(source, "2000", null, null, "png"));
+        // Cover crops to requested size and fill stretches.
+        assertSize(80, 80, generate(source, "80", "80", "cover", "jpeg"));
+        assertSize(80, 80, generate(source, "80", "80", "fill", "png"));
+
+        // Cover keeps center of the image.
+        final BufferedImage cover = ImageIO.read(new ByteArrayInputStream(generate(source, "50", "50", "cover", "png")));
+        Assert.assertEquals(Color.RED.getRGB(), cover.getRGB(25, 25));
+        Assert.assertEquals(Color.RED.getRGB(), cover.getRGB(2, 25));
+    }
+
+    private static byte[] generate(final byte[] source, final String width, final String height, final String fit,
+                                   final String format) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageDerivative.parse(width, height, fit, format, "image/png").generate(
+                new ByteArrayInputStream(source), outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static void assertSize(final int width, final int height, final byte[] image) throws IOException {
+        final BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(image));
+        Assert.assertEquals(width, bufferedImage.getWidth());
+        Assert.assertEquals(height, bufferedImage.getHeight());
+    }
+
+    /**
+     * Creates PNG image with blue left and right quarters and red center.
+     */
+    private static byte[] newImage(final int width, final int height) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.RED);
+        graphics.fillRect(width / 4, 0, width / 2, height);
+        graphics.dispose();
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.io.FileUtils;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit test for audit log journal.
+ */
+public class AuditLogJournalTest {
+
+    private File directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = new File("target/audit-journal-test");
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @After
+    public void after() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testAppendReadAndRecover() throws Exception {
+        AuditLogJournal journal = new AuditLogJournal(directory, 4096, AuditLogJournal.FsyncPolicy.NEVER);
+        Assert.assertTrue(journal.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            journal.append(newAuditLogEntry(i));
+        }
+
+        // Entries span several segments and are returned again until acknowledged.
+        List<AuditLogEntry> auditLogEntries = journal.read(60);
+        Assert.assertEquals(60, auditLogEntries.size());
+        Assert.assertEquals(60, journal.read(60).size());
+        journal.acknowledge(auditLogEntries.size());
+        journal.close();
+
+        journal = new AuditLogJournal(directory, 4096, AuditLogJournal.FsyncPolicy.NEVER);
+        Assert.assertFalse(journal.isEmpty());
+        auditLogEntries = journal.read(1000);
+        Assert.assertEquals(40, auditLogEntries.size());
+        for (int i = 0; i < auditLogEntries.size(); i++) {
+            final AuditLogEntry auditLogEntry = auditLogEntries.get(i);
+            Assert.assertEquals("ID-" + (60 + i), auditLogEntry.getAuditLogEntryId());
+            Assert.assertEquals("test-event-" + (60 + i), auditLogEntry.getEvent());
+            Assert.assertNull(auditLogEntry.getUserId());
+            Assert.assertEquals(60 + i, auditLogEntry.getCreated().getTime());
+        }
+        journal.acknowledge(auditLogEntries.size());
+        Assert.assertTrue(journal.isEmpty());
+
+        journal.append(newAuditLogEntry(100));
+        Assert.assertEquals("ID-100", journal.read(10).get(0).getAuditLogEntryId());
+        journal.close();
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        final AuditLogJournal journal = new AuditLogJournal(directory, 4096, AuditLogJournal.FsyncPolicy.NEVER);
+        journal.append(newAuditLogEntry(0));
+        journal.close();
+        journal.close();
+
+        Assert.assertTrue(journal.isEmpty());
+        Assert.assertTrue(journal.read(10).isEmpty());
+        journal.force();
+        try {
+            journal.append(newAuditLogEntry(1));
+            Assert.fail("Append to closed journal should fail.");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    private static AuditLogEntry newAuditLogEntry(final int i) {
+        final AuditLogEntry auditLogEntry = new AuditLogEntry("test-event-" + i, "127.0.0.1:8080", "unit-test",
+                "127.0.0.1:12345", null, "test-user-name", "test-data-type", "test-data-id", null, null,
+                "test-data-label", new Date(i));
+        auditLogEntry.setAuditLogEntryId("ID-" + i);
+        return auditLogEntry;
+    }
+}
@@ -0,0 +1,101 @@
+package org.bubblecloud.ilves.security;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Tests native audit log partitions on PostgreSQL. Skipped unless PostgreSQL database is given
+ * with ilves.test.postgresql.url, ilves.test.postgresql.user and ilves.test.postgresql.password
+ * system properties.
+ */
+public class AuditLogPartitionManagerTest {
+    private static final String SCHEMA = "ilves_partition_test";
+
+    private Connection connection;
+
+    @Before
+    public void before() throws Exception {
+        final String url = System.getProperty("ilves.test.postgresql.url");
+        Assume.assumeNotNull(url);
+        connection = DriverManager.getConnection(url, System.getProperty("ilves.test.postgresql.user"),
+                System.getProperty("ilves.test.postgresql.password"));
+        connection.setAutoCommit(false);
+
+        // Audit log table as left by partitioning change sets.
+        final Date now = new Date();
+        final Date nextMonth = new DateTime(now).withDayOfMonth(1).withTimeAtStartOfDay().plusMonths(1).toDate();
+        execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        execute("CREATE SCHEMA " + SCHEMA);
+        execute("SET search_path TO " + SCHEMA);
+        execute("CREATE TABLE auditlogentry (auditlogentryid VARCHAR(255) NOT NULL, created TIMESTAMP NOT NULL,"
+                + " event VARCHAR(255), PRIMARY KEY (auditlogentryid, created)) PARTITION BY RANGE (created)");
+        execute("CREATE TABLE auditlogentry_legacy PARTITION OF auditlogentry FOR VALUES FROM (MINVALUE) TO ('"
+                + new Timestamp(nextMonth.getTime()) + "')");
+        execute("CREATE TABLE auditlogentry_default PARTITION OF auditlogentry DEFAULT");
+        connection.commit();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (connection != null) {
+            connection.rollback();
+            execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            connection.commit();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testInsertAfterLastPartition() throws Exception {
+        final Date now = new Date();
+        AuditLogPartitionManager.maintain(connection, now, 0, true);
+        connection.commit();
+
+        // Entries after last created monthly partition are kept in default partition.
+        final Date later = new DateTime(now).plusMonths(3).toDate();
+        final PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO auditlogentry (auditlogentryid, created, event) VALUES (?, ?, ?)");
+        insert.setString(1, "later-entry");
+        insert.setTimestamp(2, new Timestamp(later.getTime()));
+        insert.setString(3, "later-event");
+        insert.executeUpdate();
+        insert.close();
+        connection.commit();
+        Assert.assertEquals(1, count("auditlogentry_default"));
+
+        // Entries are moved to monthly partition when it is created.
+        AuditLogPartitionManager.maintain(connection, later, 0, true);
+        connection.commit();
+        Assert.assertEquals(0, count("auditlogentry_default"));
+        Assert.assertEquals(1, count(AuditLogPartitionManager.getPartitionName(
+                new DateTime(later).withDayOfMonth(1).withTimeAtStartOfDay().toDate())));
+        Assert.assertEquals(1, count("auditlogentry"));
+    }
+
+    private void execute(final String sql) throws Exception {
+        final Statement statement = connection.createStatement();
+        statement.execute(sql);
+        statement.close();
+    }
+
+    private long count(final String table) throws Exception {
+        final Statement statement = connection.createStatement();
+        final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+        resultSet.next();
+        final long count = resultSet.getLong(1);
+        statement.close();
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests emulated audit log partition retention on default database.
+ */
+public class AuditLogRetentionTest {
+    private EntityManager entityManager;
+    private Date now;
+    private Date expiredMonth;
+
+    @Before
+    public void before() throws Exception {
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+
+        now = new Date();
+        expiredMonth = new DateTime(now).withDayOfMonth(1).withTimeAtStartOfDay().minusMonths(3).toDate();
+        final List<AuditLogEntry> auditLogEntries = new ArrayList<AuditLogEntry>();
+        auditLogEntries.add(newAuditLogEntry("expired-1", new DateTime(expiredMonth).plusDays(1).toDate()));
+        auditLogEntries.add(newAuditLogEntry("expired-2", new DateTime(expiredMonth).plusDays(2).toDate()));
+        auditLogEntries.add(newAuditLogEntry("retained", new DateTime(now).minusMonths(1).toDate()));
+        auditLogEntries.add(newAuditLogEntry("current", now));
+        AuditService.log(entityManager, auditLogEntries);
+    }
+
+    @After
+    public void after() throws Exception {
+        entityManager.close();
+        TestUtil.after();
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        AuditLogPartitionManager.maintain(entityManager, now, 2, true);
+
+        final String partition = AuditLogPartitionManager.getPartitionName(expiredMonth);
+        Assert.assertEquals(2, count("auditlogentry"));
+        Assert.assertEquals(2, count(partition));
+
+        // Repeated maintenance does not archive entries again.
+        AuditLogPartitionManager.maintain(entityManager, now, 2, true);
+        Assert.assertEquals(2, count("auditlogentry"));
+        Assert.assertEquals(2, count(partition));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        AuditLogPartitionManager.maintain(entityManager, now, 2, false);
+        Assert.assertEquals(2, count("auditlogentry"));
+
+        // Retention months 0 keeps all entries.
+        AuditLogPartitionManager.maintain(entityManager, new DateTime(now).plusYears(1).toDate(), 0, false);
+        Assert.assertEquals(2, count("auditlogentry"));
+    }
+
+    private AuditLogEntry newAuditLogEntry(final String event, final Date created) {
+        return new AuditLogEntry(event, "127.0.0.1:8080", "unit-test", null, null, null,
+                null, null, null, null, null, created);
+    }
+
+    private long count(final String table) throws Exception {
+        entityManager.getTransaction().begin();
+        try {
+            final Statement statement = entityManager.unwrap(Connection.class).createStatement();
+            try {
+                final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+                resultSet.next();
+                return resultSet.getLong(1);
+            } finally {
+                statement.close();
+            }
+        } finally {
+            entityManager.getTransaction().rollback();
+        }
+    }
+}
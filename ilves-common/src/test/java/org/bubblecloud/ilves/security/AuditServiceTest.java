@@ -1,13 +1,20 @@
 package org.bubblecloud.ilves.security;
 
+import org.apache.commons.io.FileUtils;
 import org.bubblecloud.ilves.model.AuditLogEntry;
 import org.bubblecloud.ilves.util.TestUtil;
+import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 /**
  * Created by tlaukkan on 5/4/14.
@@ -140,4 +147,167 @@ public class AuditServiceTest {
         Assert.assertEquals(auditLogEntryRecorded.getDataNewVersionId(), auditLogEntryLoaded.getDataNewVersionId());
         Assert.assertEquals(auditLogEntryRecorded.getDataLabel(), auditLogEntryLoaded.getDataLabel());
     }
+
+    @Test
+    public void testAsynchronousAuditLog() {
+        AuditLogWriter.start(TestUtil.getEntityManagerFactory(), 10, 4, 50,
+                AuditLogWriter.OverflowPolicy.BLOCK, null, false, 1000);
+        assertAsynchronousAuditLog();
+    }
+
+    @Test
+    public void testWriteAheadAuditLog() throws Exception {
+        final File journalDirectory = new File("target/audit-journal");
+        FileUtils.deleteDirectory(journalDirectory);
+        AuditLogWriter.start(TestUtil.getEntityManagerFactory(), 10, 4, 50,
+                AuditLogWriter.OverflowPolicy.SPILL,
+                new AuditLogJournal(journalDirectory, 4096, AuditLogJournal.FsyncPolicy.INTERVAL), true, 1000);
+        assertAsynchronousAuditLog();
+        FileUtils.deleteDirectory(journalDirectory);
+    }
+
+    @Test
+    public void testDurableAuditLog() {
+        AuditLogWriter.start(TestUtil.getEntityManagerFactory(), 10, 4, 1000,
+                AuditLogWriter.OverflowPolicy.BLOCK, null, false, 1000);
+        try {
+            final AuditLogEntry auditLogEntryRecorded = AuditService.log(entityManager, "durable-event",
+                    "127.0.0.1:8080", "unit-test", null, null, null, null, null, null, null, null, true);
+            entityManager.clear();
+            Assert.assertNotNull(entityManager.find(AuditLogEntry.class,
+                    auditLogEntryRecorded.getAuditLogEntryId()));
+        } finally {
+            AuditLogWriter.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentStop() throws Exception {
+        AuditLogWriter.start(TestUtil.getEntityManagerFactory(), 2, 4, 10,
+                AuditLogWriter.OverflowPolicy.BLOCK, null, false, 1000);
+        final List<AuditLogEntry> auditLogEntriesRecorded = new ArrayList<AuditLogEntry>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final EntityManager threadEntityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            final AuditLogEntry auditLogEntry = AuditService.log(threadEntityManager,
+                                    "concurrent-event", "127.0.0.1:8080", "unit-test",
+                                    null, null, null, null, null, null, null, null);
+                            synchronized (auditLogEntriesRecorded) {
+                                auditLogEntriesRecorded.add(auditLogEntry);
+                            }
+                        }
+                    } finally {
+                        threadEntityManager.close();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(20);
+        AuditLogWriter.stop();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        // Entries logged before, during and after stop are all written.
+        entityManager.clear();
+        Assert.assertEquals(200, auditLogEntriesRecorded.size());
+        for (final AuditLogEntry auditLogEntryRecorded : auditLogEntriesRecorded) {
+            Assert.assertNotNull(entityManager.find(AuditLogEntry.class,
+                    auditLogEntryRecorded.getAuditLogEntryId()));
+        }
+    }
+
+    private void assertAsynchronousAuditLog() {
+        final List<AuditLogEntry> auditLogEntriesRecorded = new ArrayList<AuditLogEntry>();
+        try {
+            for (int i = 0; i < 25; i++) {
+                auditLogEntriesRecorded.add(AuditService.log(entityManager,
+                        "test-event-" + i,
+                        "127.0.0.1:8080", "unit-test",
+                        null, null, null,
+                        null, null, null, null, null));
+            }
+        } finally {
+            AuditLogWriter.stop();
+        }
+
+        entityManager.clear();
+
+        for (final AuditLogEntry auditLogEntryRecorded : auditLogEntriesRecorded) {
+            final AuditLogEntry auditLogEntryLoaded = entityManager.find(AuditLogEntry.class,
+                    auditLogEntryRecorded.getAuditLogEntryId());
+            Assert.assertNotNull(auditLogEntryLoaded);
+            Assert.assertEquals(auditLogEntryRecorded.getEvent(), auditLogEntryLoaded.getEvent());
+        }
+    }
+
+    @Test
+    public void testAuditLogRetention() throws Exception {
+        final Date now = new DateTime(2015, 6, 15, 12, 0).toDate();
+        final AuditLogEntry expiredEntry = AuditService.log(entityManager, "expired-event",
+                "127.0.0.1:8080", "unit-test", null, null, null, null, null, null, null, null);
+        final AuditLogEntry retainedEntry = AuditService.log(entityManager, "retained-event",
+                "127.0.0.1:8080", "unit-test", null, null, null, null, null, null, null, null);
+        setCreated(expiredEntry, new DateTime(2015, 4, 30, 23, 59).toDate());
+        setCreated(retainedEntry, new DateTime(2015, 5, 1, 0, 0).toDate());
+
+        AuditLogPartitionManager.maintain(entityManager, now, 1, true);
+        entityManager.clear();
+
+        Assert.assertNull(entityManager.find(AuditLogEntry.class, expiredEntry.getAuditLogEntryId()));
+        Assert.assertNotNull(entityManager.find(AuditLogEntry.class, retainedEntry.getAuditLogEntryId()));
+        Assert.assertEquals(1L, entityManager.createNativeQuery("SELECT COUNT(*) FROM "
+                + AuditLogPartitionManager.getPartitionName(new DateTime(2015, 4, 1, 0, 0).toDate())
+                + " WHERE auditlogentryid = '" + expiredEntry.getAuditLogEntryId() + "'")
+                .getSingleResult());
+    }
+
+    @Test
+    public void testAuditLogExport() throws Exception {
+        final AuditLogEntry includedEntry = AuditService.log(entityManager, "exported-event",
+                "127.0.0.1:8080", "unit-test", null, "user-1", "user@test", "Asset", null, null, null,
+                "label, with \"quotes\"");
+        final AuditLogEntry otherUserEntry = AuditService.log(entityManager, "other-user-event",
+                "127.0.0.1:8080", "unit-test", null, "user-2", null, "Asset", null, null, null, null);
+        final AuditLogEntry excludedEntry = AuditService.log(entityManager, "old-event",
+                "127.0.0.1:8080", "unit-test", null, "user-1", null, "Asset", null, null, null, null);
+        setCreated(includedEntry, new DateTime(2015, 5, 1, 0, 0).toDate());
+        setCreated(otherUserEntry, new DateTime(2015, 5, 2, 0, 0).toDate());
+        setCreated(excludedEntry, new DateTime(2015, 4, 30, 23, 59).toDate());
+
+        final Date start = new DateTime(2015, 5, 1, 0, 0).toDate();
+        final Date end = new DateTime(2015, 6, 1, 0, 0).toDate();
+
+        final StringWriter csvWriter = new StringWriter();
+        Assert.assertEquals(1L, AuditLogExporter.export(entityManager, start, end, "user-1", "Asset",
+                AuditLogExporter.Format.CSV, csvWriter));
+        final String[] csvLines = csvWriter.toString().split("\r\n");
+        Assert.assertEquals(2, csvLines.length);
+        Assert.assertTrue(csvLines[0].startsWith("auditlogentryid,created,event,"));
+        Assert.assertTrue(csvLines[1].startsWith(includedEntry.getAuditLogEntryId() + ","));
+        Assert.assertTrue(csvLines[1].endsWith(",\"label, with \"\"quotes\"\"\""));
+
+        final StringWriter jsonWriter = new StringWriter();
+        Assert.assertEquals(2L, AuditLogExporter.export(entityManager, start, end, null, null,
+                AuditLogExporter.Format.NDJSON, jsonWriter));
+        final String[] jsonLines = jsonWriter.toString().split("\n");
+        Assert.assertEquals(2, jsonLines.length);
+        Assert.assertTrue(jsonLines[0].contains("\"event\":\"exported-event\""));
+        Assert.assertTrue(jsonLines[0].contains("\"datalabel\":\"label, with \\\"quotes\\\"\""));
+        Assert.assertTrue(jsonLines[1].contains("\"useraddress\":null"));
+    }
+
+    private void setCreated(final AuditLogEntry auditLogEntry, final Date created) {
+        entityManager.getTransaction().begin();
+        entityManager.createNativeQuery("UPDATE auditlogentry SET created = ? WHERE auditlogentryid = ?")
+                .setParameter(1, created).setParameter(2, auditLogEntry.getAuditLogEntryId()).executeUpdate();
+        entityManager.getTransaction().commit();
+    }
 }
@@ -0,0 +1,64 @@
+package org.bubblecloud.ilves.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests compiled CIDR trie.
+ */
+public class CidrTrieTest {
+
+    @Test
+    public void testIpv4() {
+        final CidrTrie trie = new CidrTrie("10.0.0.0/8, 192.168.1.0/24,127.0.0.1");
+        Assert.assertTrue(trie.contains("10.1.2.3"));
+        Assert.assertTrue(trie.contains("192.168.1.255"));
+        Assert.assertFalse(trie.contains("192.168.2.1"));
+        Assert.assertTrue(trie.contains("127.0.0.1"));
+        Assert.assertFalse(trie.contains("127.0.0.2"));
+        Assert.assertTrue(trie.contains("::ffff:10.0.0.1"));
+        Assert.assertFalse(trie.contains("localhost"));
+        Assert.assertFalse(trie.contains("10.1.2"));
+        Assert.assertFalse(trie.contains("10.1.2.256"));
+    }
+
+    @Test
+    public void testIpv6() {
+        final CidrTrie trie = new CidrTrie("2001:db8::/32,::1/128");
+        Assert.assertTrue(trie.contains("2001:db8:1::5"));
+        Assert.assertTrue(trie.contains("[2001:DB8::1%eth0]"));
+        Assert.assertFalse(trie.contains("2001:db9::1"));
+        Assert.assertTrue(trie.contains("0:0:0:0:0:0:0:1"));
+        Assert.assertFalse(trie.contains("10.0.0.1"));
+        Assert.assertFalse(trie.contains("2001:db8::1::2"));
+    }
+
+    @Test
+    public void testMatchAll() {
+        final CidrTrie trie = CidrTrie.getCompiled("0.0.0.0/0");
+        Assert.assertSame(trie, CidrTrie.getCompiled("0.0.0.0/0"));
+        Assert.assertTrue(trie.contains("8.8.8.8"));
+        Assert.assertFalse(trie.contains("::2"));
+        Assert.assertTrue(CidrTrie.getCompiled(null).isEmpty());
+        Assert.assertFalse(CidrTrie.getCompiled("").contains("8.8.8.8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrefixLength() {
+        new CidrTrie("10.0.0.0/33");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAddress() {
+        new CidrTrie("example.com/24");
+    }
+
+    @Test
+    public void testSkipInvalid() {
+        final CidrTrie trie = CidrTrie.getCompiled("example.com, 10.0.0.0/8, 192.168.0.0/33, 172.16.0.0/-1");
+        Assert.assertTrue(trie.contains("10.1.2.3"));
+        Assert.assertFalse(trie.contains("192.168.0.1"));
+        Assert.assertEquals(3, trie.getInvalidEntries().size());
+        Assert.assertEquals("example.com", trie.getInvalidEntries().get(0));
+    }
+}
@@ -0,0 +1,85 @@
+package org.bubblecloud.ilves.security;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests pooled LDAP connections against in memory directory server.
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "DirectoryConnectionPoolTest")
+@CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost")})
+@ApplyLdifs({
+        "dn: cn=test,ou=users,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: test",
+        "sn: test@test.com",
+        "userPassword: password"
+})
+public class DirectoryConnectionPoolTest extends AbstractLdapTestUnit {
+
+    @After
+    public void after() {
+        DirectoryConnectionPool.closeAll();
+    }
+
+    @Test
+    public void testVerifyBind() throws Exception {
+        final DirectoryConnectionPool pool = DirectoryConnectionPool.getPool(newUserDirectory());
+        final Dn userDn = new Dn("cn=test,ou=users,ou=system");
+        Assert.assertTrue(pool.verifyBind(userDn, "password".toCharArray()));
+        Assert.assertFalse(pool.verifyBind(userDn, "wrong".toCharArray()));
+        Assert.assertFalse(pool.verifyBind(userDn, new char[0]));
+        Assert.assertTrue(pool.verifyBind(userDn, "password".toCharArray()));
+    }
+
+    @Test
+    public void testServiceConnectionReuse() throws Exception {
+        final DirectoryConnectionPool pool = DirectoryConnectionPool.getPool(newUserDirectory());
+        final LdapConnection connection = pool.borrowServiceConnection();
+        final EntryCursor cursor = connection.search("ou=users,ou=system", "(sn=test@test.com)",
+                SearchScope.ONELEVEL);
+        Assert.assertTrue(cursor.next());
+        cursor.close();
+        pool.releaseServiceConnection(connection, false);
+
+        Assert.assertSame(connection, pool.borrowServiceConnection());
+        pool.releaseServiceConnection(connection, true);
+        final LdapConnection newConnection = pool.borrowServiceConnection();
+        Assert.assertNotSame(connection, newConnection);
+        pool.releaseServiceConnection(newConnection, false);
+    }
+
+    @Test
+    public void testPoolRecreatedOnSettingsChange() throws Exception {
+        final UserDirectory userDirectory = newUserDirectory();
+        final DirectoryConnectionPool pool = DirectoryConnectionPool.getPool(userDirectory);
+        Assert.assertSame(pool, DirectoryConnectionPool.getPool(userDirectory));
+        userDirectory.setLoginPassword("changed");
+        Assert.assertNotSame(pool, DirectoryConnectionPool.getPool(userDirectory));
+    }
+
+    private UserDirectory newUserDirectory() {
+        final UserDirectory userDirectory = new UserDirectory();
+        userDirectory.setUserDirectoryId("test-directory");
+        userDirectory.setAddress("localhost");
+        userDirectory.setPort(getLdapServer().getPort());
+        userDirectory.setLoginDn("uid=admin,ou=system");
+        userDirectory.setLoginPassword("secret");
+        return userDirectory;
+    }
+}
@@ -0,0 +1,149 @@
+package org.bubblecloud.ilves.security;
+
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests directory login against in memory directory server.
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "DirectoryLoginTest")
+@CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost")})
+@ApplyLdifs({
+        "dn: cn=test,ou=users,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: test",
+        "sn: test@test.com",
+        "userPassword: password",
+        "",
+        "dn: cn=other,ou=users,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: other",
+        "sn: other@test.com",
+        "userPassword: password",
+        "",
+        "dn: cn=Remote-Users,ou=groups,ou=system",
+        "objectClass: top",
+        "objectClass: groupOfUniqueNames",
+        "cn: Remote-Users",
+        "uniqueMember: cn=test,ou=users,ou=system",
+        "",
+        "dn: cn=remote-admins,ou=groups,ou=system",
+        "objectClass: top",
+        "objectClass: groupOfUniqueNames",
+        "cn: remote-admins",
+        "uniqueMember: cn=other,ou=users,ou=system"
+})
+public class DirectoryLoginTest extends AbstractLdapTestUnit {
+    private EntityManager entityManager;
+    private Company company;
+    private Group userGroup;
+    private Group administratorGroup;
+    private UserDirectory userDirectory;
+
+    @Before
+    public void before() throws Exception {
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        company = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11",
+                invoicingAddress, deliveryAddress);
+        company.setMaxFailedLoginCount(5);
+        entityManager.getTransaction().begin();
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        entityManager.persist(company);
+        entityManager.getTransaction().commit();
+
+        userGroup = new Group(company, "user", "User");
+        UserDao.addGroup(entityManager, userGroup);
+        administratorGroup = new Group(company, "administrator", "Administrator");
+        UserDao.addGroup(entityManager, administratorGroup);
+
+        userDirectory = new UserDirectory();
+        userDirectory.setOwner(company);
+        userDirectory.setAddress("localhost");
+        userDirectory.setPort(getLdapServer().getPort());
+        userDirectory.setLoginDn("uid=admin,ou=system");
+        userDirectory.setLoginPassword("secret");
+        userDirectory.setRemoteLocalGroupMapping("remote-users=user, remote-admins=administrator");
+        userDirectory.setRequiredRemoteGroup("remote-users");
+        userDirectory.setSubNetWhiteList("127.0.0.0/8");
+        userDirectory.setEnabled(true);
+        userDirectory.setCreated(new Date());
+        userDirectory.setModified(userDirectory.getCreated());
+        UserDirectoryDao.addUserDirectory(entityManager, userDirectory);
+    }
+
+    @After
+    public void after() {
+        DirectoryConnectionPool.closeAll();
+        TestUtil.after();
+    }
+
+    @Test
+    public void testDirectoryLogin() throws Exception {
+        final User user = new User(company, "Test", "User", "test@test.com", "+358 40 1234567", "");
+        UserDao.addUser(entityManager, user, administratorGroup);
+
+        Assert.assertNull(PasswordLoginUtil.login(user.getEmailAddress(), "localhost", "127.0.0.1", 1234,
+                entityManager, company, user, "password".toCharArray()));
+
+        final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
+        Assert.assertEquals(1, groups.size());
+        Assert.assertEquals(userGroup, groups.get(0));
+
+        Assert.assertEquals("message-login-failed", PasswordLoginUtil.login(user.getEmailAddress(), "localhost",
+                "127.0.0.1", 1234, entityManager, company, user, "wrong".toCharArray()));
+    }
+
+    @Test
+    public void testGroupSynchronization() throws Exception {
+        final User user = new User(company, "Test", "User", "test@test.com", "+358 40 1234567", "");
+        UserDao.addUser(entityManager, user, administratorGroup);
+        final User otherUser = new User(company, "Other", "User", "other@test.com", "+358 40 1234568", "");
+        UserDao.addUser(entityManager, otherUser, userGroup);
+        // User removed from directory loses memberships of mapped groups.
+        final User removedUser = new User(company, "Removed", "User", "removed@test.com", "+358 40 1234569", "");
+        removedUser.setDirectoryDn("cn=removed,ou=users,ou=system");
+        UserDao.addUser(entityManager, removedUser, administratorGroup);
+        // Local user never found from directory keeps manual memberships.
+        final User localUser = new User(company, "Local", "User", "local@test.com", "+358 40 1234570", "");
+        UserDao.addUser(entityManager, localUser, administratorGroup);
+
+        DirectoryGroupSynchronizer.synchronize(entityManager, userDirectory, 1, 1);
+
+        Assert.assertEquals(Arrays.asList(userGroup), UserDao.getUserGroups(entityManager, company, user));
+        Assert.assertNotNull(user.getDirectoryDn());
+        Assert.assertEquals(Arrays.asList(administratorGroup),
+                UserDao.getUserGroups(entityManager, company, otherUser));
+        Assert.assertTrue(UserDao.getUserGroups(entityManager, company, removedUser).isEmpty());
+        Assert.assertEquals(Arrays.asList(administratorGroup),
+                UserDao.getUserGroups(entityManager, company, localUser));
+        Assert.assertNull(localUser.getDirectoryDn());
+    }
+}
@@ -0,0 +1,54 @@
+package org.bubblecloud.ilves.security;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests login throttling.
+ */
+public class LoginThrottleTest {
+
+    @Before
+    public void before() {
+        LoginThrottle.clear();
+    }
+
+    @After
+    public void after() {
+        LoginThrottle.clear();
+    }
+
+    @Test
+    public void testAccountFailures() {
+        Assert.assertEquals(1, LoginThrottle.recordFailure("user-1", 0, "127.0.0.1"));
+        Assert.assertEquals(2, LoginThrottle.recordFailure("user-1", 0, "127.0.0.2"));
+        Assert.assertEquals(1, LoginThrottle.recordFailure("user-2", 0, "127.0.0.1"));
+        LoginThrottle.reset("user-1");
+        Assert.assertEquals(1, LoginThrottle.recordFailure("user-1", 0, "127.0.0.1"));
+        // Counter is seeded from persisted failed login count.
+        Assert.assertEquals(6, LoginThrottle.recordFailure("user-3", 5, "127.0.0.1"));
+    }
+
+    @Test
+    public void testSlowAccountFailures() {
+        // Failures paced a day apart keep counting until reset.
+        final long dayMillis = 24 * 60 * 60 * 1000L;
+        final long start = System.currentTimeMillis();
+        for (int i = 1; i <= 10; i++) {
+            Assert.assertEquals(i, LoginThrottle.recordFailure("user-1", 0, "127.0.0.1", start + i * dayMillis));
+        }
+    }
+
+    @Test
+    public void testIpThrottling() {
+        for (int i = 0; i < 49; i++) {
+            LoginThrottle.recordFailure(null, 0, "127.0.0.1");
+        }
+        Assert.assertFalse(LoginThrottle.isThrottled("127.0.0.1"));
+        LoginThrottle.recordFailure("user-1", 0, "127.0.0.1");
+        Assert.assertTrue(LoginThrottle.isThrottled("127.0.0.1"));
+        Assert.assertFalse(LoginThrottle.isThrottled("127.0.0.2"));
+    }
+}
@@ -0,0 +1,74 @@
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.model.User;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests password hashing.
+ */
+public class PasswordHashingTest {
+
+    @Test
+    public void testDefaultHash() {
+        final User user = newUser();
+        user.setPasswordHash(PasswordHashing.hash(user, "password".toCharArray()));
+        Assert.assertTrue(user.getPasswordHash().startsWith("$pbkdf2-sha256$"));
+        Assert.assertTrue(PasswordHashing.isEncodedHash(user.getPasswordHash()));
+        Assert.assertFalse(PasswordHashing.needsRehash(user.getPasswordHash()));
+        Assert.assertTrue(PasswordHashing.verify(user, "password".toCharArray()));
+        Assert.assertFalse(PasswordHashing.verify(user, "wrong".toCharArray()));
+        Assert.assertTrue(PasswordHashing.getVerificationCount() >= 2);
+    }
+
+    @Test
+    public void testWeakerParametersNeedRehash() {
+        final User user = newUser();
+        user.setPasswordHash(new Pbkdf2PasswordHasher(1000).hash(user, "password".toCharArray()));
+        Assert.assertTrue(PasswordHashing.verify(user, "password".toCharArray()));
+        Assert.assertTrue(PasswordHashing.needsRehash(user.getPasswordHash()));
+    }
+
+    @Test
+    public void testScrypt() {
+        final User user = newUser();
+        final ScryptPasswordHasher hasher = new ScryptPasswordHasher(10, 8, 1);
+        user.setPasswordHash(hasher.hash(user, "password".toCharArray()));
+        Assert.assertTrue(user.getPasswordHash().startsWith("$scrypt$ln=10,r=8,p=1$"));
+        Assert.assertTrue(PasswordHashing.verify(user, "password".toCharArray()));
+        Assert.assertFalse(PasswordHashing.verify(user, "wrong".toCharArray()));
+        Assert.assertFalse(hasher.needsRehash(user.getPasswordHash()));
+        Assert.assertTrue(new ScryptPasswordHasher(11, 8, 1).needsRehash(user.getPasswordHash()));
+    }
+
+    @Test
+    public void testLegacyHash() {
+        final User user = newUser();
+        final LegacySha256PasswordHasher hasher = new LegacySha256PasswordHasher();
+        user.setPasswordHash(hasher.hash(user, "password".toCharArray()));
+        Assert.assertEquals(64, user.getPasswordHash().length());
+        Assert.assertTrue(PasswordHashing.verify(user, "password".toCharArray()));
+        Assert.assertTrue(PasswordHashing.needsRehash(user.getPasswordHash()));
+
+        final User emailSaltedUser = newUser();
+        emailSaltedUser.setPasswordHash(SecurityUtil.getSecretHash(
+                (emailSaltedUser.getEmailAddress() + ":password").toCharArray()));
+        Assert.assertTrue(PasswordHashing.verify(emailSaltedUser, "password".toCharArray()));
+        Assert.assertFalse(PasswordHashing.verify(emailSaltedUser, "wrong".toCharArray()));
+    }
+
+    @Test
+    public void testUnknownHash() {
+        final User user = newUser();
+        user.setPasswordHash("password");
+        Assert.assertFalse(PasswordHashing.isEncodedHash(user.getPasswordHash()));
+        Assert.assertFalse(PasswordHashing.verify(user, "password".toCharArray()));
+    }
+
+    private User newUser() {
+        final User user = new User();
+        user.setUserId("test-user-id");
+        user.setEmailAddress("test@test.com");
+        return user;
+    }
+}
@@ -0,0 +1,29 @@
+package org.bubblecloud.ilves.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests resolving client address from forwarded headers.
+ */
+public class RemoteAddressUtilTest {
+
+    @Test
+    public void testForwardedFor() {
+        final CidrTrie trustedProxies = new CidrTrie("10.0.0.0/8");
+        // Forwarded header of untrusted peer is ignored.
+        Assert.assertEquals("203.0.113.5", RemoteAddressUtil.getRemoteIpAddress(
+                "203.0.113.5", "192.0.2.1", trustedProxies));
+        // Right most untrusted hop is client even if client prepends addresses of its own.
+        Assert.assertEquals("203.0.113.5", RemoteAddressUtil.getRemoteIpAddress(
+                "10.0.0.1", "192.0.2.1, 203.0.113.5, 10.0.0.2", trustedProxies));
+        Assert.assertEquals("10.0.0.1", RemoteAddressUtil.getRemoteIpAddress(
+                "10.0.0.1", null, trustedProxies));
+        // Unparseable hop stops at last known address.
+        Assert.assertEquals("10.0.0.2", RemoteAddressUtil.getRemoteIpAddress(
+                "10.0.0.1", "203.0.113.5, unknown, 10.0.0.2", trustedProxies));
+        // All hops trusted.
+        Assert.assertEquals("10.0.0.3", RemoteAddressUtil.getRemoteIpAddress(
+                "10.0.0.1", "10.0.0.3, 10.0.0.2", trustedProxies));
+    }
+}
@@ -1,5 +1,6 @@
 package org.bubblecloud.ilves.security;
 
+import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.PostalAddress;
@@ -11,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -79,11 +81,18 @@ public final class UserTest {
 
         Assert.assertEquals(2, UserDao.listPrivileges(entityManager, "test-key", "test-data").size());
 
+        Assert.assertTrue(PrivilegeCache.hasPrivilege(entityManager, owner, user, "test-key", "test-data"));
+        Assert.assertTrue(PrivilegeCache.hasEffectivePrivilege(entityManager, owner, user, "test-key", "test-data"));
+        Assert.assertFalse(PrivilegeCache.hasEffectivePrivilege(entityManager, owner, user, "test-key", "other-data"));
+        Assert.assertEquals(Arrays.asList("test-data"), PrivilegeCache.filterPermitted(entityManager, owner, user,
+                "test-key", Arrays.asList("other-data", "test-data")));
+
         UserDao.removeUserPrivilege(entityManager, user, "test-key", "test-data");
         UserDao.removeGroupPrivilege(entityManager, group, "test-key", "test-data");
 
         Assert.assertFalse(UserDao.hasUserPrivilege(entityManager, user, "test-key", "test-data"));
         Assert.assertFalse(UserDao.hasGroupPrivilege(entityManager, group, "test-key", "test-data"));
+        Assert.assertFalse(PrivilegeCache.hasEffectivePrivilege(entityManager, owner, user, "test-key", "test-data"));
 
         UserDao.removeGroupMember(entityManager, group, user);
         UserDao.removeGroupMember(entityManager, group2, user);
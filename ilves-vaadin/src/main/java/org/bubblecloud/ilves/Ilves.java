@@ -204,7 +204,7 @@ public class Ilves {
         if (roles.length != 0) {
             viewDescriptor.setViewerRoles(roles);
         }
-        siteDescriptor.getViewDescriptors().add(viewDescriptor);
+        siteDescriptor.addViewDescriptor(viewDescriptor);
     }
 
     /**
@@ -231,17 +231,12 @@ public class Ilves {
         // Get default site descriptor.
         final SiteDescriptor siteDescriptor = DefaultSiteUI.getContentProvider().getSiteDescriptor();
 
-        ViewDescriptor viewDescriptor = null;
-        for (final ViewDescriptor candidateDescriptor : siteDescriptor.getViewDescriptors()) {
-            if (candidateDescriptor.getName().equals(page)) {
-                viewDescriptor = candidateDescriptor;
-            }
-        }
+        ViewDescriptor viewDescriptor = siteDescriptor.getViewDescriptor(page);
 
         if (viewDescriptor == null) {
             // Describe custom view.
             viewDescriptor = new ViewDescriptor(page, DefaultValoView.class);
-            siteDescriptor.getViewDescriptors().add(viewDescriptor);
+            siteDescriptor.addViewDescriptor(viewDescriptor);
         }
 
         // Place example Vaadin component to content slot in the view.
@@ -259,17 +254,12 @@ public class Ilves {
         // Get default site descriptor.
         final SiteDescriptor siteDescriptor = DefaultSiteUI.getContentProvider().getSiteDescriptor();
 
-        ViewDescriptor viewDescriptor = null;
-        for (final ViewDescriptor candidateDescriptor : siteDescriptor.getViewDescriptors()) {
-            if (candidateDescriptor.getName().equals(page)) {
-                viewDescriptor = candidateDescriptor;
-            }
-        }
+        ViewDescriptor viewDescriptor = siteDescriptor.getViewDescriptor(page);
 
         if (viewDescriptor == null) {
             // Describe custom view.
             viewDescriptor = new ViewDescriptor(page, DefaultValoView.class);
-            siteDescriptor.getViewDescriptors().add(viewDescriptor);
+            siteDescriptor.addViewDescriptor(viewDescriptor);
         }
 
         // Place example Vaadin component to content slot in the view.
@@ -5,58 +5,95 @@ import org.bubblecloud.ilves.site.SiteContext;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * API invocation handler which checks access grants.
+ * API invocation handler which checks access grants. Handler is shared by all calls
+ * to the API. Access grants are resolved when handler is constructed and the site
+ * context and implementation instance of the current call are bound to the request
+ * thread with {@link #begin(SiteContext, Object)} and {@link #end()}.
  *
  * @author Tommi S.E. Laukkanen
  */
 public class ApiInvocationHandler implements InvocationHandler {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ApiInvocationHandler.class);
-    /** The site context. */
-    private SiteContext context;
-    /** The instance. */
-    private final Object instance;
+    /** The API call bound to the request thread. */
+    private static final ThreadLocal<ApiCall> currentCall = new ThreadLocal<ApiCall>();
+    /** The granted roles by API method. Methods missing access grant are not included. */
+    private final Map<Method, String[]> grantedRoles;
 
     /**
-     * Constructor for setting site context and instance to the invokation handler.
-     * @param context the context
-     * @param instance the instance
+     * Constructor which resolves access grants of API interface methods.
+     * @param apiInterface the API interface
      */
-    public ApiInvocationHandler(final SiteContext context, final Object instance) {
-        this.context = context;
-        this.instance = instance;
+    public ApiInvocationHandler(final Class apiInterface) {
+        final Map<Method, String[]> grantedRoles = new HashMap<Method, String[]>();
+        for (final Method method : apiInterface.getMethods()) {
+            final AccessGrant accessGrant = method.getAnnotation(AccessGrant.class);
+            if (accessGrant == null) {
+                LOGGER.warn(method.getDeclaringClass().getSimpleName() + "." + method.getName()
+                        + " missing access control annotation.");
+                continue;
+            }
+            grantedRoles.put(method, accessGrant.roles());
+        }
+        this.grantedRoles = Collections.unmodifiableMap(grantedRoles);
+    }
+
+    /**
+     * Binds API call to the current thread.
+     * @param context the site context
+     * @param instance the API implementation instance
+     */
+    public static void begin(final SiteContext context, final Object instance) {
+        currentCall.set(new ApiCall(context, instance));
+    }
+
+    /**
+     * Unbinds API call from the current thread.
+     */
+    public static void end() {
+        currentCall.remove();
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         final long startTimeMillis = System.currentTimeMillis();
         try {
-            final AccessGrant accessGrant = method.getAnnotation(AccessGrant.class);
+            final ApiCall call = currentCall.get();
+            if (call == null) {
+                throw new IllegalStateException("API call not bound to thread.");
+            }
 
-            if (accessGrant == null) {
+            final String[] roles = grantedRoles.get(method);
+
+            if (roles == null) {
                 LOGGER.warn(method.getDeclaringClass().getSimpleName() + "." + method.getName()
                         + " missing access control annotation.");
                 throw new SecurityException("access_denied");
             }
 
-            if (accessGrant.roles().length > 0) {
+            if (roles.length > 0) {
+                final List<String> userRoles = call.context.getRoles();
                 boolean roleAccessGranted = false;
-                for (final String role : accessGrant.roles()) {
-                    if (context.getRoles().contains(role)) {
+                for (final String role : roles) {
+                    if (userRoles.contains(role)) {
                         roleAccessGranted = true;
-                        continue;
+                        break;
                     }
                 }
                 if (!roleAccessGranted) {
                     LOGGER.warn(method.getDeclaringClass().getSimpleName() + "." + method.getName()
-                            + " access denied for user with roles: " + context.getRoles());
+                            + " access denied for user with roles: " + userRoles);
                     throw new SecurityException("access_denied");
                 }
             }
 
-            return method.invoke(instance, args);
+            return method.invoke(call.instance, args);
 
         } catch (final Throwable t) {
             LOGGER.error("API call caused unhandled exception: " + method.getName(), t);
@@ -66,4 +103,23 @@ public class ApiInvocationHandler implements InvocationHandler {
         }
     }
 
+    /**
+     * The site context and implementation instance of API call.
+     */
+    private static final class ApiCall {
+        /** The site context. */
+        private final SiteContext context;
+        /** The instance. */
+        private final Object instance;
+
+        /**
+         * Constructor for setting site context and instance of the call.
+         * @param context the context
+         * @param instance the instance
+         */
+        private ApiCall(final SiteContext context, final Object instance) {
+            this.context = context;
+            this.instance = instance;
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package org.bubblecloud.ilves.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.POJONode;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.googlecode.jsonrpc4j.JsonRpcServer;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON-RPC server of single API. Parameter readers and result writers of API methods are
+ * resolved when server is constructed and return values are serialized directly to the
+ * response stream without building intermediate JSON tree. Results of methods returning
+ * types which may have subclasses with additional properties are serialized by runtime type.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class ApiJsonRpcServer extends JsonRpcServer {
+    /** The parameter readers by API method. */
+    private final Map<Method, ObjectReader[]> parameterReaders;
+    /** The result writers by API method. Methods serializing result by runtime type are not included. */
+    private final Map<Method, ObjectWriter> resultWriters;
+
+    /**
+     * Constructor which resolves parameter readers and result writers of API interface methods.
+     * @param objectMapper the object mapper
+     * @param handler the API handler
+     * @param apiInterface the API interface
+     */
+    public ApiJsonRpcServer(final ObjectMapper objectMapper, final Object handler, final Class<?> apiInterface) {
+        super(objectMapper, handler, apiInterface);
+        final Map<Method, ObjectReader[]> parameterReaders = new HashMap<Method, ObjectReader[]>();
+        final Map<Method, ObjectWriter> resultWriters = new HashMap<Method, ObjectWriter>();
+        for (final Method method : apiInterface.getMethods()) {
+            final Type[] parameterTypes = method.getGenericParameterTypes();
+            final ObjectReader[] readers = new ObjectReader[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                readers[i] = objectMapper.reader(TypeFactory.defaultInstance().constructType(parameterTypes[i]));
+            }
+            parameterReaders.put(method, readers);
+            if (isStaticallyTyped(method.getReturnType())) {
+                resultWriters.put(method, objectMapper.writerWithType(TypeFactory.defaultInstance().constructType(
+                        method.getGenericReturnType())).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE));
+            }
+        }
+        this.parameterReaders = Collections.unmodifiableMap(parameterReaders);
+        this.resultWriters = Collections.unmodifiableMap(resultWriters);
+    }
+
+    /**
+     * Checks whether results of given return type can be serialized by the declared type.
+     * @param returnType the return type
+     * @return true if return type is primitive, array, collection, map or final class
+     */
+    private static boolean isStaticallyTyped(final Class<?> returnType) {
+        if (returnType == void.class || returnType == Void.class) {
+            return false;
+        }
+        return returnType.isPrimitive() || returnType.isArray() || Modifier.isFinal(returnType.getModifiers())
+                || Collection.class.isAssignableFrom(returnType) || Map.class.isAssignableFrom(returnType);
+    }
+
+    @Override
+    protected JsonNode invoke(final Object target, final Method method, final List<JsonNode> params)
+            throws IOException, IllegalAccessException, InvocationTargetException {
+        final ObjectReader[] readers = parameterReaders.get(method);
+        if (readers == null) {
+            return super.invoke(target, method, params);
+        }
+        final Object[] convertedParams = new Object[params.size()];
+        for (int i = 0; i < readers.length; i++) {
+            convertedParams[i] = readers[i].readValue(params.get(i));
+        }
+        final Object result = method.invoke(target, convertedParams);
+        if (result == null) {
+            return null;
+        }
+        final ObjectWriter resultWriter = resultWriters.get(method);
+        return new POJONode(resultWriter != null ? new TypedResult(resultWriter, result) : result);
+    }
+
+    /**
+     * Result serialized with the result writer of the API method.
+     */
+    private static final class TypedResult implements JsonSerializable {
+        /** The result writer. */
+        private final ObjectWriter writer;
+        /** The result. */
+        private final Object value;
+
+        /**
+         * Constructor which sets the result writer and result.
+         * @param writer the result writer
+         * @param value the result
+         */
+        private TypedResult(final ObjectWriter writer, final Object value) {
+            this.writer = writer;
+            this.value = value;
+        }
+
+        @Override
+        public void serialize(final JsonGenerator generator, final SerializerProvider provider) throws IOException {
+            writer.writeValue(generator, value);
+        }
+
+        @Override
+        public void serializeWithType(final JsonGenerator generator, final SerializerProvider provider,
+                                      final TypeSerializer typeSerializer) throws IOException {
+            serialize(generator, provider);
+        }
+    }
+}
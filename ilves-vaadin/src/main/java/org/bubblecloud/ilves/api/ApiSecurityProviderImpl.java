@@ -44,6 +44,10 @@ public final class ApiSecurityProviderImpl implements SecurityProvider {
 
     User user = null;
 
+    String userId = null;
+
+    String userName = null;
+
     List<Group> groups = new ArrayList<>();
 
     List<String> roles = null;
@@ -68,11 +72,7 @@ public final class ApiSecurityProviderImpl implements SecurityProvider {
 
     @Override
     public String getUserId() {
-        if (user != null) {
-            return user.getUserId();
-        } else {
-            return null;
-        }
+        return userId;
     }
 
     /**
@@ -80,16 +80,12 @@ public final class ApiSecurityProviderImpl implements SecurityProvider {
      */
     @Override
     public String getUser() {
-        if (user != null) {
-            return user.getEmailAddress();
-        } else {
-            return null;
-        }
+        return userName;
     }
 
     /**
      * Gets user.
-     * @return the user or null.
+     * @return the user or null if user is anonymous or was resolved from cached access token.
      */
     public User getUserObject() {
         return user;
@@ -147,9 +143,25 @@ public final class ApiSecurityProviderImpl implements SecurityProvider {
     public void setUser(final User user, final List<Group> groups) {
         setUser(user);
         setGroups(groups);
-        final List<String> roles = new ArrayList<String>();
+        final List<String> groupNames = new ArrayList<String>();
         for (final Group group : groups) {
-            final String roleNameCandidate = group.getName().toLowerCase();
+            groupNames.add(group.getName());
+        }
+        setUser(user.getUserId(), user.getEmailAddress(), groupNames);
+    }
+
+    /**
+     * Sets the user by identity resolved from cached access token.
+     * @param userId the user ID
+     * @param userName the user name
+     * @param groupNames the names of the user groups
+     */
+    public void setUser(final String userId, final String userName, final List<String> groupNames) {
+        this.userId = userId;
+        this.userName = userName;
+        final List<String> roles = new ArrayList<String>();
+        for (final String groupName : groupNames) {
+            final String roleNameCandidate = groupName.toLowerCase();
             if (availableRoles.contains(roleNameCandidate)) {
                 roles.add(roleNameCandidate);
             }
@@ -1,8 +1,12 @@
 package org.bubblecloud.ilves.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.googlecode.jsonrpc4j.JsonRpcServer;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.AccessTokenCache;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
@@ -10,6 +14,7 @@ import org.bubblecloud.ilves.model.UserSession;
 import org.bubblecloud.ilves.security.*;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
 import org.bubblecloud.ilves.site.SiteContext;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.bubblecloud.ilves.util.WebSecurityUtil;
 import org.eclipse.jetty.http.HttpStatus;
 
@@ -19,32 +24,86 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationHandler;
+import java.io.OutputStream;
 import java.lang.reflect.Proxy;
 import java.security.AccessControlException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * The API servlet.
+ * The API servlet. Supports JSON-RPC 2.0 batch requests. Batch is authenticated once and
+ * calls of the batch are executed in parallel on bounded executor, each with its own
+ * entity managers, if batch threads have been configured. Site contexts of the calls are
+ * constructed on the request thread as servlet request may not be accessed from other threads.
  *
  * @author Tommi S.E. Laukkanen
  */
 public class ApiServlet extends HttpServlet {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ApiServlet.class);
-    /** The object mapper. */
-    private LinkedList<ObjectMapper> objectMapperPool = new LinkedList<ObjectMapper>();
-    /** The thread safe API objects. */
-    private static Map<Class, Class<? extends ApiImplementation>> apis = new HashMap<>();
+    /** The object mapper shared by all APIs. Object mapper is thread safe once configured. */
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    /** The maximum size of call buffer kept for reuse by thread. */
+    private static final int MAX_REUSED_CALL_BUFFER_SIZE = 1024 * 1024;
+    /** The reusable call response buffers of threads. */
+    private static final ThreadLocal<ByteArrayOutputStream> callBuffers = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(8192);
+        }
+    };
+    /** The API routes by lower case simple name of API interface. */
+    private static volatile Map<String, ApiRoute> routes = Collections.emptyMap();
+    /** The batch call executor or null if batch calls are executed sequentially. */
+    private ThreadPoolExecutor batchExecutor;
+    /** The maximum number of calls in batch. */
+    private int batchMaxSize;
+
+    @Override
+    public void init() throws ServletException {
+        final int batchThreads = Integer.parseInt(PropertiesUtil.getProperty("site", "api-batch-threads"));
+        final int batchQueueSize = Integer.parseInt(PropertiesUtil.getProperty("site", "api-batch-queue-size"));
+        batchMaxSize = Integer.parseInt(PropertiesUtil.getProperty("site", "api-batch-max-size"));
+        if (batchThreads > 1) {
+            batchExecutor = new ThreadPoolExecutor(batchThreads, batchThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(batchQueueSize), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ilves-api-batch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            batchExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
 
     /**
-     * Add API object to the API servlet class.
+     * Add API object to the API servlet class. Proxy, access grants and JSON-RPC server
+     * of the API are constructed once here and shared by all calls.
      * @param apiInterface the API interface
      * @param apiImplementation the API implementation
      */
-    public static void addApi(final Class apiInterface, final Class<? extends ApiImplementation> apiImplementation) {
-        apis.put(apiInterface, apiImplementation);
+    public static synchronized void addApi(final Class apiInterface, final Class<? extends ApiImplementation> apiImplementation) {
+        final Map<String, ApiRoute> newRoutes = new HashMap<String, ApiRoute>(routes);
+        newRoutes.put(apiInterface.getSimpleName().toLowerCase(), new ApiRoute(apiInterface, apiImplementation));
+        routes = Collections.unmodifiableMap(newRoutes);
     }
 
     /**
@@ -62,6 +121,13 @@ public class ApiServlet extends HttpServlet {
             uri = uri.substring(0, uri.length() - 1);
         }
 
+        final ApiRoute route = routes.get(uri.substring(uri.lastIndexOf('/') + 1));
+        if (route == null) {
+            LOGGER.warn("API not found for URI: " + uri);
+            response.setStatus(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+
         try {
             // The entity managet factory.
             final EntityManagerFactory entityManagerFactory = DefaultSiteUI.getEntityManagerFactory();
@@ -78,60 +144,40 @@ public class ApiServlet extends HttpServlet {
             if (accessTokenHeaderValue != null && accessTokenHeaderValue.startsWith("Bearer ")) {
                 final char[] accessToken = accessTokenHeaderValue.substring(7).toCharArray();
                 final String accessTokenHash = SecurityUtil.getSecretHash(accessToken);
-                final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager, accessTokenHash);
-                if (userSession != null) {
-                    final long sessionAgeMillis = new Date().getTime() - userSession.getCreated().getTime();
-                    if (sessionAgeMillis < SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS) {
-                        final User user = userSession.getUser();
-                        final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
-                        securityProvider.setUser(user, groups);
+                final AccessTokenCache.AccessToken cachedAccessToken = AccessTokenCache.get(accessTokenHash, company);
+                if (cachedAccessToken != null) {
+                    securityProvider.setUser(cachedAccessToken.getUserId(), cachedAccessToken.getUserName(),
+                            cachedAccessToken.getGroupNames());
+                } else {
+                    final long[] loadTicket = AccessTokenCache.beginLoad(company);
+                    final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager, accessTokenHash);
+                    if (userSession != null) {
+                        final long sessionAgeMillis = new Date().getTime() - userSession.getCreated().getTime();
+                        if (sessionAgeMillis < SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS) {
+                            final User user = userSession.getUser();
+                            final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
+                            AccessTokenCache.put(loadTicket, accessTokenHash, company, user, groups,
+                                    userSession.getCreated().getTime());
+                            securityProvider.setUser(user, groups);
+                        }
                     }
                 }
             }
 
             // The context.
-            final SiteContext context = new SiteContext(entityManager, auditEntityManager, request, securityProvider);
-            context.putObject(EntityManager.class, entityManager);
-            context.putObject(EntityManagerFactory.class, entityManagerFactory);
-            context.putObject(Company.class, company);
-
-            Class apiInterface = null;
-            ApiImplementation apiImplementation = null;
-            for (final Class apiCandidate : apis.keySet()) {
-                final String apikey = apiCandidate.getSimpleName().toLowerCase();
-                if (uri.endsWith(apikey)) {
-                    apiInterface = apiCandidate;
-                    apiImplementation = apis.get(apiCandidate).newInstance();
-                    break;
-                }
-            }
-            if (apiInterface == null) {
-                LOGGER.warn("API not found for URI: " + uri);
-                response.setStatus(HttpStatus.NOT_FOUND_404);
-                return;
-            }
-
-            apiImplementation.setContext(context);
-
-            ObjectMapper objectMapper;
-            synchronized (objectMapperPool) {
-                if (objectMapperPool.size() == 0) {
-                    objectMapperPool.push(new ObjectMapper());
-                }
-                objectMapper = objectMapperPool.pop();
-            }
+            final SiteContext context = createContext(entityManagerFactory, entityManager, auditEntityManager,
+                    request, securityProvider, company);
 
-            final ClassLoader classLoader = this.getClass().getClassLoader();
-            final Class[] interfaces = new Class[] {apiInterface};
-            final InvocationHandler invocationHandler = new ApiInvocationHandler(context, apiImplementation);
-            final JsonRpcServer jsonRpcServer = new JsonRpcServer(objectMapper, Proxy.newProxyInstance(classLoader, interfaces, invocationHandler));
+            final JsonNode requestNode = OBJECT_MAPPER.readTree(request.getInputStream());
+            response.setContentType(JsonRpcServer.JSONRPC_RESPONSE_CONTENT_TYPE);
             final long startTimeMillis = System.currentTimeMillis();
-            jsonRpcServer.handle(request, response);
-            LOGGER.trace("RPC CALL time: " + (System.currentTimeMillis() - startTimeMillis) + " ms");
-
-            synchronized (objectMapperPool) {
-                objectMapperPool.push(objectMapper);
+            if (requestNode instanceof ArrayNode) {
+                handleBatch(route, (ArrayNode) requestNode, context, request, securityProvider,
+                        response.getOutputStream());
+            } else {
+                handleCall(route, requestNode, context, response.getOutputStream());
             }
+            LOGGER.trace("RPC CALL time: " + (System.currentTimeMillis() - startTimeMillis) + " ms");
 
         } catch (final IllegalAccessError e) {
             LOGGER.warn("Access denied: " + request.getRequestURI() + ": " + e.getMessage());
@@ -145,4 +191,200 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Creates site context for API call.
+     * @param entityManagerFactory the entity manager factory
+     * @param entityManager the entity manager
+     * @param auditEntityManager the audit entity manager
+     * @param request the request
+     * @param securityProvider the security provider
+     * @param company the company
+     * @return the site context
+     */
+    private static SiteContext createContext(final EntityManagerFactory entityManagerFactory,
+                                             final EntityManager entityManager,
+                                             final EntityManager auditEntityManager,
+                                             final HttpServletRequest request,
+                                             final ApiSecurityProviderImpl securityProvider,
+                                             final Company company) {
+        final SiteContext context = new SiteContext(entityManager, auditEntityManager, request, securityProvider);
+        context.putObject(EntityManager.class, entityManager);
+        context.putObject(EntityManagerFactory.class, entityManagerFactory);
+        context.putObject(Company.class, company);
+        return context;
+    }
+
+    /**
+     * Handles single JSON-RPC call with new API implementation instance.
+     * @param route the API route
+     * @param callNode the call
+     * @param context the site context
+     * @param outputStream the output stream to write response to
+     * @throws Exception if exception occurs during processing
+     */
+    private static void handleCall(final ApiRoute route, final JsonNode callNode, final SiteContext context,
+                                   final OutputStream outputStream) throws Exception {
+        final ApiImplementation apiImplementation = route.apiImplementation.newInstance();
+        apiImplementation.setContext(context);
+
+        ApiInvocationHandler.begin(context, apiImplementation);
+        try {
+            route.jsonRpcServer.handleNode(callNode, outputStream);
+        } finally {
+            ApiInvocationHandler.end();
+        }
+    }
+
+    /**
+     * Handles JSON-RPC batch. Calls are executed in parallel with own entity managers if batch
+     * executor is available and otherwise sequentially with the request context. Responses are
+     * written in call order and notifications produce no response. Empty batches and batches
+     * exceeding maximum batch size are rejected as invalid requests.
+     * @param route the API route
+     * @param batch the batch
+     * @param context the site context of the request
+     * @param request the request
+     * @param securityProvider the security provider of the request
+     * @param outputStream the output stream to write responses to
+     * @throws IOException if IO exception occurs during processing
+     */
+    private void handleBatch(final ApiRoute route, final ArrayNode batch, final SiteContext context,
+                             final HttpServletRequest request, final ApiSecurityProviderImpl securityProvider,
+                             final OutputStream outputStream) throws IOException {
+        if (batch.size() == 0 || batch.size() > batchMaxSize) {
+            OBJECT_MAPPER.writeValue(outputStream, createErrorResponse(null, -32600, "Invalid Request"));
+            return;
+        }
+
+        final List<byte[]> responses = new ArrayList<byte[]>(batch.size());
+        final ThreadPoolExecutor executor = batchExecutor;
+        if (executor == null || batch.size() == 1) {
+            for (final JsonNode callNode : batch) {
+                responses.add(handleBatchCall(route, callNode, context));
+            }
+        } else {
+            final EntityManagerFactory entityManagerFactory = context.getObject(EntityManagerFactory.class);
+            final Company company = context.getObject(Company.class);
+            final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(batch.size());
+            for (final JsonNode callNode : batch) {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                final EntityManager auditEntityManager = entityManagerFactory.createEntityManager();
+                try {
+                    final SiteContext callContext = createContext(entityManagerFactory, entityManager,
+                            auditEntityManager, request, securityProvider, company);
+                    futures.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            try {
+                                return handleBatchCall(route, callNode, callContext);
+                            } finally {
+                                entityManager.close();
+                                auditEntityManager.close();
+                            }
+                        }
+                    }));
+                } catch (final RuntimeException e) {
+                    entityManager.close();
+                    auditEntityManager.close();
+                    throw e;
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    responses.add(futures.get(i).get());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for batch calls.", e);
+                } catch (final ExecutionException e) {
+                    LOGGER.error("Error processing batch call.", e.getCause());
+                    responses.add(OBJECT_MAPPER.writeValueAsBytes(
+                            createErrorResponse(batch.get(i).get("id"), -32603, "Internal error")));
+                }
+            }
+        }
+
+        boolean first = true;
+        for (final byte[] callResponse : responses) {
+            if (callResponse.length == 0) {
+                continue;
+            }
+            outputStream.write(first ? '[' : ',');
+            outputStream.write(callResponse);
+            first = false;
+        }
+        if (!first) {
+            outputStream.write(']');
+        }
+    }
+
+    /**
+     * Handles call of JSON-RPC batch.
+     * @param route the API route
+     * @param callNode the call
+     * @param context the site context
+     * @return the response or empty array if call was notification
+     * @throws IOException if IO exception occurs during processing
+     */
+    private static byte[] handleBatchCall(final ApiRoute route, final JsonNode callNode, final SiteContext context)
+            throws IOException {
+        final ByteArrayOutputStream outputStream = callBuffers.get();
+        outputStream.reset();
+        try {
+            handleCall(route, callNode, context, outputStream);
+            if (callNode.isObject() && !callNode.has("id")) {
+                return new byte[0];
+            }
+            return outputStream.toByteArray();
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            LOGGER.error("Error processing batch call.", e);
+            return OBJECT_MAPPER.writeValueAsBytes(
+                    createErrorResponse(callNode.get("id"), -32603, "Internal error"));
+        } finally {
+            if (outputStream.size() > MAX_REUSED_CALL_BUFFER_SIZE) {
+                callBuffers.remove();
+            }
+        }
+    }
+
+    /**
+     * Creates JSON-RPC 2.0 error response.
+     * @param id the call ID or null
+     * @param code the error code
+     * @param message the error message
+     * @return the error response
+     */
+    private static ObjectNode createErrorResponse(final JsonNode id, final int code, final String message) {
+        final ObjectNode response = OBJECT_MAPPER.createObjectNode();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        final ObjectNode error = response.putObject("error");
+        error.put("code", code);
+        error.put("message", message);
+        return response;
+    }
+
+    /**
+     * The API route.
+     */
+    private static final class ApiRoute {
+        /** The API implementation class. */
+        private final Class<? extends ApiImplementation> apiImplementation;
+        /** The JSON-RPC server of the API. */
+        private final JsonRpcServer jsonRpcServer;
+
+        /**
+         * Constructor which constructs shared proxy and JSON-RPC server for the API.
+         * @param apiInterface the API interface
+         * @param apiImplementation the API implementation class
+         */
+        private ApiRoute(final Class apiInterface, final Class<? extends ApiImplementation> apiImplementation) {
+            this.apiImplementation = apiImplementation;
+            final Object proxy = Proxy.newProxyInstance(ApiServlet.class.getClassLoader(),
+                    new Class[] {apiInterface}, new ApiInvocationHandler(apiInterface));
+            this.jsonRpcServer = new ApiJsonRpcServer(OBJECT_MAPPER, proxy, apiInterface);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.component.validator;
+
+import com.vaadin.data.Validator;
+import org.bubblecloud.ilves.security.CidrTrie;
+
+/**
+ * Validator for comma separated CIDR lists.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class CidrListValidator implements Validator {
+    /** The default serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void validate(final Object value) throws InvalidValueException {
+        if (value == null) {
+            return;
+        }
+        try {
+            new CidrTrie((String) value);
+        } catch (final IllegalArgumentException e) {
+            throw new InvalidValueException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.audit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.AuditLogExporter;
+import org.bubblecloud.ilves.security.AuditService;
+import org.bubblecloud.ilves.security.DefaultRoles;
+import org.bubblecloud.ilves.security.SecurityContext;
+import org.bubblecloud.ilves.site.DefaultSiteUI;
+import org.bubblecloud.ilves.util.WebSecurityUtil;
+import org.joda.time.format.ISODateTimeFormat;
+
+import javax.persistence.EntityManager;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Servlet for exporting audit log as gzip compressed CSV or newline delimited JSON.
+ * Only administrators are allowed to export. Parameters start and end define the
+ * exported time range as ISO 8601 date or date time. Parameters userId and dataType
+ * are optional filters and format is either csv (default) or ndjson.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogExportServlet extends HttpServlet {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogExportServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        WebSecurityUtil.setSecurityHeaders(resp);
+
+        // Find user and roles from session without creating session for anonymous requests.
+        final HttpSession session = req.getSession(false);
+        if (session == null) {
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        final User user = (User) session.getAttribute("user");
+        final List<String> roles = (List<String>) session.getAttribute("roles");
+        if (user == null || roles == null || !roles.contains(DefaultRoles.ADMINISTRATOR)) {
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        if (StringUtils.isEmpty(req.getParameter("start")) || StringUtils.isEmpty(req.getParameter("end"))) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final Date start;
+        final Date end;
+        final AuditLogExporter.Format format;
+        try {
+            start = ISODateTimeFormat.dateTimeParser().parseDateTime(req.getParameter("start")).toDate();
+            end = ISODateTimeFormat.dateTimeParser().parseDateTime(req.getParameter("end")).toDate();
+            format = AuditLogExporter.Format.valueOf(
+                    StringUtils.defaultIfEmpty(req.getParameter("format"), "csv").toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final String userId = StringUtils.defaultIfEmpty(req.getParameter("userId"), null);
+        final String dataType = StringUtils.defaultIfEmpty(req.getParameter("dataType"), null);
+
+        final EntityManager entityManager = DefaultSiteUI.getEntityManagerFactory().createEntityManager();
+        try {
+            final SecurityContext securityContext = new SecurityContext(entityManager, entityManager, req, user, roles);
+            AuditService.log(securityContext, "audit log export", "AuditLogEntry", null,
+                    format + " " + req.getParameter("start") + " - " + req.getParameter("end")
+                            + (userId != null ? " userId=" + userId : "")
+                            + (dataType != null ? " dataType=" + dataType : ""));
+
+            final String fileName = "audit-log." + format.name().toLowerCase() + ".gz";
+            resp.setContentType("application/gzip");
+            resp.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+            resp.setStatus(HttpServletResponse.SC_OK);
+
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(resp.getOutputStream(), 8192), "UTF-8"), 8192);
+            try {
+                final long count = AuditLogExporter.export(entityManager, start, end, userId, dataType,
+                        format, writer);
+                LOGGER.info("Exported " + count + " audit log entries for: " + user.getEmailAddress());
+            } finally {
+                writer.close();
+            }
+        } catch (final SecurityException e) {
+            LOGGER.error("Error exporting audit log.", e);
+            if (!resp.isCommitted()) {
+                resp.reset();
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+}
@@ -31,8 +31,6 @@ import org.bubblecloud.ilves.util.PropertiesUtil;
 
 import javax.persistence.EntityManager;
 import java.io.*;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 
 /**
  * Asset edit flowlet.
@@ -57,7 +55,8 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
     /** The discard button. */
     private Button discardButton;
     private Button editPrivilegesButton;
-    private File temporaryFile;
+    /** The upload in progress or waiting for save. */
+    private AssetUpload assetUpload;
 
     @Override
     public String getFlowletKey() {
@@ -94,31 +93,41 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
         final Upload upload = new Upload(getSite().localize("field-file-upload"), new Upload.Receiver() {
             @Override
             public OutputStream receiveUpload(String filename, String mimeType) {
+                discardUpload();
                 try {
-                    temporaryFile = File.createTempFile(entity.getAssetId(), ".upload");
-                    return new FileOutputStream(temporaryFile, false);
+                    // Asset size is stored as integer so larger uploads are rejected regardless of configuration.
+                    final long maximumSize = Math.min(Integer.MAX_VALUE,
+                            Long.parseLong(PropertiesUtil.getProperty("site", "asset-maximum-size")));
+                    assetUpload = new AssetUpload(AssetCache.getInstance().newSpool(), maximumSize);
+                    return assetUpload;
                 } catch (IOException e) {
-                    throw new SiteException("Unable to create temporary file for upload.", e);
+                    throw new SiteException("Unable to create spool file for upload.", e);
                 }
             }
         });
         upload.setButtonCaption(getSite().localize("button-start-upload"));
-        upload.addSucceededListener(new Upload.SucceededListener() {
+        upload.addFailedListener(new Upload.FailedListener() {
             @Override
-            public void uploadSucceeded(Upload.SucceededEvent event) {
-                if (event.getLength() == 0) {
-                    return;
-                }
-                if (temporaryFile.length() > Long.parseLong(PropertiesUtil.getProperty("site", "asset-maximum-size"))) {
+            public void uploadFailed(Upload.FailedEvent event) {
+                if (assetUpload != null && assetUpload.isTooLarge()) {
                     Notification.show(getSite().localize("message-file-too-large"),
                             Notification.Type.ERROR_MESSAGE);
+                }
+                discardUpload();
+            }
+        });
+        upload.addSucceededListener(new Upload.SucceededListener() {
+            @Override
+            public void uploadSucceeded(Upload.SucceededEvent event) {
+                if (assetUpload == null || assetUpload.getLength() == 0) {
+                    discardUpload();
                     return;
                 }
 
                 entity.setName(event.getFilename().substring(0, event.getFilename().lastIndexOf('.')));
                 entity.setExtension(event.getFilename().substring(event.getFilename().lastIndexOf('.') + 1));
-                entity.setType(event.getMIMEType());
-                entity.setSize((int) event.getLength());
+                entity.setType(assetUpload.resolveType(event.getMIMEType()));
+                entity.setSize((int) assetUpload.getLength());
 
                 assetEditor.setItem(new BeanItem<Asset>(entity), assetEditor.isNewItem());
                 save();
@@ -157,10 +166,7 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
             @Override
             public void buttonClick(final ClickEvent event) {
                 assetEditor.discard();
-                if (temporaryFile != null) {
-                    temporaryFile.deleteOnExit();
-                    temporaryFile = null;
-                }
+                discardUpload();
             }
         });
 
@@ -179,21 +185,29 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
     private void save() {
         assetEditor.commit();
         try {
+            if (assetUpload != null) {
+                entity.setContentHash(assetUpload.getSpool().getHash());
+            }
             ContentDao.saveAsset(entityManager, entity);
 
-            if (temporaryFile != null) {
+            if (assetUpload != null) {
+                final AssetCache.Spool spool = assetUpload.getSpool();
                 entityManager.getTransaction().begin();
 
-                final Connection connection = entityManager.unwrap(Connection.class);
-                final FileInputStream fileInputStream = new FileInputStream(temporaryFile);
-                final PreparedStatement preparedStatement = connection.prepareStatement(
-                        "UPDATE asset SET data = ? WHERE assetid = ?");
-                preparedStatement.setBinaryStream(1, fileInputStream, (int) temporaryFile.length());
-                preparedStatement.setString(2, entity.getAssetId());
-                preparedStatement.executeUpdate();
-                preparedStatement.close();
-                fileInputStream.close();
+                final FileInputStream spoolInputStream = spool.openInputStream();
+                try {
+                    AssetStores.write(entityManager, entity, spoolInputStream, spool.getLength());
+                } finally {
+                    spoolInputStream.close();
+                }
                 entityManager.getTransaction().commit();
+
+                // Spooled content becomes disk cache entry so that first download does not read database.
+                try {
+                    spool.commit(AssetCache.getKey(entity));
+                } catch (final IOException e) {
+                    LOGGER.warn("Failed to add uploaded asset to asset cache.", e);
+                }
                 Notification.show(getSite().localize("message-file-uploaded"),
                         Notification.Type.HUMANIZED_MESSAGE);
             }
@@ -205,15 +219,22 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
             Notification.show(getSite().localize("message-duplicate-file-name"),
                     Notification.Type.ERROR_MESSAGE);
         } finally {
-            if (temporaryFile != null) {
-                temporaryFile.deleteOnExit();
-                temporaryFile = null;
-            }
+            discardUpload();
         }
 
         editPrivilegesButton.setEnabled(true);
     }
 
+    /**
+     * Discards upload and its spool file if upload has not been saved.
+     */
+    private void discardUpload() {
+        if (assetUpload != null) {
+            assetUpload.getSpool().discard();
+            assetUpload = null;
+        }
+    }
+
     /**
      * Edit an existing asset.
      * @param entity entity to be edited.
@@ -222,10 +243,7 @@ public final class AssetFlowlet extends AbstractFlowlet implements ValidatingEdi
     public void edit(final Asset entity, final boolean newEntity) {
         this.entity = entity;
 
-        if (temporaryFile != null) {
-            temporaryFile.deleteOnExit();
-            temporaryFile = null;
-        }
+        discardUpload();
         assetEditor.setItem(new BeanItem<Asset>(entity), newEntity);
         editPrivilegesButton.setEnabled(!newEntity
                 && getSite().getSecurityProvider().getRoles().contains(DefaultRoles.ADMINISTRATOR));
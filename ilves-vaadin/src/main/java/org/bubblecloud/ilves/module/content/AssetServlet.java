@@ -1,15 +1,14 @@
 package org.bubblecloud.ilves.module.content;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.CompanyResolver;
 import org.bubblecloud.ilves.cache.InMemoryCache;
 import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.model.Company;
-import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
-import org.bubblecloud.ilves.security.CompanyDao;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
 import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.eclipse.jetty.server.HttpOutput;
 
 import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
@@ -17,12 +16,25 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * Servlet for sharing assets.
@@ -33,32 +45,71 @@ public class AssetServlet extends HttpServlet {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(AssetServlet.class);
 
+    /** The client cache age in seconds. */
+    private static final int CACHE_AGE_SECONDS = 3600;
+    /** The maximum number of byte ranges served. Requests with more ranges receive full content. */
+    private static final int MAX_RANGES = 16;
+    /** The maximum length of memory mapped file region. */
+    private static final long MAX_MAPPED_REGION = 64 * 1024 * 1024;
+    /** The pattern of single byte range specification. */
+    private static final Pattern RANGE_SPEC_PATTERN = Pattern.compile("\\d+-\\d*|-\\d+");
+    /** The random for multipart boundaries. */
+    private static final Random BOUNDARY_RANDOM = new Random();
+
     private static Map<Company, InMemoryCache<String, Asset>> nameAssetCache =
             new HashMap<Company, InMemoryCache<String, Asset>>();
 
+    /** The image derivative keys generated by asset cache key. */
+    private static final InMemoryCache<String, Set<String>> derivativeKeys =
+            new InMemoryCache<String, Set<String>>(24 * 60 * 60 * 1000, 60 * 1000, 10000);
+
+    /** The image derivative generation executor. */
+    private ThreadPoolExecutor derivativeExecutor;
+    /** The maximum number of distinct image derivatives per asset. */
+    private int maxDerivativesPerAsset;
+
+    @Override
+    public void init() throws ServletException {
+        final int derivativeThreads = Integer.parseInt(
+                PropertiesUtil.getProperty("site", "asset-derivative-threads"));
+        final int derivativeQueueSize = Integer.parseInt(
+                PropertiesUtil.getProperty("site", "asset-derivative-queue-size"));
+        maxDerivativesPerAsset = Integer.parseInt(
+                PropertiesUtil.getProperty("site", "asset-derivative-max-per-asset"));
+        derivativeExecutor = new ThreadPoolExecutor(derivativeThreads, derivativeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(derivativeQueueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ilves-asset-derivatives");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        derivativeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        if (derivativeExecutor != null) {
+            derivativeExecutor.shutdown();
+            derivativeExecutor = null;
+        }
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         // Allocate entity manager.
         final EntityManager entityManager = DefaultSiteUI.getEntityManagerFactory().createEntityManager();
 
-        // Find user and groups from session or assume anonymous.
+        // Find user from session or assume anonymous.
         final User user = (User) req.getSession().getAttribute("user");
-        final List<Group> groups =  (List<Group>) req.getSession().getAttribute("groups");
 
         // Find company object either from user object, session or load from database.
         Company company =  null;
         if (user != null) {
             company = user.getOwner();
         } else {
-            company = (Company) req.getSession().getAttribute("company");
-            if (company == null) {
-                company = CompanyDao.getCompany(entityManager, req.getServerName());
-                req.getSession().setAttribute("company", company);
-            }
-            if (company == null) {
-                company = CompanyDao.getCompany(entityManager, "*");
-                req.getSession().setAttribute("company", company);
-            }
+            company = CompanyResolver.resolveCompany(entityManager, req.getServerName());
         }
 
         // Find Asset object based on name either from cache or database.
@@ -78,73 +129,396 @@ public class AssetServlet extends HttpServlet {
             return;
         }
 
-        if (!PrivilegeCache.hasPrivilege(entityManager, company, user, groups, "view", asset.getAssetId())) {
+        if (!PrivilegeCache.hasEffectivePrivilege(entityManager, company, user, "view", asset.getAssetId())) {
             resp.setStatus(401);
             return;
         }
 
-        // Load asset from file cache if exists and not modified before last modified of the asset file.
-        final String assetCachePath = PropertiesUtil.getProperty("site", "asset-cache-path");
-        final File assetCache = new File(assetCachePath);
-        if (!assetCache.exists()) {
-            assetCache.mkdir();
+        // Parse image derivative parameters. Assets which are not images are served as is.
+        ImageDerivative derivative = null;
+        if (ImageDerivative.isSupportedType(asset.getType())) {
+            try {
+                derivative = ImageDerivative.parse(req.getParameter("width"), req.getParameter("height"),
+                        req.getParameter("fit"), req.getParameter("format"), asset.getType());
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            if (derivative != null && !registerDerivative(AssetCache.getKey(asset), derivative.getKey(),
+                    maxDerivativesPerAsset)) {
+                LOGGER.warn("Maximum number of image derivatives reached, serving original asset: " + name);
+                derivative = null;
+            }
+        }
+
+        final long modifiedMillis = asset.getModified().getTime() / 1000 * 1000;
+        final String etag = derivative != null ? getEntityTag(asset, derivative.getKey()) : getEntityTag(asset);
+        setCacheHeaders(resp, etag, modifiedMillis);
+        if (isNotModified(req, etag, modifiedMillis)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
-        final String assetCacheFilePath = assetCache.getCanonicalPath() + File.separator + asset.getAssetId();
-        final File assetCacheFile = new File(assetCacheFilePath);
 
-        if (assetCacheFile.exists()) {
-            if (assetCacheFile.lastModified() < asset.getModified().getTime()) {
-                assetCacheFile.delete();
+        // Open asset from disk cache and load it from asset store on cache miss.
+        final Asset loadedAsset = asset;
+        final String key = AssetCache.getKey(asset);
+        final AssetCache.Loader loader = new AssetCache.Loader() {
+            @Override
+            public boolean load(final OutputStream outputStream) throws IOException {
+                return AssetStores.read(entityManager, loadedAsset, outputStream);
+            }
+        };
+        String contentType = asset.getType();
+        FileInputStream inputStream = null;
+        try {
+            if (derivative != null) {
+                try {
+                    inputStream = openDerivative(key, loader, derivative);
+                    contentType = derivative.getContentType();
+                } catch (final IOException e) {
+                    if (e.getCause() instanceof RejectedExecutionException) {
+                        resp.setHeader("Retry-After", "1");
+                        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        return;
+                    }
+                    LOGGER.warn("Error generating image derivative, serving original asset: " + name, e);
+                }
             }
+            if (inputStream == null) {
+                inputStream = AssetCache.getInstance().open(key, loader);
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Error reading asset from asset store.", e);
+            resp.setStatus(500);
+            return;
         }
 
-        if (!assetCacheFile.exists()) {
-            entityManager.getTransaction().begin();
+        if (inputStream != null) {
             try {
-                final Connection connection = entityManager.unwrap(Connection.class);
-                final PreparedStatement preparedStatement = connection.prepareStatement(
-                        "SELECT data FROM asset WHERE assetid = ?");
-                preparedStatement.setString(1, asset.getAssetId());
-                final ResultSet resultSet = preparedStatement.executeQuery();
-
-                if (resultSet.next()) {
-                    final InputStream inputStream = resultSet.getBinaryStream(1);
-                    final FileOutputStream outputStream = new FileOutputStream(assetCacheFile);
-                    IOUtils.copy(inputStream, outputStream);
+                sendFile(req, resp, inputStream, contentType, etag, modifiedMillis);
+            } finally {
+                inputStream.close();
+            }
+        } else {
+            resp.setStatus(500);
+        }
+
+    }
+
+    /**
+     * Opens image derivative from disk cache. On cache miss derivative is generated from
+     * original asset in derivative executor. Concurrent requests of the same derivative wait
+     * for single generation.
+     * @param key the asset cache key of original asset
+     * @param loader the loader of original asset
+     * @param derivative the derivative
+     * @return the input stream of derivative or null if original asset was not found
+     * @throws IOException if generating derivative fails or derivative executor is saturated
+     */
+    private FileInputStream openDerivative(final String key, final AssetCache.Loader loader,
+                                           final ImageDerivative derivative) throws IOException {
+        return AssetCache.getInstance().open(key + "-" + derivative.getKey(), new AssetCache.Loader() {
+            @Override
+            public boolean load(final OutputStream outputStream) throws IOException {
+                final FileInputStream inputStream = AssetCache.getInstance().open(key, loader);
+                if (inputStream == null) {
+                    return false;
+                }
+                try {
+                    final Future<?> generation = derivativeExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            derivative.generate(inputStream, outputStream);
+                            return null;
+                        }
+                    });
+                    try {
+                        generation.get();
+                    } catch (final InterruptedException e) {
+                        generation.cancel(true);
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while generating image derivative.", e);
+                    } catch (final ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        }
+                        throw new IOException("Error generating image derivative.", e.getCause());
+                    }
+                    return true;
+                } finally {
                     inputStream.close();
-                    outputStream.close();
                 }
-                resultSet.close();
-                preparedStatement.close();
+            }
+        });
+    }
 
-                entityManager.getTransaction().rollback();
-            } catch (final Exception e) {
-                LOGGER.error("Error reading asset from database.", e);
-                resp.setStatus(500);
-            } finally {
-                if (entityManager.getTransaction().isActive()) {
-                    entityManager.getTransaction().rollback();
-                }
+    /**
+     * Registers derivative of asset unless asset already has maximum number of distinct derivatives.
+     * @param key the asset cache key
+     * @param derivativeKey the derivative key
+     * @param maxDerivatives the maximum number of distinct derivatives
+     * @return true if derivative is registered
+     */
+    static boolean registerDerivative(final String key, final String derivativeKey, final int maxDerivatives) {
+        synchronized (derivativeKeys) {
+            Set<String> keys = derivativeKeys.get(key);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                derivativeKeys.put(key, keys);
+            }
+            if (keys.contains(derivativeKey)) {
+                return true;
+            }
+            if (keys.size() >= maxDerivatives) {
+                return false;
             }
+            keys.add(derivativeKey);
+            return true;
         }
+    }
 
-        if (assetCacheFile.exists()) {
-            final int cacheAgeSeconds = 3600;
-            final long expiry = System.currentTimeMillis() + cacheAgeSeconds * 1000;
-            resp.setDateHeader("Expires", expiry);
-            resp.setHeader("Cache-Control", "max-age="+ cacheAgeSeconds);
-            resp.setContentType(asset.getType());
-            resp.setContentLength(asset.getSize());
+    /**
+     * Gets strong entity tag of asset. Entity tag changes whenever asset is modified.
+     * @param asset the asset
+     * @return the entity tag
+     */
+    static String getEntityTag(final Asset asset) {
+        return "\"" + asset.getAssetId() + "-" + Long.toHexString(asset.getModified().getTime()) + "\"";
+    }
 
-            final FileInputStream inputStream = new FileInputStream(assetCacheFile);
-            IOUtils.copy(inputStream, resp.getOutputStream());
-            inputStream.close();
+    /**
+     * Gets strong entity tag of image derivative of asset.
+     * @param asset the asset
+     * @param derivativeKey the derivative key
+     * @return the entity tag
+     */
+    static String getEntityTag(final Asset asset, final String derivativeKey) {
+        return "\"" + asset.getAssetId() + "-" + Long.toHexString(asset.getModified().getTime())
+                + "-" + derivativeKey + "\"";
+    }
+
+    /**
+     * Sets validator and caching headers.
+     * @param resp the response
+     * @param etag the entity tag
+     * @param modifiedMillis the last modified time in milliseconds
+     */
+    private static void setCacheHeaders(final HttpServletResponse resp, final String etag, final long modifiedMillis) {
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", modifiedMillis);
+        resp.setDateHeader("Expires", System.currentTimeMillis() + CACHE_AGE_SECONDS * 1000L);
+        resp.setHeader("Cache-Control", "max-age=" + CACHE_AGE_SECONDS);
+    }
+
+    /**
+     * Checks whether client has current version of asset. If-None-Match takes precedence
+     * over If-Modified-Since.
+     * @param req the request
+     * @param etag the entity tag
+     * @param modifiedMillis the last modified time in milliseconds
+     * @return true if not modified response should be sent
+     */
+    static boolean isNotModified(final HttpServletRequest req, final String etag, final long modifiedMillis) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEntityTag(ifNoneMatch, etag);
+        }
+        final long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+        return ifModifiedSince >= 0 && modifiedMillis <= ifModifiedSince;
+    }
+
+    /**
+     * Checks whether comma separated entity tag list contains entity tag or wildcard.
+     * Weak entity tags are compared by their opaque value.
+     * @param entityTags the entity tag list
+     * @param etag the entity tag
+     * @return true if list matches
+     */
+    private static boolean matchesEntityTag(final String entityTags, final String etag) {
+        for (final String item : entityTags.split(",")) {
+            final String entityTag = item.trim();
+            if (entityTag.equals("*") || entityTag.equals(etag)
+                    || entityTag.startsWith("W/") && entityTag.substring(2).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            resp.setStatus(200);
+    /**
+     * Gets date header value.
+     * @param req the request
+     * @param name the header name
+     * @return the date in milliseconds or -1 if header is missing or invalid
+     */
+    private static long getDateHeader(final HttpServletRequest req, final String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (final IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends file as full content or as single or multiple byte ranges.
+     * @param req the request
+     * @param resp the response
+     * @param inputStream the file input stream
+     * @param contentType the content type
+     * @param etag the entity tag
+     * @param modifiedMillis the last modified time in milliseconds
+     * @throws IOException if IO exception occurs
+     */
+    private static void sendFile(final HttpServletRequest req, final HttpServletResponse resp,
+                                 final FileInputStream inputStream, final String contentType, final String etag,
+                                 final long modifiedMillis) throws IOException {
+        final FileChannel channel = inputStream.getChannel();
+        final long length = channel.size();
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        List<long[]> ranges = null;
+        final String range = req.getHeader("Range");
+        if (range != null && isIfRangeSatisfied(req, etag, modifiedMillis)) {
+            ranges = parseRanges(range, length);
+        }
+
+        if (ranges == null) {
+            resp.setContentType(contentType);
+            resp.setHeader("Content-Length", Long.toString(length));
+            resp.setStatus(HttpServletResponse.SC_OK);
+            writeRegion(channel, 0, length, resp.getOutputStream());
+        } else if (ranges.isEmpty()) {
+            resp.setHeader("Content-Range", "bytes */" + length);
+            resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else if (ranges.size() == 1) {
+            final long[] byteRange = ranges.get(0);
+            resp.setContentType(contentType);
+            resp.setHeader("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length);
+            resp.setHeader("Content-Length", Long.toString(byteRange[1] - byteRange[0] + 1));
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            writeRegion(channel, byteRange[0], byteRange[1] - byteRange[0] + 1, resp.getOutputStream());
         } else {
-            resp.setStatus(500);
+            final String boundary = "ilves-" + Long.toHexString(BOUNDARY_RANDOM.nextLong());
+            final List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+            final byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+            long contentLength = closing.length;
+            for (final long[] byteRange : ranges) {
+                final byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                        + "\r\nContent-Range: bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length
+                        + "\r\n\r\n").getBytes("US-ASCII");
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + byteRange[1] - byteRange[0] + 1;
+            }
+            resp.setContentType("multipart/byteranges; boundary=" + boundary);
+            resp.setHeader("Content-Length", Long.toString(contentLength));
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            final OutputStream outputStream = resp.getOutputStream();
+            for (int i = 0; i < ranges.size(); i++) {
+                final long[] byteRange = ranges.get(i);
+                outputStream.write(partHeaders.get(i));
+                writeRegion(channel, byteRange[0], byteRange[1] - byteRange[0] + 1, outputStream);
+            }
+            outputStream.write(closing);
+        }
+    }
+
+    /**
+     * Checks whether If-Range precondition allows partial response.
+     * @param req the request
+     * @param etag the entity tag
+     * @param modifiedMillis the last modified time in milliseconds
+     * @return true if If-Range header is missing or matches current version
+     */
+    private static boolean isIfRangeSatisfied(final HttpServletRequest req, final String etag,
+                                              final long modifiedMillis) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(etag);
+        }
+        return getDateHeader(req, "If-Range") == modifiedMillis;
+    }
+
+    /**
+     * Parses byte ranges of Range header.
+     * @param range the Range header value
+     * @param length the content length
+     * @return the inclusive start and end offsets of satisfiable ranges, empty list if no range
+     * is satisfiable or null if header is invalid or should be ignored and full content sent
+     */
+    static List<long[]> parseRanges(final String range, final long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        final String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        for (final String item : specs) {
+            final String spec = item.trim();
+            if (!RANGE_SPEC_PATTERN.matcher(spec).matches()) {
+                return null;
+            }
+            final int separator = spec.indexOf('-');
+            final long start;
+            final long end;
+            try {
+                if (separator == 0) {
+                    start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                    end = length - 1;
+                } else if (separator == spec.length() - 1) {
+                    start = Long.parseLong(spec.substring(0, separator));
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, separator));
+                    final long last = Long.parseLong(spec.substring(separator + 1));
+                    if (last < start) {
+                        return null;
+                    }
+                    end = Math.min(length - 1, last);
+                }
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+            if (start < length && start <= end) {
+                ranges.add(new long[] {start, end});
+            }
         }
+        return ranges;
+    }
 
+    /**
+     * Writes file region to output stream. Jetty output writes memory mapped region without
+     * copying through heap and other streams receive region with channel transfer.
+     * @param channel the file channel
+     * @param position the region start position
+     * @param count the region length
+     * @param outputStream the output stream
+     * @throws IOException if IO exception occurs
+     */
+    private static void writeRegion(final FileChannel channel, final long position, final long count,
+                                    final OutputStream outputStream) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (outputStream instanceof HttpOutput) {
+            long offset = 0;
+            while (offset < count) {
+                final long regionLength = Math.min(count - offset, MAX_MAPPED_REGION);
+                ((HttpOutput) outputStream).write(
+                        channel.map(FileChannel.MapMode.READ_ONLY, position + offset, regionLength));
+                offset += regionLength;
+            }
+        } else {
+            final WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+            long offset = 0;
+            while (offset < count) {
+                offset += channel.transferTo(position + offset, count - offset, outputChannel);
+            }
+        }
     }
 
 }
@@ -21,10 +21,8 @@ import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.component.grid.FieldSetDescriptor;
 import org.bubblecloud.ilves.component.grid.FieldSetDescriptorRegister;
 import org.bubblecloud.ilves.model.Company;
-import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.security.DefaultRoles;
-import org.bubblecloud.ilves.security.UserDao;
 import org.bubblecloud.ilves.site.*;
 import org.bubblecloud.ilves.site.view.valo.DefaultValoView;
 
@@ -119,14 +117,6 @@ public class ContentModule implements SiteModule {
         final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
         final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
         final User user = ((SecurityProviderSessionImpl) Site.getCurrent().getSecurityProvider()).getUserFromSession();
-        final List<Group> groups;
-        if (user == null) {
-            groups = new ArrayList<Group>();
-            groups.add(UserDao.getGroup(entityManager, company, "anonymous"));
-        } else {
-            groups = UserDao.getUserGroups(entityManager, company, user);
-        }
-
 
         final List<Content> contents = ContentDao.getContens(entityManager, company);
         final LinkedList<Content> queue = new LinkedList<Content>();
@@ -160,33 +150,24 @@ public class ContentModule implements SiteModule {
         }
 
 
+        // Resolve privileges for all contents at once.
+        final List<String> contentIds = new ArrayList<String>();
+        for (final Content content : ordered) {
+            contentIds.add(content.getContentId());
+        }
+        final Set<String> viewableContentIds = new HashSet<String>(
+                PrivilegeCache.filterPermitted(entityManager, company, user, "view", contentIds));
+        final Set<String> editableContentIds = new HashSet<String>(
+                PrivilegeCache.filterPermitted(entityManager, company, user, "edit", contentIds));
+
         final NavigationVersion navigationVersion = dynamicSiteDescriptor.getNavigation().getProductionVersion();
 
         for (final Content content : ordered) {
-            boolean viewPrivilege = PrivilegeCache.hasPrivilege(entityManager, company,
-                    user, "view", content.getContentId());
-            if (!viewPrivilege) {
-                for (final Group group : groups) {
-                    if (PrivilegeCache.hasPrivilege(entityManager, company, group, "view", content.getContentId())) {
-                        viewPrivilege = true;
-                        break;
-                    }
-                }
-            }
-
-            if (!viewPrivilege) {
+            if (!viewableContentIds.contains(content.getContentId())) {
                 continue;
             }
 
-            boolean editPrivilege = UserDao.hasUserPrivilege(entityManager, user, "edit", content.getContentId());
-            if (!editPrivilege) {
-                for (final Group group : groups) {
-                    if (UserDao.hasGroupPrivilege(entityManager, group, "edit", content.getContentId())) {
-                        editPrivilege = true;
-                        break;
-                    }
-                }
-            }
+            final boolean editPrivilege = editableContentIds.contains(content.getContentId());
 
             final String page = content.getPage();
             if (page == null) {
@@ -217,11 +198,11 @@ public class ContentModule implements SiteModule {
             final ViewDescriptor viewDescriptor = new ViewDescriptor(page, title, DefaultValoView.class);
             viewDescriptor.getProductionVersion().setDynamic(true);
             if (editPrivilege) {
-                viewDescriptor.setViewletClass("content", RenderFlow.class, content);
+                viewDescriptor.setViewletClass("content", RenderFlow.class, content.getContentId());
             } else {
                 viewDescriptor.setViewletClass("content", RenderViewlet.class, markup);
             }
-            dynamicSiteDescriptor.getViewDescriptors().add(viewDescriptor);
+            dynamicSiteDescriptor.addViewDescriptor(viewDescriptor);
         }
 
     }
@@ -143,6 +143,8 @@ public final class ContentsFlowlet extends AbstractFlowlet {
                 }
                 entityContainer.removeItem(entityGrid.getSelectedItemId());
                 entityContainer.commit();
+                final Company company = getSite().getSiteContext().getObject(Company.class);
+                ContentDao.incrementContentRevision(company);
             }
         });
     }
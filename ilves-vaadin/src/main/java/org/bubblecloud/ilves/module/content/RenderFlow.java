@@ -17,8 +17,12 @@ package org.bubblecloud.ilves.module.content;
 
 import org.bubblecloud.ilves.component.flow.AbstractFlowViewlet;
 import org.bubblecloud.ilves.component.flow.Flowlet;
+import org.bubblecloud.ilves.exception.SiteException;
+import org.bubblecloud.ilves.site.Site;
 import org.bubblecloud.ilves.ui.user.privilege.PrivilegesFlowlet;
 
+import javax.persistence.EntityManager;
+
 /**
  * @author Tommi S.E. Laukkanen
  */
@@ -31,7 +35,14 @@ public final class RenderFlow extends AbstractFlowViewlet {
 
     @Override
     protected void addFlowlets() {
-        final Flowlet markdownFlowlet = new RenderFlowlet((Content) getViewletDescriptor().getConfiguration());
+        // Content is loaded per UI as viewlet descriptor is shared between UIs and contains only content ID.
+        final String contentId = (String) getViewletDescriptor().getConfiguration();
+        final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
+        final Content content = entityManager.find(Content.class, contentId);
+        if (content == null) {
+            throw new SiteException("Content not found: " + contentId);
+        }
+        final Flowlet markdownFlowlet = new RenderFlowlet(content);
         addFlowlet(markdownFlowlet);
         final Flowlet contentFlowlet = new ContentFlowlet();
         addFlowlet(contentFlowlet);
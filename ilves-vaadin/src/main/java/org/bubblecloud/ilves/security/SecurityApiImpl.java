@@ -1,6 +1,5 @@
 package org.bubblecloud.ilves.security;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.api.ApiImplementation;
 import org.bubblecloud.ilves.api.apis.RequestAccessTokenResult;
@@ -9,11 +8,8 @@ import org.bubblecloud.ilves.model.*;
 import org.bubblecloud.ilves.module.customer.CustomerModule;
 import org.bubblecloud.ilves.site.SiteContext;
 import org.bubblecloud.ilves.site.SiteModuleManager;
-import org.bubblecloud.ilves.util.StringUtil;
 
 import javax.persistence.EntityManager;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.List;
 
@@ -89,6 +85,7 @@ public class SecurityApiImpl implements SecurityApi, ApiImplementation {
         final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager, accessTokenHash);
 
         if (userSession != null) {
+            // Removal invalidates cached access token after the session row has been deleted.
             SecurityService.removeUserSession(entityManager, userSession);
         }
 
@@ -111,15 +108,7 @@ public class SecurityApiImpl implements SecurityApi, ApiImplementation {
             final User newUser = new User(company, firstName, lastName, emailAddress, phoneNumber, "");
             UserDao.addUser(entityManager, newUser, UserDao.getGroup(entityManager, company, "user"));
 
-            final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((newUser.getUserId() + ":").toCharArray(), password.toCharArray()));
-            final MessageDigest md;
-            try {
-                md = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new SecurityException(e);
-            }
-            final byte[] passwordAndSaltDigest = md.digest(passwordAndSaltBytes);
-            newUser.setPasswordHash(StringUtil.toHexString(passwordAndSaltDigest));
+            newUser.setPasswordHash(PasswordHashing.hash(newUser, password.toCharArray()));
             UserDao.updateUser(entityManager, newUser);
 
             if (SiteModuleManager.isModuleInitialized(CustomerModule.class)) {
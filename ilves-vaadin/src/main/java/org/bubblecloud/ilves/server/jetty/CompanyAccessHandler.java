@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.server.jetty;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.CompanyResolver;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.security.CidrTrie;
+import org.bubblecloud.ilves.security.RemoteAddressUtil;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Jetty handler rejecting requests from remote addresses denied by IP allow and deny lists of
+ * the company resolved from request host name. Requests are rejected before they reach
+ * the web application so that denied clients cause no Vaadin or database work.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class CompanyAccessHandler extends HandlerWrapper {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(CompanyAccessHandler.class);
+
+    /** The entity manager factory. */
+    private final EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Constructor which sets the entity manager factory used to resolve companies.
+     * @param entityManagerFactory the entity manager factory
+     */
+    public CompanyAccessHandler(final EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    @Override
+    public void handle(final String target, final Request baseRequest, final HttpServletRequest request,
+                       final HttpServletResponse response) throws IOException, ServletException {
+        final Company company = CompanyResolver.resolveCompany(entityManagerFactory, request.getServerName());
+        final String remoteIpAddress = RemoteAddressUtil.getRemoteIpAddress(request);
+        if (company != null && !isAllowed(company, remoteIpAddress)) {
+            LOGGER.debug("Rejected request from denied remote address: " + remoteIpAddress
+                    + " (" + request.getServerName() + ")");
+            baseRequest.setHandled(true);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        super.handle(target, baseRequest, request, response);
+    }
+
+    /**
+     * Checks whether remote address is allowed to access company site. Address is denied if it
+     * matches deny list or if allow list is not empty and address does not match it. Invalid
+     * list entries are skipped so that malformed entry does not lock out the whole company.
+     * @param company the company
+     * @param remoteIpAddress the remote IP address
+     * @return true if remote address is allowed
+     */
+    static boolean isAllowed(final Company company, final String remoteIpAddress) {
+        if (StringUtils.isBlank(company.getIpAllowList()) && StringUtils.isBlank(company.getIpDenyList())) {
+            return true;
+        }
+        final byte[] address = CidrTrie.parseAddress(remoteIpAddress);
+        if (CidrTrie.getCompiled(company.getIpDenyList()).contains(address)) {
+            return false;
+        }
+        final CidrTrie allowList = CidrTrie.getCompiled(company.getIpAllowList());
+        return allowList.isEmpty() || allowList.contains(address);
+    }
+}
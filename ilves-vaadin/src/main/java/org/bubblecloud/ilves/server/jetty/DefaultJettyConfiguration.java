@@ -130,7 +130,10 @@ public class DefaultJettyConfiguration {
                 clientCertificateRequested,
                 clientCertificateRequired);
 
-        server.setHandler(context);
+        final CompanyAccessHandler companyAccessHandler = new CompanyAccessHandler(
+                DefaultSiteUI.getEntityManagerFactory());
+        companyAccessHandler.setHandler(context);
+        server.setHandler(companyAccessHandler);
 
         return server;
     }
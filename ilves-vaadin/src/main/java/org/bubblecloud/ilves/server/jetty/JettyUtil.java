@@ -16,7 +16,12 @@
 package org.bubblecloud.ilves.server.jetty;
 
 import org.bubblecloud.ilves.cache.UserClientCertificateCache;
+import org.bubblecloud.ilves.module.content.AssetStoreMigration;
+import org.bubblecloud.ilves.security.AccessListValidator;
+import org.bubblecloud.ilves.security.AuditLogPartitionManager;
+import org.bubblecloud.ilves.security.AuditLogWriter;
 import org.bubblecloud.ilves.security.CertificateUtil;
+import org.bubblecloud.ilves.security.DirectoryGroupSynchronizer;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.eclipse.jetty.server.*;
@@ -53,6 +58,11 @@ public class JettyUtil {
             final boolean requestClientAuthentication,
             final boolean requireClientAuthentication) throws IOException {
         UserClientCertificateCache.init(DefaultSiteUI.getEntityManagerFactory());
+        AccessListValidator.validate(DefaultSiteUI.getEntityManagerFactory());
+        AuditLogWriter.start(DefaultSiteUI.getEntityManagerFactory());
+        AuditLogPartitionManager.start(DefaultSiteUI.getEntityManagerFactory());
+        DirectoryGroupSynchronizer.start(DefaultSiteUI.getEntityManagerFactory());
+        AssetStoreMigration.start(DefaultSiteUI.getEntityManagerFactory());
 
         final String keyStorePath = PropertiesUtil.getProperty("site", "key-store-path");
         final String keyStorePassword = PropertiesUtil.getProperty("site", "key-store-password");
@@ -15,6 +15,11 @@
  */
 package org.bubblecloud.ilves.site;
 
+import com.vaadin.ui.UI;
+import org.bubblecloud.ilves.cache.InMemoryCache;
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.module.content.ContentDao;
 import org.bubblecloud.ilves.security.DefaultRoles;
 import org.bubblecloud.ilves.site.view.valo.DefaultValoView;
 import org.bubblecloud.ilves.ui.AccessDeniedViewlet;
@@ -42,6 +47,11 @@ public class DefaultContentProvider implements ContentProvider {
      * The site descriptor.
      */
     private final SiteDescriptor siteDescriptor;
+    /**
+     * The dynamic site descriptors cached per company, user and roles.
+     */
+    private final InMemoryCache<String, DynamicSiteDescriptor> dynamicSiteDescriptors =
+            new InMemoryCache<String, DynamicSiteDescriptor>(10 * 60 * 1000, 60 * 1000, 1000);
 
     public DefaultContentProvider() {
         final List<ViewDescriptor> viewDescriptors = Collections.synchronizedList(new ArrayList<ViewDescriptor>());
@@ -135,11 +145,74 @@ public class DefaultContentProvider implements ContentProvider {
         return siteDescriptor;
     }
 
+    /**
+     * Gets dynamic site descriptor. Dynamic site descriptors are cached per company, user and user roles
+     * and rebuilt when content revision or privilege version of the company changes.
+     * @return the dynamic site descriptor
+     */
     @Override
     public SiteDescriptor getDynamicSiteDescriptor() {
+        if (UI.getCurrent() == null) {
+            return buildDynamicSiteDescriptor();
+        }
+        final Site site = Site.getCurrent();
+        final Company company = site.getSiteContext().getObject(Company.class);
+        if (company == null) {
+            return buildDynamicSiteDescriptor();
+        }
+
+        final List<String> roles = new ArrayList<String>(site.getSecurityProvider().getRoles());
+        Collections.sort(roles);
+        final String cacheKey = company.getCompanyId() + ":" + site.getSecurityProvider().getUserId() + ":" + roles;
+
+        // Revisions are read before building so that concurrent changes cause rebuild on next call.
+        final long contentRevision = ContentDao.getContentRevision(company);
+        final long privilegeVersion = PrivilegeCache.getVersion(company);
+        final DynamicSiteDescriptor cached = dynamicSiteDescriptors.get(cacheKey);
+        if (cached != null && cached.contentRevision == contentRevision
+                && cached.privilegeVersion == privilegeVersion) {
+            return cached.siteDescriptor;
+        }
+
+        final SiteDescriptor dynamicSiteDescriptor = buildDynamicSiteDescriptor();
+        dynamicSiteDescriptors.put(cacheKey,
+                new DynamicSiteDescriptor(contentRevision, privilegeVersion, dynamicSiteDescriptor));
+        return dynamicSiteDescriptor;
+    }
+
+    /**
+     * Builds dynamic site descriptor by injecting dynamic content of site modules to clone of site descriptor.
+     * @return the dynamic site descriptor
+     */
+    private SiteDescriptor buildDynamicSiteDescriptor() {
         final SiteDescriptor dynamicSiteDescriptor = siteDescriptor.clone();
         SiteModuleManager.injectDynamicContent(dynamicSiteDescriptor);
         return dynamicSiteDescriptor;
     }
 
+    /**
+     * Cached dynamic site descriptor with the revisions it was built at.
+     */
+    private static final class DynamicSiteDescriptor {
+        /** The content revision. */
+        private final long contentRevision;
+        /** The privilege version. */
+        private final long privilegeVersion;
+        /** The dynamic site descriptor. */
+        private final SiteDescriptor siteDescriptor;
+
+        /**
+         * Constructor for setting the revisions and site descriptor.
+         * @param contentRevision the content revision
+         * @param privilegeVersion the privilege version
+         * @param siteDescriptor the site descriptor
+         */
+        private DynamicSiteDescriptor(final long contentRevision, final long privilegeVersion,
+                                      final SiteDescriptor siteDescriptor) {
+            this.contentRevision = contentRevision;
+            this.privilegeVersion = privilegeVersion;
+            this.siteDescriptor = siteDescriptor;
+        }
+    }
+
 }
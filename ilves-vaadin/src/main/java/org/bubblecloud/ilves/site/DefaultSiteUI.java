@@ -18,6 +18,7 @@ package org.bubblecloud.ilves.site;
 import com.vaadin.annotations.Theme;
 import com.vaadin.server.*;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.CompanyResolver;
 import org.bubblecloud.ilves.cache.UserClientCertificateCache;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.User;
@@ -88,12 +89,14 @@ public final class DefaultSiteUI extends AbstractSiteUI {
         return new Site(SiteMode.PRODUCTION, contentProvider, localizationProvider, securityProvider, siteContext);
     }
 
+    /**
+     * Resolves company for host name or default company if no company matches the host name.
+     * @param entityManager the entity manager
+     * @param hostName the host name
+     * @return the company
+     */
     public static Company resolveCompany(EntityManager entityManager, final String hostName) {
-        Company company = CompanyDao.getCompany(entityManager, hostName);
-        if (company == null) {
-            company = CompanyDao.getCompany(entityManager, "*");
-        }
-        return company;
+        return CompanyResolver.resolveCompany(entityManager, hostName);
     }
 
     /**
@@ -30,6 +30,10 @@ public final class NavigationVersion {
     private String defaultPageName;
     /** The navigation hierarchy as map. */
     private Map<String, List<String>> navigationMap;
+    /** True if navigation map is shared with a clone. */
+    private volatile boolean shared;
+    /** The parent pages whose child page lists have been copied after navigation map was shared. */
+    private Set<String> ownedParentPages = new HashSet<String>();
     /** True if navigation is enabled. */
     private boolean enabled;
 
@@ -50,6 +54,7 @@ public final class NavigationVersion {
         } else {
             this.navigationMap = new HashMap<String, List<String>>();
         }
+        this.ownedParentPages.addAll(navigationMap.keySet());
         this.enabled = enabled;
     }
 
@@ -115,6 +120,8 @@ public final class NavigationVersion {
      */
     public void setTree(final String tree) {
         navigationMap = NavigationTreeParser.parse(tree);
+        ownedParentPages = new HashSet<String>(navigationMap.keySet());
+        shared = false;
     }
 
     /**
@@ -175,10 +182,7 @@ public final class NavigationVersion {
      * @param childPage the child page name
      */
     public void addChildPage(final String parentPage, final String childPage) {
-        if (!navigationMap.containsKey(parentPage)) {
-            navigationMap.put(parentPage, new ArrayList<String>());
-        }
-        navigationMap.get(parentPage).add(childPage);
+        getWritableChildPages(parentPage).add(childPage);
     }
 
     /**
@@ -188,10 +192,7 @@ public final class NavigationVersion {
      * @param childPage the child page name
      */
     public void addChildPage(final String parentPage, int index, final String childPage) {
-        if (!navigationMap.containsKey(parentPage)) {
-            navigationMap.put(parentPage, new ArrayList<String>());
-        }
-        navigationMap.get(parentPage).add(index, childPage);
+        getWritableChildPages(parentPage).add(index, childPage);
     }
 
     /**
@@ -201,23 +202,51 @@ public final class NavigationVersion {
      * @param childPage the child page name
      */
     public void addChildPage(final String parentPage, final String previousPage, final String childPage) {
-        if (!navigationMap.containsKey(parentPage)) {
-            navigationMap.put(parentPage, new ArrayList<String>());
+        final List<String> childPages = getWritableChildPages(parentPage);
+        // Pages are commonly appended after the previously added page so check the last page first.
+        final int lastIndex = childPages.size() - 1;
+        if (lastIndex >= 0 && childPages.get(lastIndex).equals(previousPage)) {
+            childPages.add(childPage);
+        } else {
+            childPages.add(childPages.indexOf(previousPage) + 1, childPage);
         }
-        navigationMap.get(parentPage).add(navigationMap.get(parentPage).indexOf(previousPage) + 1, childPage);
     }
 
     /**
+     * Gets child page list of parent page for modification. Copies the navigation map and
+     * the child page list if they are shared with a clone.
+     * @param parentPage the parent page name
+     * @return the writable child page list
+     */
+    private List<String> getWritableChildPages(final String parentPage) {
+        if (shared) {
+            navigationMap = new HashMap<String, List<String>>(navigationMap);
+            ownedParentPages = new HashSet<String>();
+            shared = false;
+        }
+        final List<String> childPages = navigationMap.get(parentPage);
+        if (childPages != null && ownedParentPages.contains(parentPage)) {
+            return childPages;
+        }
+        final List<String> writableChildPages = childPages != null
+                ? new ArrayList<String>(childPages) : new ArrayList<String>();
+        navigationMap.put(parentPage, writableChildPages);
+        ownedParentPages.add(parentPage);
+        return writableChildPages;
+    }
+
+    /**
+     * Clones navigation version. Navigation map is shared between this version and
+     * the clone until either is modified.
      * @return clone
      */
     public NavigationVersion clone() {
         final NavigationVersion clone = new NavigationVersion();
         clone.version = version;
         clone.defaultPageName = defaultPageName;
-        clone.navigationMap = new HashMap<String, List<String>>();
-        for (final String key : navigationMap.keySet()) {
-            clone.navigationMap.put(key, new ArrayList<String>(navigationMap.get(key)));
-        }
+        shared = true;
+        clone.navigationMap = navigationMap;
+        clone.shared = true;
         clone.enabled = enabled;
         return clone;
     }
@@ -200,22 +200,21 @@ public final class Site implements ViewProvider, ViewChangeListener {
      * @return The current view version.
      */
     public ViewVersion getCurrentViewVersion(final String viewName) {
-        for (final ViewDescriptor view : contentProvider.getDynamicSiteDescriptor().getViewDescriptors()) {
-            if (viewName.equals(view.getName())) {
-                ViewVersion viewVersion = null;
-                if (siteMode == SiteMode.DEVELOPMENT) {
-                    viewVersion = view.getDevelopmentVersion();
-                }
-                if (siteMode == SiteMode.TEST) {
-                    viewVersion = view.getTestVersion();
-                }
-                if (siteMode == SiteMode.PRODUCTION) {
-                    viewVersion = view.getProductionVersion();
-                }
-                return viewVersion;
-            }
+        final ViewDescriptor view = contentProvider.getDynamicSiteDescriptor().getViewDescriptor(viewName);
+        if (view == null) {
+            return null;
+        }
+        ViewVersion viewVersion = null;
+        if (siteMode == SiteMode.DEVELOPMENT) {
+            viewVersion = view.getDevelopmentVersion();
+        }
+        if (siteMode == SiteMode.TEST) {
+            viewVersion = view.getTestVersion();
         }
-        return null;
+        if (siteMode == SiteMode.PRODUCTION) {
+            viewVersion = view.getProductionVersion();
+        }
+        return viewVersion;
     }
 
     /**
@@ -278,10 +277,9 @@ public final class Site implements ViewProvider, ViewChangeListener {
             viewName = viewName_;
         }
         if (!views.containsKey(viewName)) {
-            for (final ViewDescriptor viewDescriptor : contentProvider.getDynamicSiteDescriptor().getViewDescriptors()) {
-                if (viewDescriptor.getName().equals(viewName)) {
-                    constructView(viewDescriptor);
-                }
+            final ViewDescriptor viewDescriptor = contentProvider.getDynamicSiteDescriptor().getViewDescriptor(viewName);
+            if (viewDescriptor != null) {
+                constructView(viewDescriptor);
             }
         }
         if (!views.containsKey(viewName)) {
@@ -290,10 +288,9 @@ public final class Site implements ViewProvider, ViewChangeListener {
                     "denied",
                     localize("message-access-denied"), Notification.Type.WARNING_MESSAGE);
             */
-            for (final ViewDescriptor viewDescriptor : contentProvider.getDynamicSiteDescriptor().getViewDescriptors()) {
-                if ("denied".equals(viewDescriptor.getName())) {
-                    constructView(viewDescriptor);
-                }
+            final ViewDescriptor viewDescriptor = contentProvider.getDynamicSiteDescriptor().getViewDescriptor("denied");
+            if (viewDescriptor != null) {
+                constructView(viewDescriptor);
             }
 
             return views.get("denied");
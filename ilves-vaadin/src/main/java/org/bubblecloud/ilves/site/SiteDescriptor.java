@@ -15,7 +15,6 @@
  */
 package org.bubblecloud.ilves.site;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,7 +32,7 @@ public final class SiteDescriptor {
     /** The site navigation. */
     private NavigationDescriptor navigation;
     /** The site pages. */
-    private List<ViewDescriptor> viewDescriptors;
+    private ViewDescriptorList viewDescriptors;
 
     /**
      * @param title The site title.
@@ -50,7 +49,7 @@ public final class SiteDescriptor {
         this.keywords = keywords;
         this.description = description;
         this.navigation = navigation;
-        this.viewDescriptors = viewDescriptors;
+        this.viewDescriptors = new ViewDescriptorList(viewDescriptors);
     }
 
     /**
@@ -124,9 +123,25 @@ public final class SiteDescriptor {
      * @param viewDescriptors the pages to set
      */
     public void setViewDescriptors(final List<ViewDescriptor> viewDescriptors) {
-        this.viewDescriptors = viewDescriptors;
+        this.viewDescriptors = new ViewDescriptorList(viewDescriptors);
     }
     /**
+     * Gets view descriptor by name.
+     * @param name the view name
+     * @return the view descriptor or null if no such view exists
+     */
+    public ViewDescriptor getViewDescriptor(final String name) {
+        return viewDescriptors.getByName(name);
+    }
+    /**
+     * Adds view descriptor as last to the view descriptor list.
+     * @param viewDescriptor the view descriptor
+     */
+    public void addViewDescriptor(final ViewDescriptor viewDescriptor) {
+        viewDescriptors.add(viewDescriptor);
+    }
+    /**
+     * Clones site descriptor. View descriptor list and navigation are copied on write.
      * @return clone
      */
     public SiteDescriptor clone() {
@@ -135,7 +150,7 @@ public final class SiteDescriptor {
         clone.keywords = keywords;
         clone.description = description;
         clone.navigation = navigation.clone();
-        clone.viewDescriptors = new ArrayList<ViewDescriptor>(viewDescriptors);
+        clone.viewDescriptors = viewDescriptors.copy();
         return clone;
     }
 }
@@ -31,6 +31,7 @@ import org.bubblecloud.ilves.component.formatter.CertificateConverter;
 import org.bubblecloud.ilves.component.formatter.DatePartConverter;
 import org.bubblecloud.ilves.component.formatter.TimestampConverter;
 import org.bubblecloud.ilves.component.grid.FieldDescriptor;
+import org.bubblecloud.ilves.component.validator.CidrListValidator;
 import org.bubblecloud.ilves.exception.SiteException;
 import org.bubblecloud.ilves.model.*;
 
@@ -125,6 +126,10 @@ public final class SiteFields {
         SiteFields.add(Company.class, new FieldDescriptor("gitHubClientId", "GitHub Client ID", TextField.class, null, -1, null, String.class, "", false, true, false));
         SiteFields.add(Company.class, new FieldDescriptor("gitHubClientSecret", "GitHub Client Secret", TextField.class, null, -1, null, String.class, "", false, true, false));
         SiteFields.add(Company.class, new FieldDescriptor("gaTrackingId", "GA Tracking ID", TextField.class, null, 100, null, String.class, "", false, true, false));
+        SiteFields.add(Company.class, new FieldDescriptor("ipAllowList", "IP Allow List", TextField.class, null, 200, null, String.class, "", false, true, false),
+                new CidrListValidator());
+        SiteFields.add(Company.class, new FieldDescriptor("ipDenyList", "IP Deny List", TextField.class, null, 200, null, String.class, "", false, true, false),
+                new CidrListValidator());
         SiteFields.add(Company.class, new FieldDescriptor("created", "Created", TimestampField.class, new TimestampConverter(), 150, null, Date.class, null, true,
                 true, true));
         SiteFields.add(Company.class, new FieldDescriptor("modified", "Modified", TimestampField.class, new TimestampConverter(), 150, null, Date.class, null,
@@ -205,7 +210,8 @@ public final class SiteFields {
 
         SiteFields.add(UserDirectory.class, new FieldDescriptor("remoteLocalGroupMapping", "Remote-Local Group Mapping", TextField.class, null, 200, null, String.class, "", false, true, true));
         SiteFields.add(UserDirectory.class, new FieldDescriptor("requiredRemoteGroup", "Required Remote Group", TextField.class, null, 200, null, String.class, "", false, true, true));
-        SiteFields.add(UserDirectory.class, new FieldDescriptor("subNetWhiteList", "Sub Net White List", TextField.class, null, 200, null, String.class, "", false, true, true));
+        SiteFields.add(UserDirectory.class, new FieldDescriptor("subNetWhiteList", "Sub Net White List", TextField.class, null, 200, null, String.class, "", false, true, true),
+                new CidrListValidator());
         SiteFields.add(UserDirectory.class, new FieldDescriptor("enabled", "Enabled", CheckBox.class, null, 100, null, Boolean.class, false, false, true, false));
         SiteFields.add(UserDirectory.class, new FieldDescriptor("created", "Created", TimestampField.class, new TimestampConverter(), 150, null, Date.class, null, true,
                 true, true));
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.site;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of view descriptors with name index. The list and index are shared
+ * between copies until either copy is modified.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class ViewDescriptorList extends AbstractList<ViewDescriptor> {
+    /** The view descriptors. */
+    private List<ViewDescriptor> viewDescriptors;
+    /** The view descriptors by name. Last added descriptor wins if names are duplicate. */
+    private Map<String, ViewDescriptor> index;
+    /** True if list and index are shared with a copy. */
+    private volatile boolean shared;
+
+    /**
+     * Constructor which copies given view descriptors.
+     * @param viewDescriptors the view descriptors
+     */
+    ViewDescriptorList(final Collection<ViewDescriptor> viewDescriptors) {
+        this.viewDescriptors = new ArrayList<ViewDescriptor>(viewDescriptors);
+        this.index = new HashMap<String, ViewDescriptor>(viewDescriptors.size() * 2);
+        for (final ViewDescriptor viewDescriptor : this.viewDescriptors) {
+            index.put(viewDescriptor.getName(), viewDescriptor);
+        }
+    }
+
+    /**
+     * Constructor for copy.
+     * @param original the original list
+     */
+    private ViewDescriptorList(final ViewDescriptorList original) {
+        this.viewDescriptors = original.viewDescriptors;
+        this.index = original.index;
+        this.shared = true;
+    }
+
+    /**
+     * Creates copy which shares state with this list until either is modified.
+     * @return the copy
+     */
+    ViewDescriptorList copy() {
+        shared = true;
+        return new ViewDescriptorList(this);
+    }
+
+    /**
+     * Gets view descriptor by name.
+     * @param name the view name
+     * @return the view descriptor or null
+     */
+    ViewDescriptor getByName(final String name) {
+        return index.get(name);
+    }
+
+    @Override
+    public ViewDescriptor get(final int i) {
+        return viewDescriptors.get(i);
+    }
+
+    @Override
+    public int size() {
+        return viewDescriptors.size();
+    }
+
+    @Override
+    public void add(final int i, final ViewDescriptor viewDescriptor) {
+        ensureNotShared();
+        viewDescriptors.add(i, viewDescriptor);
+        if (i == viewDescriptors.size() - 1) {
+            index.put(viewDescriptor.getName(), viewDescriptor);
+        } else {
+            reindex();
+        }
+        modCount++;
+    }
+
+    @Override
+    public ViewDescriptor set(final int i, final ViewDescriptor viewDescriptor) {
+        ensureNotShared();
+        final ViewDescriptor previous = viewDescriptors.set(i, viewDescriptor);
+        reindex();
+        return previous;
+    }
+
+    @Override
+    public ViewDescriptor remove(final int i) {
+        ensureNotShared();
+        final ViewDescriptor removed = viewDescriptors.remove(i);
+        reindex();
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Copies list and index if they are shared.
+     */
+    private void ensureNotShared() {
+        if (shared) {
+            viewDescriptors = new ArrayList<ViewDescriptor>(viewDescriptors);
+            index = new HashMap<String, ViewDescriptor>(index);
+            shared = false;
+        }
+    }
+
+    /**
+     * Rebuilds the name index.
+     */
+    private void reindex() {
+        index.clear();
+        for (final ViewDescriptor viewDescriptor : viewDescriptors) {
+            index.put(viewDescriptor.getName(), viewDescriptor);
+        }
+    }
+}
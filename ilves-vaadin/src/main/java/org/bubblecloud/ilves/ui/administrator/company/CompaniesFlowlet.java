@@ -121,6 +121,8 @@ public final class CompaniesFlowlet extends AbstractFlowlet {
         table.setColumnCollapsed("oAuthSelfRegistration", true);
         table.setColumnCollapsed("gitHubClientId", true);
         table.setColumnCollapsed("gitHubClientSecret", true);
+        table.setColumnCollapsed("ipAllowList", true);
+        table.setColumnCollapsed("ipDenyList", true);
 
         gridLayout.addComponent(entityGrid, 0, 1);
 
@@ -28,6 +28,7 @@ import org.bubblecloud.ilves.component.grid.*;
 import org.bubblecloud.ilves.model.GroupMember;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.security.DefaultRoles;
+import org.bubblecloud.ilves.security.PasswordHashing;
 import org.bubblecloud.ilves.security.PasswordLoginUtil;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.security.UserDao;
@@ -139,8 +140,7 @@ public final class UserFlowlet extends AbstractFlowlet implements ValidatingEdit
                 try {
                     final boolean toBeAdded = user.getUserId() == null;
                     if (user.getPasswordHash() != null) {
-                        final int hashSize = 64;
-                        if (user.getPasswordHash().length() != hashSize) {
+                        if (!PasswordHashing.isEncodedHash(user.getPasswordHash())) {
                             try {
                                 PasswordLoginUtil.setUserPasswordHash(user.getOwner(), user, user.getPasswordHash().toCharArray());
                             } catch (NoSuchAlgorithmException e) {
@@ -28,6 +28,7 @@ import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.Privilege;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.LoginThrottle;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.security.SiteAuthenticationService;
 import org.bubblecloud.ilves.security.U2fService;
@@ -226,6 +227,7 @@ public final class UsersFlowlet extends AbstractFlowlet {
                 user.setLockedOut(false);
                 user.setFailedLoginCount(0);
                 SecurityService.updateUser(getSite().getSiteContext(), user);
+                LoginThrottle.reset(user.getUserId());
                 container.refresh();
             }
         });
@@ -26,6 +26,7 @@ import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.component.grid.ValidatingEditor;
 import org.bubblecloud.ilves.component.grid.ValidatingEditorStateListener;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.PasswordHashing;
 import org.bubblecloud.ilves.security.PasswordLoginUtil;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.site.SiteFields;
@@ -108,8 +109,7 @@ public final class UserAccountFlowlet extends AbstractFlowlet implements Validat
                 try {
 
                     if (user.getPasswordHash() != null) {
-                        final int hashSize = 64;
-                        if (user.getPasswordHash().length() != hashSize) {
+                        if (!PasswordHashing.isEncodedHash(user.getPasswordHash())) {
                             try {
                                 PasswordLoginUtil.setUserPasswordHash(user.getOwner(), user, user.getPasswordHash().toCharArray());
                             } catch (NoSuchAlgorithmException e) {
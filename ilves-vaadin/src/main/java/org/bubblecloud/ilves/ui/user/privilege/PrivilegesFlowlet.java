@@ -24,6 +24,7 @@ import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.Privilege;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.security.UserDao;
@@ -31,7 +32,9 @@ import org.bubblecloud.ilves.site.Site;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 
 import javax.persistence.EntityManager;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Privileges edit flowlet.
@@ -176,11 +179,11 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         }
 
         for (int i = 0; i < privilegeKeys.length; i++) {
+            final Set<String> privilegedGroupIds = getPrivilegedGroupIds(entityManager, privilegeKeys[i]);
             for (int j = 0; j < groups.size(); j++) {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 groupMatrix.addComponent(groupCheckBoxes[checkBoxIndex], i + 1, j + 1);
-                groupCheckBoxes[checkBoxIndex].setValue(
-                        UserDao.hasGroupPrivilege(entityManager, groups.get(j), privilegeKeys[i], dataId));
+                groupCheckBoxes[checkBoxIndex].setValue(privilegedGroupIds.contains(groups.get(j).getGroupId()));
             }
         }
         dirty = false;
@@ -195,11 +198,11 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         final List<Group> groups = UserDao.getGroups(entityManager, company);
 
         for (int i = 0; i < privilegeKeys.length; i++) {
+            final Set<String> privilegedGroupIds = getPrivilegedGroupIds(entityManager, privilegeKeys[i]);
             for (int j = 0; j < groups.size(); j++) {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 final boolean privileged = groupCheckBoxes[checkBoxIndex].getValue();
-                final boolean privilegedInDatabase =
-                        UserDao.hasGroupPrivilege(entityManager, groups.get(j), privilegeKeys[i], dataId);
+                final boolean privilegedInDatabase = privilegedGroupIds.contains(groups.get(j).getGroupId());
                 if (privileged && !privilegedInDatabase) {
                     SecurityService.addGroupPrivilege(getSite().getSiteContext(), groups.get(j), privilegeKeys[i], null, dataId, null);
                 } else if (!privileged && privilegedInDatabase) {
@@ -256,11 +259,11 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         }
 
         for (int i = 0; i < privilegeKeys.length; i++) {
+            final Set<String> privilegedUserIds = getPrivilegedUserIds(entityManager, privilegeKeys[i]);
             for (int j = 0; j < users.size(); j++) {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 userMatrix.addComponent(userCheckBoxes[checkBoxIndex], i + 1, j + 1);
-                userCheckBoxes[checkBoxIndex].setValue(
-                        UserDao.hasUserPrivilege(entityManager, users.get(j), privilegeKeys[i], dataId));
+                userCheckBoxes[checkBoxIndex].setValue(privilegedUserIds.contains(users.get(j).getUserId()));
             }
         }
         dirty = false;
@@ -278,11 +281,11 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         final List<User> users = UserDao.getUsers(entityManager, company);
 
         for (int i = 0; i < privilegeKeys.length; i++) {
+            final Set<String> privilegedUserIds = getPrivilegedUserIds(entityManager, privilegeKeys[i]);
             for (int j = 0; j < users.size(); j++) {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 final boolean privileged = userCheckBoxes[checkBoxIndex].getValue();
-                final boolean privilegedInDatabase =
-                        UserDao.hasUserPrivilege(entityManager, users.get(j), privilegeKeys[i], dataId);
+                final boolean privilegedInDatabase = privilegedUserIds.contains(users.get(j).getUserId());
                 if (privileged && !privilegedInDatabase) {
                     SecurityService.addUserPrivilege(getSite().getSiteContext(), users.get(j), privilegeKeys[i], null, dataId, null);
                 } else if (!privileged && privilegedInDatabase) {
@@ -294,6 +297,38 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         refreshUserMatrix();
     }
 
+    /**
+     * Gets IDs of groups which have given privilege to the edited data.
+     * @param entityManager the entity manager
+     * @param privilegeKey the privilege key
+     * @return set of group IDs
+     */
+    private Set<String> getPrivilegedGroupIds(final EntityManager entityManager, final String privilegeKey) {
+        final Set<String> groupIds = new HashSet<String>();
+        for (final Privilege privilege : UserDao.listPrivileges(entityManager, privilegeKey, dataId)) {
+            if (privilege.getGroup() != null) {
+                groupIds.add(privilege.getGroup().getGroupId());
+            }
+        }
+        return groupIds;
+    }
+
+    /**
+     * Gets IDs of users which have given privilege to the edited data.
+     * @param entityManager the entity manager
+     * @param privilegeKey the privilege key
+     * @return set of user IDs
+     */
+    private Set<String> getPrivilegedUserIds(final EntityManager entityManager, final String privilegeKey) {
+        final Set<String> userIds = new HashSet<String>();
+        for (final Privilege privilege : UserDao.listPrivileges(entityManager, privilegeKey, dataId)) {
+            if (privilege.getUser() != null) {
+                userIds.add(privilege.getUser().getUserId());
+            }
+        }
+        return userIds;
+    }
+
     @Override
     protected boolean isValid() {
         return true;
@@ -6,4 +6,7 @@ package org.bubblecloud.ilves.api;
 public interface ApiMock {
     @AccessGrant(roles = {"user"})
     String testMethod(String value);
+
+    @AccessGrant(roles = {"anonymous"})
+    String anonymousMethod(String value);
 }
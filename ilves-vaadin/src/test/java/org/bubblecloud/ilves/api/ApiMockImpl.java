@@ -20,4 +20,10 @@ public class ApiMockImpl implements ApiMock, ApiImplementation {
         return this.context.getRoles() + ":" + value;
     }
 
+    @Override
+    @AccessGrant(roles = {""})
+    public String anonymousMethod(final String value) {
+        return this.context.getRoles() + ":" + value;
+    }
+
 }
@@ -0,0 +1,192 @@
+package org.bubblecloud.ilves.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bubblecloud.ilves.site.DefaultSiteUI;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Tests JSON-RPC batch handling of API servlet.
+ */
+public class ApiServletTest {
+    /** The object mapper. */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    /** The servlet. */
+    private ApiServlet servlet;
+
+    @Before
+    public void before() throws Exception {
+        TestUtil.before();
+        DefaultSiteUI.setEntityManagerFactory(TestUtil.getEntityManagerFactory());
+        ApiServlet.addApi(ApiMock.class, ApiMockImpl.class);
+        servlet = new ApiServlet();
+        servlet.init();
+    }
+
+    @After
+    public void after() {
+        servlet.destroy();
+        TestUtil.after();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final JsonNode responses = post("["
+                + "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"anonymousMethod\",\"params\":[\"a\"]},"
+                + "{\"jsonrpc\":\"2.0\",\"method\":\"anonymousMethod\",\"params\":[\"b\"]},"
+                + "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"testMethod\",\"params\":[\"c\"]},"
+                + "{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"anonymousMethod\",\"params\":[\"d\"]}"
+                + "]");
+
+        Assert.assertTrue(responses.isArray());
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals(1, responses.get(0).get("id").asInt());
+        Assert.assertEquals("[anonymous]:a", responses.get(0).get("result").asText());
+        Assert.assertEquals(3, responses.get(1).get("id").asInt());
+        Assert.assertNull(responses.get(1).get("result"));
+        Assert.assertNotNull(responses.get(1).get("error"));
+        Assert.assertEquals(4, responses.get(2).get("id").asInt());
+        Assert.assertEquals("[anonymous]:d", responses.get(2).get("result").asText());
+    }
+
+    @Test
+    public void testEmptyBatch() throws Exception {
+        final JsonNode response = post("[]");
+        Assert.assertTrue(response.isObject());
+        Assert.assertEquals(-32600, response.get("error").get("code").asInt());
+    }
+
+    @Test
+    public void testTooLargeBatch() throws Exception {
+        final StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 101; i++) {
+            batch.append(i == 0 ? "" : ",").append("{\"jsonrpc\":\"2.0\",\"id\":").append(i)
+                    .append(",\"method\":\"anonymousMethod\",\"params\":[\"a\"]}");
+        }
+        batch.append("]");
+        final JsonNode response = post(batch.toString());
+        Assert.assertTrue(response.isObject());
+        Assert.assertEquals(-32600, response.get("error").get("code").asInt());
+    }
+
+    /**
+     * Posts request to API servlet.
+     * @param content the request content
+     * @return the response content
+     * @throws Exception if exception occurs
+     */
+    private JsonNode post(final String content) throws Exception {
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes("UTF-8"));
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final int[] status = new int[] {HttpServletResponse.SC_OK};
+
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[] {HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getRequestURI":
+                        return "/api/apimock";
+                    case "getServerName":
+                    case "getRemoteHost":
+                        return "localhost";
+                    case "getLocalAddr":
+                    case "getRemoteAddr":
+                        return "127.0.0.1";
+                    case "getRemotePort":
+                        return 1234;
+                    case "getInputStream":
+                        return new ServletInputStream() {
+                            @Override
+                            public int read() {
+                                return inputStream.read();
+                            }
+
+                            @Override
+                            public boolean isFinished() {
+                                return inputStream.available() == 0;
+                            }
+
+                            @Override
+                            public boolean isReady() {
+                                return true;
+                            }
+
+                            @Override
+                            public void setReadListener(final ReadListener readListener) {
+                            }
+                        };
+                    default:
+                        return getDefaultValue(method);
+                }
+            }
+        });
+
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[] {HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "setStatus":
+                        status[0] = (Integer) args[0];
+                        return null;
+                    case "getOutputStream":
+                        return new ServletOutputStream() {
+                            @Override
+                            public void write(final int b) {
+                                outputStream.write(b);
+                            }
+
+                            @Override
+                            public boolean isReady() {
+                                return true;
+                            }
+
+                            @Override
+                            public void setWriteListener(final WriteListener writeListener) {
+                            }
+                        };
+                    default:
+                        return getDefaultValue(method);
+                }
+            }
+        });
+
+        servlet.doPost(request, response);
+        Assert.assertEquals(HttpServletResponse.SC_OK, status[0]);
+        return objectMapper.readTree(outputStream.toByteArray());
+    }
+
+    /**
+     * Gets default return value of stubbed method.
+     * @param method the method
+     * @return the default value
+     */
+    private static Object getDefaultValue(final Method method) {
+        final Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
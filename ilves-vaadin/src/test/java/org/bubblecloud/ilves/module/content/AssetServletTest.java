@@ -0,0 +1,61 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests asset servlet byte range parsing.
+ */
+public class AssetServletTest {
+
+    @Test
+    public void testSingleRanges() {
+        assertRanges(AssetServlet.parseRanges("bytes=0-99", 1000), 0, 99);
+        assertRanges(AssetServlet.parseRanges("bytes=900-", 1000), 900, 999);
+        assertRanges(AssetServlet.parseRanges("bytes=-100", 1000), 900, 999);
+        assertRanges(AssetServlet.parseRanges("bytes=-2000", 1000), 0, 999);
+        assertRanges(AssetServlet.parseRanges("bytes=500-5000", 1000), 500, 999);
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertRanges(AssetServlet.parseRanges("bytes=0-0, 10-19,-1", 1000), 0, 0, 10, 19, 999, 999);
+        assertRanges(AssetServlet.parseRanges("bytes=0-9,2000-", 1000), 0, 9);
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        Assert.assertTrue(AssetServlet.parseRanges("bytes=1000-", 1000).isEmpty());
+        Assert.assertTrue(AssetServlet.parseRanges("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void testInvalidRanges() {
+        Assert.assertNull(AssetServlet.parseRanges("items=0-9", 1000));
+        Assert.assertNull(AssetServlet.parseRanges("bytes=9-0", 1000));
+        Assert.assertNull(AssetServlet.parseRanges("bytes=--5", 1000));
+        Assert.assertNull(AssetServlet.parseRanges("bytes=a-b", 1000));
+        Assert.assertNull(AssetServlet.parseRanges("bytes=0-0,1-1,2-2,3-3,4-4,5-5,6-6,7-7,8-8,9-9,"
+                + "10-10,11-11,12-12,13-13,14-14,15-15,16-16", 1000));
+    }
+
+    @Test
+    public void testDerivativeLimit() {
+        Assert.assertTrue(AssetServlet.registerDerivative("asset-1", "10x0-contain.png", 2));
+        Assert.assertTrue(AssetServlet.registerDerivative("asset-1", "20x0-contain.png", 2));
+        Assert.assertTrue(AssetServlet.registerDerivative("asset-1", "10x0-contain.png", 2));
+        Assert.assertFalse(AssetServlet.registerDerivative("asset-1", "30x0-contain.png", 2));
+        Assert.assertTrue(AssetServlet.registerDerivative("asset-2", "30x0-contain.png", 2));
+    }
+
+    private static void assertRanges(final List<long[]> ranges, final long... offsets) {
+        Assert.assertNotNull(ranges);
+        Assert.assertEquals(offsets.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            Assert.assertEquals(offsets[i * 2], ranges.get(i)[0]);
+            Assert.assertEquals(offsets[i * 2 + 1], ranges.get(i)[1]);
+        }
+    }
+}
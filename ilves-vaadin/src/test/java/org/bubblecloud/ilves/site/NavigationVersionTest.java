@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.site;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for NavigationVersion class.
+ */
+public class NavigationVersionTest {
+
+    /**
+     * Tests that clone and original do not see each others modifications.
+     */
+    @Test
+    public void testCloneCopyOnWrite() {
+        final NavigationVersion original = new NavigationVersion(0, "a", "a;#aa;#ab;b", true);
+        final NavigationVersion clone = original.clone();
+
+        clone.addChildPage("a", "aa", "ac");
+        clone.addChildPage("b", "ba");
+        clone.addRootPage("c");
+
+        Assert.assertEquals("a;#aa;#ab;b", original.getTree());
+        Assert.assertEquals("a;#aa;#ac;#ab;b;#ba;c", clone.getTree());
+
+        original.addChildPage("a", "ab", "ad");
+        Assert.assertEquals("a;#aa;#ab;#ad;b", original.getTree());
+        Assert.assertEquals("a;#aa;#ac;#ab;b;#ba;c", clone.getTree());
+    }
+
+}